@@ -0,0 +1,355 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.util.Arrays;
+
+import net.ssehub.kernel_haven.code_model.ast.BranchStatement;
+import net.ssehub.kernel_haven.code_model.ast.CaseStatement;
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.CodeList;
+import net.ssehub.kernel_haven.code_model.ast.Comment;
+import net.ssehub.kernel_haven.code_model.ast.CompoundStatement;
+import net.ssehub.kernel_haven.code_model.ast.CppBlock;
+import net.ssehub.kernel_haven.code_model.ast.CppStatement;
+import net.ssehub.kernel_haven.code_model.ast.ErrorElement;
+import net.ssehub.kernel_haven.code_model.ast.File;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElementVisitor;
+import net.ssehub.kernel_haven.code_model.ast.Label;
+import net.ssehub.kernel_haven.code_model.ast.LoopStatement;
+import net.ssehub.kernel_haven.code_model.ast.ReferenceElement;
+import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
+import net.ssehub.kernel_haven.code_model.ast.SwitchStatement;
+import net.ssehub.kernel_haven.code_model.ast.TypeDefinition;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Runs several {@link IStage}s on an AST in a single traversal. The elements are passed to the stages in document
+ * order (pre-order); each element is passed to all stages (in the order of the stages) before its nested elements are
+ * visited. The parent elements are kept in an array-based stack that is shared by all stages.
+ *
+ * @author Adam
+ */
+class AstPostProcessor implements ISyntaxElementVisitor {
+
+    /**
+     * A single stage of the {@link AstPostProcessor}.
+     */
+    interface IStage {
+
+        /**
+         * Processes a single element of the AST. The stage may replace the element in its parent with
+         * {@link AstPostProcessor#replace(ISyntaxElement)}; all following stages then get the replacement.
+         *
+         * @param element The element to process.
+         * @param processor The processor that runs this stage; provides the parent elements.
+         *
+         * @return Whether this stage should also process the elements nested inside the (possibly replaced) element.
+         */
+        boolean process(@NonNull ISyntaxElement element, @NonNull AstPostProcessor processor);
+
+    }
+
+    private static final int MAX_STAGES = 32;
+
+    private @NonNull IStage @NonNull [] stages;
+
+    /**
+     * The stack of parent elements. The first {@link #depth} elements are used.
+     */
+    private @Nullable ISyntaxElement @NonNull [] parents;
+
+    /**
+     * For each element in {@link #parents}: a bit mask of the stages that process the nested elements.
+     */
+    private int @NonNull [] activeStages;
+
+    private int depth;
+
+    private @Nullable ISyntaxElement root;
+
+    /**
+     * The element that is currently passed to the stages. Changed by {@link #replace(ISyntaxElement)}.
+     */
+    private @Nullable ISyntaxElement current;
+
+    /**
+     * Creates a new {@link AstPostProcessor}.
+     *
+     * @param stages The stages to run, in order. At most 32.
+     */
+    public AstPostProcessor(@NonNull IStage @NonNull ... stages) {
+        if (stages.length > MAX_STAGES) {
+            throw new IllegalArgumentException("Too many stages: " + stages.length);
+        }
+        this.stages = stages;
+        this.parents = new ISyntaxElement[32];
+        this.activeStages = new int[32];
+    }
+
+    /**
+     * Runs all stages on the given AST.
+     *
+     * @param unit The AST to process. Typically, this is the complete {@link File}.
+     *
+     * @return The processed AST. This is the replacement of the given element, if a stage replaced it with
+     *      {@link #replace(ISyntaxElement)}.
+     */
+    public @NonNull ISyntaxElement process(@NonNull ISyntaxElement unit) {
+        this.root = unit;
+        this.depth = 0;
+        unit.accept(this);
+        ISyntaxElement result = notNull(this.root);
+        this.root = null;
+        return result;
+    }
+
+    /**
+     * Returns the root element that was passed to {@link #process(ISyntaxElement)}, or its replacement.
+     *
+     * @return The root of the current AST.
+     */
+    public @Nullable ISyntaxElement getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the parent of the element that is currently processed.
+     *
+     * @return The parent element, or <code>null</code> if the current element is the root.
+     */
+    public @Nullable ISyntaxElement getParent() {
+        return depth > 0 ? parents[depth - 1] : null;
+    }
+
+    /**
+     * Replaces the element that is currently processed in its parent. May only be called from
+     * {@link IStage#process(ISyntaxElement, AstPostProcessor)}. If the current element is the root element, the
+     * replacement becomes the new root, which is returned by {@link #process(ISyntaxElement)}.
+     *
+     * @param replacement The element to replace the current element with.
+     *
+     * @throws IllegalStateException If no element is currently processed.
+     */
+    public void replace(@NonNull ISyntaxElement replacement) throws IllegalStateException {
+        ISyntaxElement replaced = this.current;
+        if (replaced == null) {
+            throw new IllegalStateException("No element is currently processed");
+        }
+        ISyntaxElement parent = getParent();
+        if (parent != null) {
+            parent.replaceNestedElement(replaced, replacement);
+        } else {
+            this.root = replacement;
+        }
+        this.current = replacement;
+    }
+
+    /**
+     * Passes the given element to all stages that are active for it, and pushes it on the parent stack.
+     *
+     * @param element The element that is visited.
+     *
+     * @return Whether the nested elements of the given element should be visited by the caller. This is
+     *      <code>false</code> if no stage is interested in them, or if the element was replaced (in which case the
+     *      nested elements of the replacement are already visited by this method).
+     */
+    private boolean enter(@NonNull ISyntaxElement element) {
+        int active = depth > 0 ? activeStages[depth - 1] : -1;
+
+        current = element;
+        int nestedActive = 0;
+        for (int i = 0; i < stages.length; i++) {
+            if ((active & (1 << i)) != 0 && stages[i].process(notNull(current), this)) {
+                nestedActive |= 1 << i;
+            }
+        }
+        ISyntaxElement processed = notNull(current);
+        current = null;
+
+        if (depth == parents.length) {
+            parents = Arrays.copyOf(parents, depth * 2);
+            activeStages = Arrays.copyOf(activeStages, depth * 2);
+        }
+        parents[depth] = processed;
+        activeStages[depth] = nestedActive;
+        depth++;
+
+        boolean visitNested = nestedActive != 0;
+        if (visitNested && processed != element) {
+            for (ISyntaxElement nested : processed) {
+                nested.accept(this);
+            }
+            visitNested = false;
+        }
+        return visitNested;
+    }
+
+    /**
+     * Pops the element pushed by {@link #enter(ISyntaxElement)} from the parent stack.
+     */
+    private void leave() {
+        depth--;
+        parents[depth] = null;
+    }
+
+    /*
+     * All visit*() methods pass the element to the stages and then visit the nested elements, if required
+     */
+
+    @Override
+    public void visitBranchStatement(@NonNull BranchStatement branchStatement) {
+        if (enter(branchStatement)) {
+            ISyntaxElementVisitor.super.visitBranchStatement(branchStatement);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCaseStatement(@NonNull CaseStatement caseStatement) {
+        if (enter(caseStatement)) {
+            ISyntaxElementVisitor.super.visitCaseStatement(caseStatement);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCode(@NonNull Code code) {
+        if (enter(code)) {
+            ISyntaxElementVisitor.super.visitCode(code);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCodeList(@NonNull CodeList code) {
+        if (enter(code)) {
+            ISyntaxElementVisitor.super.visitCodeList(code);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitComment(@NonNull Comment comment) {
+        if (enter(comment)) {
+            ISyntaxElementVisitor.super.visitComment(comment);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCompoundStatement(@NonNull CompoundStatement block) {
+        if (enter(block)) {
+            ISyntaxElementVisitor.super.visitCompoundStatement(block);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCppBlock(@NonNull CppBlock block) {
+        if (enter(block)) {
+            ISyntaxElementVisitor.super.visitCppBlock(block);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitCppStatement(@NonNull CppStatement cppStatement) {
+        if (enter(cppStatement)) {
+            ISyntaxElementVisitor.super.visitCppStatement(cppStatement);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitFile(@NonNull File file) {
+        if (enter(file)) {
+            ISyntaxElementVisitor.super.visitFile(file);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitFunction(@NonNull Function function) {
+        if (enter(function)) {
+            ISyntaxElementVisitor.super.visitFunction(function);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitLabel(@NonNull Label label) {
+        if (enter(label)) {
+            ISyntaxElementVisitor.super.visitLabel(label);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitLoopStatement(@NonNull LoopStatement loop) {
+        if (enter(loop)) {
+            ISyntaxElementVisitor.super.visitLoopStatement(loop);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitSingleStatement(@NonNull SingleStatement statement) {
+        if (enter(statement)) {
+            ISyntaxElementVisitor.super.visitSingleStatement(statement);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitSwitchStatement(@NonNull SwitchStatement switchStatement) {
+        if (enter(switchStatement)) {
+            ISyntaxElementVisitor.super.visitSwitchStatement(switchStatement);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitTypeDefinition(@NonNull TypeDefinition typeDef) {
+        if (enter(typeDef)) {
+            ISyntaxElementVisitor.super.visitTypeDefinition(typeDef);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitErrorElement(@NonNull ErrorElement error) {
+        if (enter(error)) {
+            ISyntaxElementVisitor.super.visitErrorElement(error);
+        }
+        leave();
+    }
+
+    @Override
+    public void visitReference(@NonNull ReferenceElement referenceElement) {
+        if (enter(referenceElement)) {
+            ISyntaxElementVisitor.super.visitReference(referenceElement);
+        }
+        leave();
+    }
+
+}
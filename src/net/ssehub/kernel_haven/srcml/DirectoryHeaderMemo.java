@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.ssehub.kernel_haven.srcml.SrcMlOutputCache.ISrcMlRunner;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Memoizes the srcML output of the headers parsed for the files of a directory. C files in the same directory tend
+ * to include the same local headers (quote includes are resolved relative to the directory of the file first), so
+ * sibling files don't need to run srcML on these headers again. The AST of a header is still converted for each
+ * file, since included ASTs are modified.
+ * <p>
+ * The lifetime of the memos is derived from the files that are actually parsed (see {@link #start(File, File)} and
+ * {@link #release(File, File)}): headers are only memoized for directories that have a file being parsed. The memo
+ * of a directory is kept after its last file is finished, since the next file may be a sibling; it is dropped as
+ * soon as a file of another directory is started while no file of the directory is parsed. Thus, only the
+ * directories currently processed by the extractor threads hold memoized headers. This works best if the files of a
+ * directory are parsed consecutively, as in a walk of the source tree.
+ *
+ * @author Adam
+ */
+class DirectoryHeaderMemo {
+
+    /**
+     * Absolute directory -> number of its files that are currently parsed. Only contains directories with at least
+     * one such file. Guarded by <code>this</code>.
+     */
+    private @NonNull Map<@NonNull File, @NonNull Integer> inFlight;
+
+    /**
+     * Absolute directory -> the memoized headers of the directory: header path -> task that runs (or already ran)
+     * srcML on the header. Guarded by <code>this</code>; the inner maps are concurrent.
+     */
+    private @NonNull Map<@NonNull File, @NonNull ConcurrentMap<@NonNull File, @NonNull FutureTask<byte @NonNull []>>>
+            memos;
+
+    /**
+     * Creates a new, empty memo.
+     */
+    public DirectoryHeaderMemo() {
+        this.inFlight = new HashMap<>();
+        this.memos = new HashMap<>();
+    }
+
+    /**
+     * Orders the given files so that all files of the same directory are consecutive. The directories are ordered by
+     * their first file in the given list; the order of the files within a directory is kept.
+     *
+     * @param relativeTargets The files to order, relative to the source tree.
+     *
+     * @return The files, grouped by directory.
+     */
+    public static @NonNull List<@NonNull File> groupByDirectory(@NonNull List<@NonNull File> relativeTargets) {
+        Map<String, List<@NonNull File>> groups = new LinkedHashMap<>();
+        for (File relativeTarget : relativeTargets) {
+            groups.computeIfAbsent(relativeTarget.getParent(), (dir) -> new ArrayList<>()).add(relativeTarget);
+        }
+
+        List<@NonNull File> result = new ArrayList<>(relativeTargets.size());
+        for (List<@NonNull File> group : groups.values()) {
+            result.addAll(group);
+        }
+        return result;
+    }
+
+    /**
+     * Marks the given file as being parsed. The memos of all other directories that have no file being parsed are
+     * dropped, since the extractor threads moved on from these.
+     *
+     * @param sourceTree The source tree that the file is relative to.
+     * @param relativeTarget The file that is parsed next, relative to the source tree.
+     */
+    public synchronized void start(@NonNull File sourceTree, @NonNull File relativeTarget) {
+        File directory = getDirectory(sourceTree, relativeTarget);
+        inFlight.merge(directory, 1, Integer::sum);
+        memos.keySet().removeIf((dir) -> !inFlight.containsKey(dir));
+    }
+
+    /**
+     * Returns the srcML output of the given header. If the header was already parsed for the given directory, the
+     * memoized output is returned; otherwise, srcML is run.
+     *
+     * @param directory The directory of the file that includes the header.
+     * @param header The header to parse.
+     * @param runner Runs srcML on the header.
+     *
+     * @return The srcML output of the header.
+     *
+     * @throws IOException If running srcML fails.
+     */
+    public byte @NonNull [] getOutput(@NonNull File directory, @NonNull File header, @NonNull ISrcMlRunner runner)
+            throws IOException {
+
+        ConcurrentMap<@NonNull File, @NonNull FutureTask<byte @NonNull []>> memo;
+        synchronized (this) {
+            memo = memos.get(directory);
+            if (memo == null && inFlight.containsKey(directory)) {
+                memo = new ConcurrentHashMap<>();
+                memos.put(directory, memo);
+            }
+        }
+        if (memo == null) {
+            // no file of the directory is being parsed (e.g. a header including other headers); don't keep anything
+            return runner.run();
+        }
+
+        FutureTask<byte @NonNull []> task = new FutureTask<>(runner::run);
+        FutureTask<byte @NonNull []> existing = memo.putIfAbsent(header, task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+
+        try {
+            return notNull(task.get());
+
+        } catch (ExecutionException e) {
+            // don't keep failures; the next file including the header tries again
+            memo.remove(header, task);
+
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Marks the given file as parsed. The memo of its directory is kept until a file of another directory is
+     * {@link #start(File, File) started}.
+     *
+     * @param sourceTree The source tree that the file is relative to.
+     * @param relativeTarget The parsed file, relative to the source tree.
+     */
+    public synchronized void release(@NonNull File sourceTree, @NonNull File relativeTarget) {
+        File directory = getDirectory(sourceTree, relativeTarget);
+        inFlight.computeIfPresent(directory, (dir, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Returns the directory of the given file.
+     *
+     * @param sourceTree The source tree that the file is relative to.
+     * @param relativeTarget The file, relative to the source tree.
+     *
+     * @return The absolute directory of the file.
+     */
+    private static @NonNull File getDirectory(@NonNull File sourceTree, @NonNull File relativeTarget) {
+        File parent = new File(sourceTree, relativeTarget.getPath()).getParentFile();
+        return parent != null ? parent : sourceTree;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * The extraction durations of the files of previous runs. These are used to feed the files of a run longest-first
+ * (LPT scheduling) into the {@link ExtractionPipeline}, so that srcML runs on the largest files early, instead of
+ * one extractor thread waiting for the largest file at the end of the run.
+ * <p>
+ * For files without a recorded duration, the duration is estimated from their size, using the average duration per
+ * byte of all recorded files.
+ * <p>
+ * Each line of the history file contains the relative path, the duration in milliseconds, and the size in bytes of a
+ * file, separated by tabs. New durations are appended; later lines of the same file replace earlier ones.
+ *
+ * @author Adam
+ */
+class ExtractionHistory {
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * The estimated duration per byte of files, if no durations are recorded at all. Only the order of the estimates
+     * matters in this case.
+     */
+    private static final double DEFAULT_MILLIS_PER_BYTE = 0.001;
+
+    private @NonNull File historyFile;
+
+    /**
+     * Relative path (separated by <code>/</code>) -> duration in milliseconds and size in bytes.
+     */
+    private @NonNull ConcurrentMap<@NonNull String, long @NonNull []> durations;
+
+    /**
+     * Creates a new history. If the given file exists, the durations recorded in it are loaded.
+     *
+     * @param historyFile The file to store the durations in.
+     */
+    public ExtractionHistory(@NonNull File historyFile) {
+        this.historyFile = historyFile;
+        this.durations = new ConcurrentHashMap<>();
+
+        if (historyFile.isFile()) {
+            try {
+                load();
+                // drop the superseded lines appended by previous runs
+                rewrite();
+            } catch (IOException e) {
+                LOGGER.logException("Can't read extraction history " + historyFile, e);
+            }
+        }
+    }
+
+    /**
+     * Orders the given files longest-first, by their recorded or estimated duration.
+     *
+     * @param sourceTree The source tree that the files are relative to.
+     * @param relativeTargets The files to order, relative to the source tree.
+     *
+     * @return The files in descending order of their expected duration.
+     */
+    public @NonNull List<@NonNull File> orderLongestFirst(@NonNull File sourceTree,
+            @NonNull List<@NonNull File> relativeTargets) {
+
+        long totalMillis = 0;
+        long totalBytes = 0;
+        for (long[] duration : durations.values()) {
+            totalMillis += duration[0];
+            totalBytes += duration[1];
+        }
+        double millisPerByte = totalBytes > 0 ? (double) totalMillis / totalBytes : DEFAULT_MILLIS_PER_BYTE;
+
+        Map<@NonNull File, Double> estimates = new HashMap<>();
+        int numKnown = 0;
+        for (File relativeTarget : relativeTargets) {
+            long[] duration = durations.get(toKey(relativeTarget));
+            if (duration != null) {
+                estimates.put(relativeTarget, (double) duration[0]);
+                numKnown++;
+            } else {
+                estimates.put(relativeTarget, new File(sourceTree, relativeTarget.getPath()).length() * millisPerByte);
+            }
+        }
+        LOGGER.logDebug("Ordering " + relativeTargets.size() + " files longest-first; " + numKnown
+                + " durations known from previous runs");
+
+        List<@NonNull File> result = new ArrayList<>(relativeTargets);
+        // stable; files with equal estimates keep their original order
+        result.sort(Comparator.comparing(estimates::get, Comparator.reverseOrder()));
+        return result;
+    }
+
+    /**
+     * Records the extraction duration of a file.
+     *
+     * @param relativeTarget The path to the file, relative to the source tree.
+     * @param millis The duration of the extraction, in milliseconds.
+     * @param size The size of the file, in bytes.
+     */
+    public void record(@NonNull File relativeTarget, long millis, long size) {
+        String key = toKey(relativeTarget);
+        long[] duration = {millis, size};
+        durations.put(key, duration);
+        try {
+            append(key, duration);
+        } catch (IOException e) {
+            LOGGER.logException("Can't write extraction history " + historyFile, e);
+        }
+    }
+
+    /**
+     * Converts the given path to the key used in the history.
+     *
+     * @param relativeTarget The path to the file, relative to the source tree.
+     *
+     * @return The path, separated by <code>/</code>.
+     */
+    private static @NonNull String toKey(@NonNull File relativeTarget) {
+        return notNull(relativeTarget.getPath().replace('\\', '/'));
+    }
+
+    /**
+     * Loads all durations from the {@link #historyFile}.
+     *
+     * @throws IOException If reading the history fails.
+     */
+    private void load() throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(historyFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    if (parts.length == 3) {
+                        durations.put(notNull(parts[0]), new long[] {Long.parseLong(parts[1]),
+                            Long.parseLong(parts[2])});
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.logWarning("Invalid line in extraction history: " + line);
+                }
+            }
+        }
+
+        LOGGER.logDebug("Loaded " + durations.size() + " durations from extraction history " + historyFile);
+    }
+
+    /**
+     * Writes all current durations to the {@link #historyFile}, replacing its previous content.
+     *
+     * @throws IOException If writing the history fails.
+     */
+    private synchronized void rewrite() throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(historyFile))) {
+            for (Map.Entry<@NonNull String, long @NonNull []> entry : durations.entrySet()) {
+                write(out, notNull(entry.getKey()), notNull(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Appends the given duration to the {@link #historyFile}.
+     *
+     * @param key The path to the file, separated by <code>/</code>.
+     * @param duration The duration and size of the file.
+     *
+     * @throws IOException If writing the history fails.
+     */
+    private synchronized void append(@NonNull String key, long @NonNull [] duration) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(historyFile, true))) {
+            write(out, key, duration);
+        }
+    }
+
+    /**
+     * Writes a single line.
+     *
+     * @param out The writer to write to.
+     * @param key The path to the file, separated by <code>/</code>.
+     * @param duration The duration and size of the file.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void write(@NonNull Writer out, @NonNull String key, long @NonNull [] duration)
+            throws IOException {
+        out.write(key + "\t" + duration[0] + "\t" + duration[1] + "\n");
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Runs the first stages of the extraction ahead of the extractor threads. For the files of the run (in the order in
+ * which they are expected to be requested), srcML is run in a pool of I/O-bound process threads; its output is
+ * then parsed and pre-processed in a pool of CPU-bound parse threads. The extractor thread that requests a file only
+ * needs to convert the prepared result.
+ * <p>
+ * The number of files that are in one of the stages, or whose result was not yet requested, is bounded by the
+ * capacity of this pipeline, so that the prepared results don't exhaust the memory. Files that are requested before
+ * the pipeline reached them are skipped by the pipeline. Files that the extractor does not request from the pipeline
+ * have to be {@link #discard(File) discarded}, so that they don't occupy its capacity. Call {@link #close()} at the
+ * end of the run to shut down its threads.
+ *
+ * @param <T> The type of prepared results produced by the parse stage.
+ *
+ * @author Adam
+ */
+class ExtractionPipeline<T> {
+
+    /**
+     * The process stage: runs srcML on a file.
+     */
+    @FunctionalInterface
+    interface IProcessStage {
+
+        /**
+         * Runs srcML on the given file.
+         *
+         * @param absoluteTarget The absolute path to the file.
+         *
+         * @return The complete XML output of srcML.
+         *
+         * @throws Exception If running srcML fails.
+         */
+        byte @NonNull [] run(@NonNull File absoluteTarget) throws Exception;
+
+    }
+
+    /**
+     * The parse stage: parses and pre-processes the output of srcML.
+     *
+     * @param <T> The type of prepared results.
+     */
+    @FunctionalInterface
+    interface IParseStage<T> {
+
+        /**
+         * Parses the given srcML output.
+         *
+         * @param absoluteTarget The absolute path to the file.
+         * @param relativeTarget The path to the file, relative to the source tree.
+         * @param xml The XML output of srcML.
+         *
+         * @return The prepared result.
+         *
+         * @throws Exception If parsing fails.
+         */
+        @NonNull T run(@NonNull File absoluteTarget, @NonNull File relativeTarget, byte @NonNull [] xml)
+                throws Exception;
+
+    }
+
+    private static final Logger LOGGER = Logger.get();
+
+    private @NonNull ExecutorService processPool;
+
+    private @NonNull ExecutorService parsePool;
+
+    private @NonNull IProcessStage processStage;
+
+    private @NonNull IParseStage<T> parseStage;
+
+    private @NonNull Semaphore capacity;
+
+    /**
+     * Relative path -> the prepared result of the file. Guarded by <code>this</code>.
+     */
+    private @NonNull Map<@NonNull File, @NonNull CompletableFuture<T>> results;
+
+    /**
+     * The relative paths of all files that were passed to {@link #start(File, List, Predicate)}, but were neither
+     * submitted into the pipeline nor requested yet. Guarded by <code>this</code>.
+     */
+    private @NonNull Set<@NonNull File> pending;
+
+    /**
+     * Whether {@link #close()} was called. Guarded by <code>this</code>.
+     */
+    private boolean closed;
+
+    private @Nullable Thread feeder;
+
+    /**
+     * Creates a new pipeline. Call {@link #start(File, List, Predicate)} to start it.
+     *
+     * @param processPool The threads to run the process stage in.
+     * @param parsePool The threads to run the parse stage in.
+     * @param capacity The maximum number of files in the pipeline (including prepared results that were not yet
+     *      requested).
+     * @param processStage The process stage.
+     * @param parseStage The parse stage.
+     */
+    public ExtractionPipeline(@NonNull ExecutorService processPool, @NonNull ExecutorService parsePool,
+            int capacity, @NonNull IProcessStage processStage, @NonNull IParseStage<T> parseStage) {
+
+        this.processPool = processPool;
+        this.parsePool = parsePool;
+        this.capacity = new Semaphore(Math.max(capacity, 1));
+        this.processStage = processStage;
+        this.parseStage = parseStage;
+        this.results = new HashMap<>();
+        this.pending = new HashSet<>();
+    }
+
+    /**
+     * Starts feeding the given files into the pipeline, in a background thread.
+     *
+     * @param sourceTree The source tree that the files are relative to.
+     * @param relativeTargets The files, relative to the source tree, in the order in which they are expected to be
+     *      requested.
+     * @param filter Only files (absolute paths) that match this filter are fed into the pipeline.
+     */
+    public void start(@NonNull File sourceTree, @NonNull List<@NonNull File> relativeTargets,
+            @NonNull Predicate<@NonNull File> filter) {
+
+        synchronized (this) {
+            pending.addAll(relativeTargets);
+        }
+
+        Thread feeder = new Thread(() -> {
+            try {
+                for (File relativeTarget : relativeTargets) {
+                    File absoluteTarget = new File(sourceTree, relativeTarget.getPath());
+                    if (isPending(relativeTarget) && filter.test(absoluteTarget)) {
+                        capacity.acquire();
+                        if (!submit(absoluteTarget, relativeTarget)) {
+                            capacity.release();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, "srcML-pipeline-feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+        this.feeder = feeder;
+    }
+
+    /**
+     * Stops the pipeline: stops feeding new files into it, drops all prepared results that were not yet requested,
+     * and shuts down the thread pools. Stages that are already running are finished, but their results are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            for (CompletableFuture<T> result : results.values()) {
+                result.cancel(false);
+                capacity.release();
+            }
+            results.clear();
+        }
+
+        Thread feeder = this.feeder;
+        if (feeder != null) {
+            feeder.interrupt();
+        }
+        processPool.shutdown();
+        parsePool.shutdown();
+    }
+
+    /**
+     * Checks whether the given file is neither submitted into the pipeline nor requested yet.
+     *
+     * @param relativeTarget The path to the file, relative to the source tree.
+     *
+     * @return Whether the file is still pending.
+     */
+    private synchronized boolean isPending(@NonNull File relativeTarget) {
+        return pending.contains(relativeTarget);
+    }
+
+    /**
+     * Submits a single file into the pipeline, unless it was already requested.
+     *
+     * @param absoluteTarget The absolute path to the file.
+     * @param relativeTarget The path to the file, relative to the source tree.
+     *
+     * @return Whether the file was submitted.
+     */
+    private synchronized boolean submit(@NonNull File absoluteTarget, @NonNull File relativeTarget) {
+        if (closed || !pending.remove(relativeTarget)) {
+            return false;
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        results.put(relativeTarget, result);
+
+        processPool.execute(() -> {
+            // skip the stages if the file was discarded in the meantime
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                byte[] xml = processStage.run(absoluteTarget);
+                parsePool.execute(() -> {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    try {
+                        result.complete(parseStage.run(absoluteTarget, relativeTarget, xml));
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Takes the prepared result of the given file out of the pipeline. If the file is still in one of the stages,
+     * this waits for it. Afterwards, the pipeline won't process the file anymore.
+     *
+     * @param relativeTarget The path to the file, relative to the source tree.
+     *
+     * @return The prepared result, or <code>null</code> if the file was not (successfully) processed by the
+     *      pipeline. In this case, the caller has to process the file itself.
+     */
+    public @Nullable T take(@NonNull File relativeTarget) {
+        CompletableFuture<T> future;
+        synchronized (this) {
+            pending.remove(relativeTarget);
+            future = results.remove(relativeTarget);
+        }
+        if (future == null) {
+            return null;
+        }
+
+        T result = null;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            // the caller will run into (and report) the same problem
+            LOGGER.logDebug("Pipeline failed to prepare " + relativeTarget + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            LOGGER.logDebug("Interrupted while waiting for pipeline to prepare " + relativeTarget);
+            Thread.currentThread().interrupt();
+        } finally {
+            capacity.release();
+        }
+        return result;
+    }
+
+    /**
+     * Removes the given file from the pipeline without waiting for its result. Afterwards, the pipeline won't process
+     * the file anymore. This has to be called for all files that are not {@link #take(File) taken}, so that they
+     * don't occupy the capacity of the pipeline. Does nothing if the file was already taken.
+     *
+     * @param relativeTarget The path to the file, relative to the source tree.
+     */
+    public void discard(@NonNull File relativeTarget) {
+        CompletableFuture<T> future;
+        synchronized (this) {
+            pending.remove(relativeTarget);
+            future = results.remove(relativeTarget);
+        }
+        if (future != null) {
+            future.cancel(false);
+            capacity.release();
+        }
+    }
+
+}
@@ -18,21 +18,29 @@ package net.ssehub.kernel_haven.srcml;
 
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.CppStatement;
 import net.ssehub.kernel_haven.code_model.ast.File;
 import net.ssehub.kernel_haven.code_model.ast.Function;
 import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
-import net.ssehub.kernel_haven.code_model.ast.ISyntaxElementVisitor;
+import net.ssehub.kernel_haven.code_model.ast.ReferenceElement;
 import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
 import net.ssehub.kernel_haven.code_model.ast.SingleStatement.Type;
+import net.ssehub.kernel_haven.srcml.FunctionDeclarationIndex.HeaderSummary;
+import net.ssehub.kernel_haven.util.CodeExtractorException;
 import net.ssehub.kernel_haven.util.Logger;
 import net.ssehub.kernel_haven.util.logic.Conjunction;
 import net.ssehub.kernel_haven.util.logic.Disjunction;
@@ -46,29 +54,181 @@ import net.ssehub.kernel_haven.util.null_checks.Nullable;
  * 
  * @author Adam
  */
-class FunctionConditionExpander implements ISyntaxElementVisitor {
+class FunctionConditionExpander implements AstPostProcessor.IStage {
     
     private static final Logger LOGGER = Logger.get();
 
     /**
      * Maps function name -> presence condtion(s) of declaration(s).
      */
-    private Map<String, List<@NonNull Formula>> declPcs;
+    private @NonNull Map<@NonNull String, @NonNull List<@NonNull Formula>> declPcs;
+    
+    /**
+     * The run-wide index of declarations in headers. If this is not <code>null</code>, the declarations of included
+     * headers are taken from this index instead of walking through the header AST.
+     */
+    private @Nullable FunctionDeclarationIndex declarationIndex;
+    
+    /**
+     * If <code>true</code>, only {@link #declPcs} is filled, but no function conditions are expanded.
+     */
+    private boolean collectOnly;
+    
+    /**
+     * The names of the function declarations, as recorded by the {@link XmlToAstConverter}. Identity-based.
+     */
+    private @NonNull Map<@NonNull SingleStatement, @NonNull String> functionDeclarationNames;
+    
+    /**
+     * Resolves and parses the headers of #include directives, if the summaries of headers should be used instead of
+     * inlined header ASTs. <code>null</code> if headers are inlined.
+     */
+    private @Nullable IncludeExpander includeResolver;
+    
+    /**
+     * All headers whose declarations were added to {@link #declPcs}.
+     */
+    private @NonNull Set<java.io.@NonNull File> includedFiles;
+    
+    /**
+     * Creates a new {@link FunctionConditionExpander} for ASTs where the headers are inlined by the
+     * {@link IncludeExpander}.
+     * 
+     * @param declarationIndex The run-wide index of declarations in headers. May be <code>null</code>, in which case
+     *      the ASTs of included headers are searched for declarations.
+     * @param functionDeclarationNames The names of the function declarations in the AST, as recorded by the
+     *      {@link XmlToAstConverter}. For declarations not contained in this map, the name is extracted from the code
+     *      of the declaration.
+     */
+    public FunctionConditionExpander(@Nullable FunctionDeclarationIndex declarationIndex,
+            @NonNull Map<@NonNull SingleStatement, @NonNull String> functionDeclarationNames) {
+        this(declarationIndex, functionDeclarationNames, null);
+    }
     
     /**
      * Creates a new {@link FunctionConditionExpander}.
+     * 
+     * @param declarationIndex The run-wide index of declarations in headers. May be <code>null</code>, in which case
+     *      the ASTs of included headers are searched for declarations.
+     * @param functionDeclarationNames The names of the function declarations in the AST, as recorded by the
+     *      {@link XmlToAstConverter}. For declarations not contained in this map, the name is extracted from the code
+     *      of the declaration.
+     * @param includeResolver If not <code>null</code>, the #include directives in the AST are not expected to be
+     *      inlined. Instead, the summaries of the included headers are taken from the declaration index (which must
+     *      not be <code>null</code> then); headers that are not yet in the index are parsed with this.
      */
-    public FunctionConditionExpander() {
-        declPcs = new HashMap<>();
+    public FunctionConditionExpander(@Nullable FunctionDeclarationIndex declarationIndex,
+            @NonNull Map<@NonNull SingleStatement, @NonNull String> functionDeclarationNames,
+            @Nullable IncludeExpander includeResolver) {
+        this.declPcs = new HashMap<>();
+        this.declarationIndex = declarationIndex;
+        this.functionDeclarationNames = functionDeclarationNames;
+        this.includeResolver = includeResolver;
+        this.includedFiles = new HashSet<>();
     }
     
     /**
-     * Does the condition expansion for the given AST.
+     * Does the condition expansion for the given AST. To combine this with other post-processing, pass this as a
+     * stage to an {@link AstPostProcessor} instead.
      * 
      * @param unit The AST to expand conditions in. Typically, this a the complete {@link File}.
      */
     public void expand(@NonNull ISyntaxElement unit) {
-        unit.accept(this);
+        new AstPostProcessor(this).process(unit);
+    }
+    
+    /**
+     * Stores the declarations found by {@link #expand(ISyntaxElement)} in the declaration index (if present). This
+     * is called if the expanded AST is a header, so that the header doesn't need to be searched again by the files
+     * that include it.
+     * 
+     * @param header The header file that the expanded AST was parsed from.
+     */
+    public void publishDeclarations(java.io.@NonNull File header) {
+        FunctionDeclarationIndex declarationIndex = this.declarationIndex;
+        if (declarationIndex != null) {
+            declarationIndex.put(header, createSummary(header));
+        }
+    }
+    
+    /**
+     * Creates a summary of the declarations collected by this expander.
+     * 
+     * @param header The header file that the collected AST was parsed from.
+     * 
+     * @return The summary of the header.
+     */
+    private @NonNull HeaderSummary createSummary(java.io.@NonNull File header) {
+        Set<java.io.@NonNull File> files = new HashSet<>(includedFiles);
+        files.add(header);
+        return new HeaderSummary(new HashMap<>(declPcs), files);
+    }
+    
+    /**
+     * Collects all function declarations in the given AST, without expanding any conditions.
+     * 
+     * @param header The header file that the given AST was parsed from.
+     * @param unit The AST to search declarations in. Typically, this is the {@link File} of a header.
+     * 
+     * @return The summary of the header.
+     */
+    private @NonNull HeaderSummary collectSummary(java.io.@NonNull File header, @NonNull ISyntaxElement unit) {
+        FunctionConditionExpander collector = new FunctionConditionExpander(declarationIndex,
+                functionDeclarationNames, includeResolver);
+        collector.collectOnly = true;
+        collector.expand(unit);
+        return collector.createSummary(header);
+    }
+    
+    /**
+     * Adds the declarations of the given header summary to {@link #declPcs}.
+     * 
+     * @param summary The summary of an included header.
+     */
+    private void addSummary(@NonNull HeaderSummary summary) {
+        for (Map.Entry<@NonNull String, @NonNull List<@NonNull Formula>> entry
+                : summary.getDeclarations().entrySet()) {
+            for (Formula pc : entry.getValue()) {
+                putDeclPc(notNull(entry.getKey()), notNull(pc));
+            }
+        }
+        includedFiles.addAll(summary.getFiles());
+    }
+    
+    /**
+     * Returns the summary of the given header. If it is not yet in the index, the header is parsed.
+     * 
+     * @param header The header file.
+     * @param includeResolver Used for parsing the header.
+     * @param declarationIndex The index to take the summary from.
+     * 
+     * @return The summary of the header, or <code>null</code> if parsing the header failed.
+     */
+    private @Nullable HeaderSummary getSummary(java.io.@NonNull File header, @NonNull IncludeExpander includeResolver,
+            @NonNull FunctionDeclarationIndex declarationIndex) {
+        
+        HeaderSummary summary = declarationIndex.get(header);
+        if (summary == null) {
+            try {
+                LOGGER.logDebug("Parsing header for declaration summary: " + header);
+                ISyntaxElement ast = includeResolver.parseHeader(header);
+                
+                // parsing the header usually already stored its summary in the index (see SrcMLExtractor.parse())
+                summary = declarationIndex.get(header);
+                if (summary == null) {
+                    summary = declarationIndex.put(header, collectSummary(header, ast));
+                }
+                
+            } catch (CodeExtractorException e) {
+                Throwable exc = e;
+                if (e.getCause() != null) {
+                    exc = e.getCause();
+                }
+                LOGGER.logWarning("Can't parse header " + header + ": " + exc.getMessage());
+            }
+        }
+        
+        return summary;
     }
 
     /*
@@ -84,9 +244,10 @@ class FunctionConditionExpander implements ISyntaxElementVisitor {
      * @return The name of the function, or <code>null</code> if it could not be found.
      */
     private @Nullable String getFunctionName(@NonNull SingleStatement functionDecl) {
-        String result = null;
+        String result = functionDeclarationNames.get(functionDecl);
         
-        if (functionDecl.getCode() instanceof Code) {
+        // fall back to parsing the code, if the converter didn't record the name
+        if (result == null && functionDecl.getCode() instanceof Code) {
             String declStr = ((Code) functionDecl.getCode()).getText();
             List<String> tokens = new ArrayList<>(Arrays.asList(declStr.split(" ")));
             // copy into array list, because we want to modify the list length
@@ -173,7 +334,42 @@ class FunctionConditionExpander implements ISyntaxElementVisitor {
     }
     
     @Override
-    public void visitSingleStatement(@NonNull SingleStatement statement) {
+    public boolean process(@NonNull ISyntaxElement element, @NonNull AstPostProcessor processor) {
+        boolean processNested = true;
+        
+        if (element instanceof SingleStatement) {
+            processSingleStatement((SingleStatement) element);
+            processNested = false;
+            
+        } else if (element instanceof Function) {
+            processFunction((Function) element);
+            // no recursion needed, since no functions can be nested inside functions
+            processNested = false;
+            
+        } else if (element instanceof File && element != processor.getRoot()) {
+            processNested = !processHeader((File) element);
+            
+        } else if (element instanceof ReferenceElement) {
+            // shared header ASTs are referenced instead of being included directly
+            ISyntaxElement referenced = ((ReferenceElement) element).getReferenced();
+            if (referenced instanceof File) {
+                processHeader((File) referenced);
+            }
+            
+        } else if (element instanceof CppStatement) {
+            processCppStatement((CppStatement) element);
+            processNested = false;
+        }
+        
+        return processNested;
+    }
+    
+    /**
+     * Collects the declaration in the given statement, if it is a function declaration.
+     * 
+     * @param statement The statement.
+     */
+    private void processSingleStatement(@NonNull SingleStatement statement) {
         if (statement.getType() == Type.FUNCTION_DECLARATION) {
             String name = getFunctionName(statement);
             if (name != null) {
@@ -183,31 +379,98 @@ class FunctionConditionExpander implements ISyntaxElementVisitor {
         }
     }
     
+    /**
+     * Collects the declarations of an included header, from the declaration index.
+     * 
+     * @param file The (inlined or referenced) AST of the header.
+     * 
+     * @return Whether the declarations were collected; <code>false</code> if there is no declaration index, i.e. the
+     *      header AST has to be searched for declarations.
+     */
+    private boolean processHeader(@NonNull File file) {
+        FunctionDeclarationIndex declarationIndex = this.declarationIndex;
+        
+        boolean result = false;
+        if (declarationIndex != null) {
+            // its declarations are only collected once per run
+            java.io.File header = file.getSourceFile();
+            addSummary(declarationIndex.getSummary(header, () -> collectSummary(header, file)));
+            result = true;
+        }
+        return result;
+    }
+    
+    /**
+     * Collects the declarations of the header included by the given #include directive, if header summaries are
+     * used.
+     * 
+     * @param cppStatement The preprocessor statement.
+     */
+    private void processCppStatement(@NonNull CppStatement cppStatement) {
+        IncludeExpander includeResolver = this.includeResolver;
+        FunctionDeclarationIndex declarationIndex = this.declarationIndex;
+        
+        if (includeResolver != null && declarationIndex != null
+                && cppStatement.getType() == CppStatement.Type.INCLUDE) {
+            
+            java.io.File header = includeResolver.findIncludedFile(cppStatement);
+            if (header != null) {
+                HeaderSummary summary = getSummary(header, includeResolver, declarationIndex);
+                if (summary != null) {
+                    addSummary(summary);
+                }
+            }
+        }
+    }
+    
     /*
      * The following functions are used for applying the new conditions for the function
      */
     
     /**
-     * Recursively appends a {@link Formula} to all presence conditions of sub-tree.
+     * Appends a {@link Formula} to all presence conditions of sub-tree. Elements that have the same previous presence
+     * condition instance share the same resulting {@link Conjunction}. Previous conditions are compared by identity,
+     * since hashing deeply nested formulas is expensive. This is done iteratively, to support deeply nested function
+     * bodies.
      * 
      * @param element The element to add the new part to (including all nested elements).
      * @param newPart The new part to add to all presence conditions (using a {@link Conjunction}).
      */
     private void updateAllPcs(@NonNull ISyntaxElement element, @NonNull Formula newPart) {
-        Formula previousPc = element.getPresenceCondition();
-        if (previousPc != True.INSTANCE) {
-            element.setPresenceCondition(new Conjunction(previousPc, newPart));
-        } else {
-            element.setPresenceCondition(newPart);
-        }
+        // previous PC -> new PC
+        Map<@NonNull Formula, @NonNull Formula> updatedPcs = new IdentityHashMap<>();
+        updatedPcs.put(True.INSTANCE, newPart);
         
-        for (ISyntaxElement child : element) {
-            updateAllPcs(child, newPart);
+        Deque<@NonNull ISyntaxElement> toUpdate = new ArrayDeque<>();
+        toUpdate.push(element);
+        
+        while (!toUpdate.isEmpty()) {
+            ISyntaxElement current = toUpdate.pop();
+            
+            Formula previousPc = current.getPresenceCondition();
+            Formula newPc = updatedPcs.get(previousPc);
+            if (newPc == null) {
+                newPc = new Conjunction(previousPc, newPart);
+                updatedPcs.put(previousPc, newPc);
+            }
+            current.setPresenceCondition(newPc);
+            
+            for (ISyntaxElement child : current) {
+                toUpdate.push(child);
+            }
         }
     }
     
-    @Override
-    public void visitFunction(@NonNull Function function) {
+    /**
+     * Expands the condition of the given function with the presence conditions of its declarations.
+     * 
+     * @param function The function.
+     */
+    private void processFunction(@NonNull Function function) {
+        if (collectOnly) {
+            return;
+        }
+        
         List<@NonNull Formula> declPcs = this.declPcs.get(function.getName());
         
         if (declPcs != null) {
@@ -231,8 +494,6 @@ class FunctionConditionExpander implements ISyntaxElementVisitor {
             // ... and the PCs of the function and all nested elements
             updateAllPcs(function, newPart);
         }
-        
-        // no recursion needed, since no functions can be nested inside functions
     }
     
 }
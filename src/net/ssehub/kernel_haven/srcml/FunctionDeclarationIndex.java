@@ -0,0 +1,498 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.logic.parser.CStyleBooleanGrammar;
+import net.ssehub.kernel_haven.util.logic.parser.ExpressionFormatException;
+import net.ssehub.kernel_haven.util.logic.parser.Parser;
+import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A run-wide index of the function declarations found in header files. For each header, this stores a
+ * {@link HeaderSummary} with the presence conditions of all function declarations (including the ones of headers
+ * included by it). Each header is only collected once per run; concurrent extractor threads share the index.
+ * <p>
+ * Optionally, the index is persisted to a file, so that following runs can re-use it. Each summary stores the last
+ * modification time and size of the header and all headers included by it; outdated summaries are ignored. The file
+ * starts with a hash of the extractor settings; if these changed, all stored summaries are discarded. Summaries that
+ * contain non-Boolean presence conditions are not persisted, since they can't be parsed again. The file is compacted
+ * when it is loaded, if it contains outdated or unreadable entries.
+ *
+ * @author Adam
+ */
+class FunctionDeclarationIndex {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final @NonNull String SETTINGS_PREFIX = "settings\t";
+
+    private static final @NonNull String HEADER_PREFIX = "header\t";
+
+    private static final @NonNull String FILE_PREFIX = "file\t";
+
+    private static final @NonNull String DECLARATION_PREFIX = "decl\t";
+
+    /**
+     * The last modification time and size of a file at the time it was collected.
+     */
+    private static class FileStamp {
+
+        private long lastModified;
+
+        private long size;
+
+        /**
+         * Creates a new stamp.
+         *
+         * @param lastModified The last modification time of the file.
+         * @param size The size of the file, in bytes.
+         */
+        public FileStamp(long lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            boolean result = false;
+            if (obj instanceof FileStamp) {
+                FileStamp other = (FileStamp) obj;
+                result = other.lastModified == lastModified && other.size == size;
+            }
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(lastModified) * 31 + Long.hashCode(size);
+        }
+
+    }
+
+    /**
+     * The summary of a single header file: the declared functions with their presence conditions, and the headers
+     * that were (transitively) included by it.
+     */
+    static class HeaderSummary {
+
+        /**
+         * Function name -> presence condition(s) of declaration(s).
+         */
+        private @NonNull Map<@NonNull String, @NonNull List<@NonNull Formula>> declarations;
+
+        /**
+         * The header itself and all headers included by it -> state at the time of collection.
+         */
+        private @NonNull Map<@NonNull File, @NonNull FileStamp> files;
+
+        /**
+         * Whether {@link #files} were already compared against the current state of the files in this run.
+         */
+        private volatile boolean verified;
+
+        /**
+         * Creates a new summary. The current state of the given files is recorded, to detect later changes.
+         *
+         * @param declarations The declarations found in the header (and all headers included by it).
+         * @param files The header itself and all headers included by it.
+         */
+        public HeaderSummary(@NonNull Map<@NonNull String, @NonNull List<@NonNull Formula>> declarations,
+                @NonNull Collection<@NonNull File> files) {
+            this.declarations = notNull(Collections.unmodifiableMap(declarations));
+            this.files = new HashMap<>();
+            for (File file : files) {
+                this.files.put(file, new FileStamp(file.lastModified(), file.length()));
+            }
+            this.verified = true;
+        }
+
+        /**
+         * Creates an empty summary, to be filled while loading.
+         */
+        private HeaderSummary() {
+            this.declarations = new HashMap<>();
+            this.files = new HashMap<>();
+        }
+
+        /**
+         * Returns the declarations of the header.
+         *
+         * @return Function name -> presence condition(s) of declaration(s). Not modifiable.
+         */
+        public @NonNull Map<@NonNull String, @NonNull List<@NonNull Formula>> getDeclarations() {
+            return declarations;
+        }
+
+        /**
+         * Returns the header itself and all headers included by it.
+         *
+         * @return The files that this summary was created from.
+         */
+        public @NonNull Set<@NonNull File> getFiles() {
+            return notNull(files.keySet());
+        }
+
+        /**
+         * Checks whether all presence conditions of this summary consist only of Boolean operators, i.e. whether
+         * they can be parsed again after they were stored.
+         *
+         * @return Whether this summary can be persisted.
+         */
+        private boolean isBoolean() {
+            for (List<@NonNull Formula> pcs : declarations.values()) {
+                for (Formula pc : pcs) {
+                    if (!FunctionDeclarationIndex.isBoolean(pc)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+    }
+
+    private @NonNull ConcurrentMap<@NonNull File, @NonNull HeaderSummary> headers;
+
+    /**
+     * The current state of all files that stored summaries were compared against in this run. Each file is only
+     * checked once per run.
+     */
+    private @NonNull ConcurrentMap<@NonNull File, @NonNull FileStamp> currentStamps;
+
+    private @Nullable File storage;
+
+    private @NonNull String settingsHash;
+
+    /**
+     * Creates a new index.
+     *
+     * @param storage The file to persist this index in, or <code>null</code> if this index should not be persisted.
+     *      If the file exists, the entries stored in it are loaded.
+     * @param settingsHash A hash of all extractor settings that influence the presence conditions. Stored entries
+     *      that were created with different settings are discarded.
+     * @param variableCache The cache to use for the variables of loaded presence conditions.
+     */
+    public FunctionDeclarationIndex(@Nullable File storage, @NonNull String settingsHash,
+            @NonNull VariableCache variableCache) {
+        this.headers = new ConcurrentHashMap<>();
+        this.currentStamps = new ConcurrentHashMap<>();
+        this.storage = storage;
+        this.settingsHash = settingsHash;
+
+        if (storage != null) {
+            boolean compact = true;
+            if (storage.isFile()) {
+                try {
+                    compact = !load(storage, variableCache);
+                } catch (IOException e) {
+                    LOGGER.logException("Can't read function declaration index " + storage, e);
+                    headers.clear();
+                }
+            }
+            if (compact) {
+                compact(storage);
+            }
+        }
+    }
+
+    /**
+     * Returns the summary of the given header, if this index contains an up-to-date one.
+     *
+     * @param header The header file.
+     *
+     * @return The summary of the header, or <code>null</code> if the header was not yet collected (or it changed
+     *      since it was collected).
+     */
+    public @Nullable HeaderSummary get(@NonNull File header) {
+        HeaderSummary summary = headers.get(header);
+        if (summary != null && !isUpToDate(summary)) {
+            summary = null;
+        }
+        return summary;
+    }
+
+    /**
+     * Returns the summary of the given header. If the header was not yet collected (or it changed since it was
+     * collected), the given collector is called to create the summary, and the result is stored in this index.
+     *
+     * @param header The header file.
+     * @param collector Collects the summary of the header, if needed.
+     *
+     * @return The summary of the header.
+     */
+    public @NonNull HeaderSummary getSummary(@NonNull File header,
+            @NonNull Supplier<@NonNull HeaderSummary> collector) {
+
+        HeaderSummary summary = get(header);
+        if (summary == null) {
+            summary = put(header, collector.get());
+        }
+        return summary;
+    }
+
+    /**
+     * Stores the given summary for the given header, unless this index already contains an up-to-date summary for
+     * it.
+     *
+     * @param header The header file.
+     * @param summary The new summary of the header.
+     *
+     * @return The summary that is stored for the header afterwards. This is the summary of another thread, if that
+     *      one was faster.
+     */
+    public @NonNull HeaderSummary put(@NonNull File header, @NonNull HeaderSummary summary) {
+        HeaderSummary result;
+        do {
+            HeaderSummary existing = headers.get(header);
+            if (existing != null && isUpToDate(existing)) {
+                result = existing;
+            } else if (existing == null) {
+                result = headers.putIfAbsent(header, summary) == null ? summary : null;
+            } else {
+                result = headers.replace(header, existing, summary) ? summary : null;
+            }
+            // result is null if another thread modified the entry in between; try again
+        } while (result == null);
+
+        if (result == summary) {
+            append(header, summary);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether the given summary is still valid, i.e. neither the header nor any header included by it
+     * changed since the summary was created. Each file is only checked once per run.
+     *
+     * @param summary The summary to check.
+     *
+     * @return Whether the summary may be used.
+     */
+    private boolean isUpToDate(@NonNull HeaderSummary summary) {
+        if (!summary.verified) {
+            for (Map.Entry<@NonNull File, @NonNull FileStamp> entry : summary.files.entrySet()) {
+                FileStamp current = currentStamps.computeIfAbsent(notNull(entry.getKey()),
+                        (file) -> new FileStamp(file.lastModified(), file.length()));
+                if (!entry.getValue().equals(current)) {
+                    return false;
+                }
+            }
+            summary.verified = true;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given formula consists only of Boolean operators.
+     *
+     * @param formula The formula to check.
+     *
+     * @return Whether the formula can be parsed by the {@link CStyleBooleanGrammar}.
+     */
+    private static boolean isBoolean(@NonNull Formula formula) {
+        boolean result;
+        if (formula instanceof Variable || formula instanceof True || formula instanceof False) {
+            result = true;
+        } else if (formula instanceof Negation) {
+            result = isBoolean(((Negation) formula).getFormula());
+        } else if (formula instanceof Conjunction) {
+            result = isBoolean(((Conjunction) formula).getLeft()) && isBoolean(((Conjunction) formula).getRight());
+        } else if (formula instanceof Disjunction) {
+            result = isBoolean(((Disjunction) formula).getLeft()) && isBoolean(((Disjunction) formula).getRight());
+        } else {
+            result = false;
+        }
+        return result;
+    }
+
+    /**
+     * Loads all entries from the given file. Entries that can't be read are ignored. If the file was created with
+     * different settings, nothing is loaded.
+     *
+     * @param file The file to load.
+     * @param variableCache The cache to use for the variables of the presence conditions.
+     *
+     * @return Whether all entries of the file were loaded; <code>false</code> if the file contains entries that are
+     *      outdated or can't be read, i.e. the file should be compacted.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    private boolean load(@NonNull File file, @NonNull VariableCache variableCache) throws IOException {
+        Parser<@NonNull Formula> parser = new Parser<>(new CStyleBooleanGrammar(variableCache));
+        int numEntries = 0;
+        boolean allRead = true;
+
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            if (line == null || !line.equals(SETTINGS_PREFIX + settingsHash)) {
+                LOGGER.logInfo("Function declaration index " + file + " was created with different settings;"
+                        + " discarding it");
+                return false;
+            }
+
+            File header = null;
+            HeaderSummary summary = null;
+
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+
+                if (line.startsWith(HEADER_PREFIX) && parts.length == 2) {
+                    numEntries++;
+                    header = new File(parts[1]);
+                    summary = new HeaderSummary();
+                    // later entries (of a changed header) replace earlier ones
+                    headers.put(header, summary);
+
+                } else if (line.startsWith(FILE_PREFIX) && parts.length == 4 && summary != null) {
+                    try {
+                        summary.files.put(new File(parts[1]),
+                                new FileStamp(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    } catch (NumberFormatException e) {
+                        // without the stamp, a change of this file would not be detected
+                        LOGGER.logWarning("Invalid line in function declaration index: " + line);
+                        headers.remove(header, summary);
+                        summary = null;
+                        allRead = false;
+                    }
+
+                } else if (line.startsWith(DECLARATION_PREFIX) && parts.length == 3 && summary != null) {
+                    try {
+                        summary.declarations.computeIfAbsent(notNull(parts[1]), (name) -> new LinkedList<>())
+                                .add(parser.parse(notNull(parts[2])));
+                    } catch (ExpressionFormatException e) {
+                        LOGGER.logWarning("Can't parse stored declaration condition " + parts[2] + " of " + header);
+                        headers.remove(header, summary);
+                        summary = null;
+                        allRead = false;
+                    }
+                }
+            }
+        }
+
+        LOGGER.logDebug("Loaded function declarations of " + headers.size() + " headers from " + file);
+
+        // later entries of changed headers replace earlier ones; the earlier ones are dropped by compacting
+        return allRead && numEntries == headers.size();
+    }
+
+    /**
+     * Re-writes the given file with the current entries of this index, dropping outdated entries.
+     *
+     * @param file The file to write.
+     */
+    private synchronized void compact(@NonNull File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new FileWriter(tmp))) {
+            out.write(SETTINGS_PREFIX + settingsHash + "\n");
+            for (Map.Entry<@NonNull File, @NonNull HeaderSummary> entry : headers.entrySet()) {
+                write(out, notNull(entry.getKey()), notNull(entry.getValue()));
+            }
+        } catch (IOException e) {
+            LOGGER.logException("Can't write function declaration index " + tmp, e);
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.logException("Can't replace function declaration index " + file, e);
+        }
+    }
+
+    /**
+     * Appends the given summary to the {@link #storage} file, if configured.
+     *
+     * @param header The header file.
+     * @param summary The summary of the header.
+     */
+    private synchronized void append(@NonNull File header, @NonNull HeaderSummary summary) {
+        File storage = this.storage;
+        if (storage == null) {
+            return;
+        }
+
+        try (Writer out = new BufferedWriter(new FileWriter(storage, true))) {
+            write(out, header, summary);
+        } catch (IOException e) {
+            LOGGER.logException("Can't write function declaration index " + storage, e);
+        }
+    }
+
+    /**
+     * Writes the given summary. Summaries with non-Boolean presence conditions are skipped, since they can't be
+     * parsed again; these headers are collected again in each run.
+     *
+     * @param out The writer to write to.
+     * @param header The header file.
+     * @param summary The summary of the header.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void write(@NonNull Writer out, @NonNull File header, @NonNull HeaderSummary summary)
+            throws IOException {
+
+        if (!summary.isBoolean()) {
+            LOGGER.logDebug("Not storing declarations of " + header + ", since they have non-Boolean conditions");
+            return;
+        }
+
+        out.write(HEADER_PREFIX + header.getPath() + "\n");
+        for (Map.Entry<@NonNull File, @NonNull FileStamp> file : summary.files.entrySet()) {
+            out.write(FILE_PREFIX + file.getKey().getPath() + "\t" + file.getValue().lastModified + "\t"
+                    + file.getValue().size + "\n");
+        }
+        for (Map.Entry<@NonNull String, @NonNull List<@NonNull Formula>> declaration
+                : summary.declarations.entrySet()) {
+            for (Formula pc : declaration.getValue()) {
+                out.write(DECLARATION_PREFIX + declaration.getKey() + "\t" + pc.toString() + "\n");
+            }
+        }
+    }
+
+}
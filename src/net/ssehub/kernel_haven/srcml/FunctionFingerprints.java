@@ -0,0 +1,350 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_END;
+import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_START;
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import net.ssehub.kernel_haven.code_model.ast.BranchStatement;
+import net.ssehub.kernel_haven.code_model.ast.CaseStatement;
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.CodeList;
+import net.ssehub.kernel_haven.code_model.ast.Comment;
+import net.ssehub.kernel_haven.code_model.ast.CompoundStatement;
+import net.ssehub.kernel_haven.code_model.ast.CppBlock;
+import net.ssehub.kernel_haven.code_model.ast.CppStatement;
+import net.ssehub.kernel_haven.code_model.ast.ErrorElement;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElementVisitor;
+import net.ssehub.kernel_haven.code_model.ast.Label;
+import net.ssehub.kernel_haven.code_model.ast.LoopStatement;
+import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
+import net.ssehub.kernel_haven.code_model.ast.SwitchStatement;
+import net.ssehub.kernel_haven.code_model.ast.TypeDefinition;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Content fingerprints of the {@link Function}s of a single file, for re-using the converted functions of a previous
+ * result. The fingerprint of a function is computed from its (pre-processed) srcML XML subtree and the C-preprocessor
+ * conditions it is nested in. Line numbers are taken relative to the start of the function, so that a function that
+ * only moved (e.g. because lines above it were added) is still re-used; the line numbers of the re-used function are
+ * shifted accordingly.
+ * <p>
+ * Functions that contain {@code <kh:reference>} nodes (i.e. their structure is interleaved with C-preprocessor blocks
+ * outside of them) or #include directives (whose expansion depends on the headers) are never fingerprinted.
+ *
+ * @author Adam
+ */
+class FunctionFingerprints {
+
+    /**
+     * Shifts the line numbers of all elements of an AST.
+     */
+    private static class LineShifter implements ISyntaxElementVisitor {
+
+        private int delta;
+
+        private @NonNull Set<@NonNull ISyntaxElement> shifted;
+
+        /**
+         * Creates a new {@link LineShifter}.
+         *
+         * @param delta The number of lines to add to all line numbers.
+         */
+        public LineShifter(int delta) {
+            this.delta = delta;
+            this.shifted = notNull(Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+
+        /**
+         * Shifts the line numbers of the given element, if not done already.
+         *
+         * @param element The element to shift.
+         */
+        private void shift(@NonNull ISyntaxElement element) {
+            if (shifted.add(element)) {
+                if (element.getLineStart() >= 0) {
+                    element.setLineStart(element.getLineStart() + delta);
+                }
+                if (element.getLineEnd() >= 0) {
+                    element.setLineEnd(element.getLineEnd() + delta);
+                }
+            }
+        }
+
+        @Override
+        public void visitBranchStatement(@NonNull BranchStatement branchStatement) {
+            shift(branchStatement);
+            ISyntaxElementVisitor.super.visitBranchStatement(branchStatement);
+        }
+
+        @Override
+        public void visitCaseStatement(@NonNull CaseStatement caseStatement) {
+            shift(caseStatement);
+            ISyntaxElementVisitor.super.visitCaseStatement(caseStatement);
+        }
+
+        @Override
+        public void visitCode(@NonNull Code code) {
+            shift(code);
+            ISyntaxElementVisitor.super.visitCode(code);
+        }
+
+        @Override
+        public void visitCodeList(@NonNull CodeList code) {
+            shift(code);
+            ISyntaxElementVisitor.super.visitCodeList(code);
+        }
+
+        @Override
+        public void visitComment(@NonNull Comment comment) {
+            shift(comment);
+            ISyntaxElementVisitor.super.visitComment(comment);
+        }
+
+        @Override
+        public void visitCompoundStatement(@NonNull CompoundStatement block) {
+            shift(block);
+            ISyntaxElementVisitor.super.visitCompoundStatement(block);
+        }
+
+        @Override
+        public void visitCppBlock(@NonNull CppBlock block) {
+            shift(block);
+            ISyntaxElementVisitor.super.visitCppBlock(block);
+        }
+
+        @Override
+        public void visitCppStatement(@NonNull CppStatement cppStatement) {
+            shift(cppStatement);
+            ISyntaxElementVisitor.super.visitCppStatement(cppStatement);
+        }
+
+        @Override
+        public void visitFunction(@NonNull Function function) {
+            shift(function);
+            ISyntaxElementVisitor.super.visitFunction(function);
+        }
+
+        @Override
+        public void visitLabel(@NonNull Label label) {
+            shift(label);
+            ISyntaxElementVisitor.super.visitLabel(label);
+        }
+
+        @Override
+        public void visitLoopStatement(@NonNull LoopStatement loop) {
+            shift(loop);
+            ISyntaxElementVisitor.super.visitLoopStatement(loop);
+        }
+
+        @Override
+        public void visitSingleStatement(@NonNull SingleStatement statement) {
+            shift(statement);
+            ISyntaxElementVisitor.super.visitSingleStatement(statement);
+        }
+
+        @Override
+        public void visitSwitchStatement(@NonNull SwitchStatement switchStatement) {
+            shift(switchStatement);
+            ISyntaxElementVisitor.super.visitSwitchStatement(switchStatement);
+        }
+
+        @Override
+        public void visitTypeDefinition(@NonNull TypeDefinition typeDef) {
+            shift(typeDef);
+            ISyntaxElementVisitor.super.visitTypeDefinition(typeDef);
+        }
+
+        @Override
+        public void visitErrorElement(@NonNull ErrorElement error) {
+            shift(error);
+            ISyntaxElementVisitor.super.visitErrorElement(error);
+        }
+
+    }
+
+    /**
+     * Fingerprint -> function of the previous result. Each function is re-used at most once.
+     */
+    private @NonNull Map<@NonNull String, @NonNull Function> previous;
+
+    /**
+     * The fingerprints of all functions of the current result. Identity-based.
+     */
+    private @NonNull Map<@NonNull Function, @NonNull String> current;
+
+    private int numReused;
+
+    /**
+     * Creates a new set of fingerprints for converting a single file.
+     *
+     * @param previous The functions of the previous result of the file, by their fingerprint. May be empty.
+     */
+    public FunctionFingerprints(@NonNull Map<@NonNull String, @NonNull Function> previous) {
+        this.previous = new HashMap<>(previous);
+        this.current = new IdentityHashMap<>();
+    }
+
+    /**
+     * Returns the function of the previous result with the given fingerprint. The line numbers of the returned
+     * function are shifted to the given start line. The function is recorded in the current result.
+     *
+     * @param fingerprint The fingerprint of the function to convert.
+     * @param lineStart The start line of the function to convert.
+     *
+     * @return The previously converted function, or <code>null</code> if the previous result doesn't contain an
+     *      (unused) function with this fingerprint.
+     */
+    public @Nullable Function reuse(@NonNull String fingerprint, int lineStart) {
+        Function result = previous.remove(fingerprint);
+        if (result != null) {
+            int delta = lineStart - result.getLineStart();
+            if (delta != 0) {
+                result.accept(new LineShifter(delta));
+            }
+            current.put(result, fingerprint);
+            numReused++;
+        }
+        return result;
+    }
+
+    /**
+     * Records the fingerprint of a newly converted function of the current result.
+     *
+     * @param function The converted function.
+     * @param fingerprint The fingerprint of the function.
+     */
+    public void add(@NonNull Function function, @NonNull String fingerprint) {
+        current.put(function, fingerprint);
+    }
+
+    /**
+     * Returns the fingerprints of all functions of the current result.
+     *
+     * @return Function -> fingerprint. Identity-based.
+     */
+    public @NonNull Map<@NonNull Function, @NonNull String> getCurrent() {
+        return current;
+    }
+
+    /**
+     * Returns the number of functions that were re-used from the previous result.
+     *
+     * @return The number of re-used functions.
+     */
+    public int getNumReused() {
+        return numReused;
+    }
+
+    /**
+     * Computes the fingerprint of the given function.
+     *
+     * @param function The (pre-processed) {@code <function>} XML node.
+     * @param condition The immediate C-preprocessor condition that the function is nested in.
+     * @param presenceCondition The presence condition of the function.
+     *
+     * @return The fingerprint, or <code>null</code> if the function can't be re-used.
+     */
+    public static @Nullable String compute(@NonNull Node function, @NonNull Formula condition,
+            @NonNull Formula presenceCondition) {
+
+        StringBuilder content = new StringBuilder();
+        content.append(condition).append('\n').append(presenceCondition).append('\n');
+        if (!append(content, function, (int) function.getUserData(LINE_START))) {
+            return null;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest(content.toString().getBytes(StandardCharsets.UTF_8))) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Appends the given XML subtree to the fingerprint content.
+     *
+     * @param content The fingerprint content to append to.
+     * @param node The XML node to append.
+     * @param functionStart The start line of the function; line numbers are appended relative to this.
+     *
+     * @return Whether the function can be re-used, i.e. the subtree contains no {@code <kh:reference>} and no
+     *      {@code <cpp:include>}.
+     */
+    private static boolean append(@NonNull StringBuilder content, @NonNull Node node, int functionStart) {
+        String name = node.getNodeName();
+        if (name.equals("kh:reference") || name.equals("cpp:include")) {
+            return false;
+        }
+
+        content.append('<').append(name);
+        Object lineStart = node.getUserData(LINE_START);
+        Object lineEnd = node.getUserData(LINE_END);
+        if (lineStart instanceof Integer && lineEnd instanceof Integer) {
+            content.append(' ').append((int) lineStart - functionStart)
+                    .append(' ').append((int) lineEnd - functionStart);
+        }
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = notNull(attributes.item(i));
+                content.append(' ').append(attribute.getNodeName()).append('=').append(attribute.getNodeValue());
+            }
+        }
+        content.append('>');
+
+        if (node.getNodeType() == Node.TEXT_NODE) {
+            content.append(node.getTextContent());
+        }
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (!append(content, notNull(children.item(i)), functionStart)) {
+                return false;
+            }
+        }
+        content.append("</>");
+        return true;
+    }
+
+}
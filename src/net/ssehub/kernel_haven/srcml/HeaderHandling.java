@@ -34,6 +34,13 @@ public enum HeaderHandling {
      */
     EXPAND_FUNCTION_CONDITION,
     
+    /**
+     * Like {@link #EXPAND_FUNCTION_CONDITION}, but does not include the headers. Instead, each header is parsed once
+     * into a summary of its function declarations (and the ones of the headers included by it), which is then used
+     * for all files that include it. The #include directives are left as preprocessor statements in the AST.
+     */
+    EXPAND_FUNCTION_CONDITION_FROM_SUMMARY,
+    
     /**
      * Parse the headers and include their content instead of the #include directive.
      */
@@ -19,45 +19,69 @@ package net.ssehub.kernel_haven.srcml;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
 import java.io.File;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
-import net.ssehub.kernel_haven.code_model.SourceFile;
-import net.ssehub.kernel_haven.code_model.ast.BranchStatement;
-import net.ssehub.kernel_haven.code_model.ast.CaseStatement;
 import net.ssehub.kernel_haven.code_model.ast.Code;
-import net.ssehub.kernel_haven.code_model.ast.CodeList;
-import net.ssehub.kernel_haven.code_model.ast.Comment;
-import net.ssehub.kernel_haven.code_model.ast.CompoundStatement;
-import net.ssehub.kernel_haven.code_model.ast.CppBlock;
 import net.ssehub.kernel_haven.code_model.ast.CppStatement;
 import net.ssehub.kernel_haven.code_model.ast.CppStatement.Type;
 import net.ssehub.kernel_haven.code_model.ast.ErrorElement;
-import net.ssehub.kernel_haven.code_model.ast.Function;
 import net.ssehub.kernel_haven.code_model.ast.ICode;
 import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
-import net.ssehub.kernel_haven.code_model.ast.ISyntaxElementVisitor;
-import net.ssehub.kernel_haven.code_model.ast.Label;
-import net.ssehub.kernel_haven.code_model.ast.LoopStatement;
 import net.ssehub.kernel_haven.code_model.ast.ReferenceElement;
-import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
-import net.ssehub.kernel_haven.code_model.ast.SwitchStatement;
-import net.ssehub.kernel_haven.code_model.ast.TypeDefinition;
 import net.ssehub.kernel_haven.util.CodeExtractorException;
+import net.ssehub.kernel_haven.util.FormatException;
 import net.ssehub.kernel_haven.util.Logger;
 import net.ssehub.kernel_haven.util.null_checks.NonNull;
 import net.ssehub.kernel_haven.util.null_checks.Nullable;
 
 /**
- * Replaces #include directives with the parsed contents of the header they reference. TODO: Currently only supports
- * quote includes (#include "header.h") that are relative to the file being parsed.
+ * Replaces #include directives with the parsed contents of the header they reference. Header paths are resolved with
+ * the {@link IncludePathResolver} of the extractor.
+ * <p>
+ * Cyclic #includes (e.g. a.h includes b.h, which includes a.h again) are replaced by an {@link ErrorElement} at the
+ * point where the cycle closes.
  * 
  * @author Adam
  */
-class IncludeExpander implements ISyntaxElementVisitor {
+class IncludeExpander implements AstPostProcessor.IStage {
     
     private static final Logger LOGGER = Logger.get();
     
+    /**
+     * The headers that are currently parsed by the current thread, i.e. the chain of headers that included each
+     * other.
+     */
+    private static final @NonNull ThreadLocal<@NonNull Set<@NonNull File>> PARSING
+            = notNull(ThreadLocal.withInitial(HashSet::new));
+    
+    /**
+     * Header parsing task -> thread that runs it. Only contains the tasks that are currently running.
+     */
+    private static final @NonNull ConcurrentMap<@NonNull Future<?>, @NonNull Thread> RUNNERS
+            = new ConcurrentHashMap<>();
+    
+    /**
+     * Thread -> header parsing task (running in another thread) that it waits for. Together with {@link #RUNNERS},
+     * this detects cycles of threads that wait for each other's headers.
+     */
+    private static final @NonNull ConcurrentMap<@NonNull Thread, @NonNull Future<?>> WAITING_FOR
+            = new ConcurrentHashMap<>();
+    
     /**
      * The folder of the currently parsed C file.
      */
@@ -65,27 +89,40 @@ class IncludeExpander implements ISyntaxElementVisitor {
     
     private @NonNull SrcMLExtractor extractor;
     
-    private @NonNull Deque<@NonNull ISyntaxElement> parents;
+    /**
+     * The header handling of the currently parsed C file. Included headers are parsed with this, too.
+     */
+    private @NonNull HeaderHandling fileHeaderHandling;
+    
+    /**
+     * The headers that are parsed in the background, see {@link #prefetch(Document)}.
+     */
+    private @NonNull Map<@NonNull File, @NonNull Future<@NonNull ISyntaxElement>> prefetched;
     
     /**
      * Creates a new {@link IncludeExpander} for the given target file.
      * 
      * @param absoulteTarget The absolute path to the file that we are expanding #includes for.
      * @param extractor The extractor to use for parsing included headers.
+     * @param fileHeaderHandling The header handling of the file that we are expanding #includes for. Usually the
+     *      configured header handling of the extractor, unless it is downgraded by the {@link MemoryGovernor}.
      */
-    public IncludeExpander(@NonNull File absoulteTarget, @NonNull SrcMLExtractor extractor) {
+    public IncludeExpander(@NonNull File absoulteTarget, @NonNull SrcMLExtractor extractor,
+            @NonNull HeaderHandling fileHeaderHandling) {
         this.extractor = extractor;
+        this.fileHeaderHandling = fileHeaderHandling;
         this.folder = notNull(absoulteTarget.getParentFile());
-        this.parents = new LinkedList<>();
+        this.prefetched = new HashMap<>();
     }
     
     /**
-     * Does #include expansion on the given file.
+     * Does #include expansion on the given file. To combine this with other post-processing, pass this as a stage to
+     * an {@link AstPostProcessor} instead.
      * 
      * @param file The file to expand #includes in.
      */
     public void expand(@NonNull ISyntaxElement file) {
-        file.accept(this);
+        new AstPostProcessor(this).process(file);
     }
 
     /**
@@ -96,7 +133,7 @@ class IncludeExpander implements ISyntaxElementVisitor {
      * @return The path to the system-include file, or <code>null</code> if not found.
      */
     private @Nullable File findSystemFile(@NonNull String include) {
-        return null; // TODO AK: currently not supported
+        return extractor.getIncludePathResolver().findSystemFile(include);
     }
     
     /**
@@ -108,20 +145,7 @@ class IncludeExpander implements ISyntaxElementVisitor {
      * @return The path to the quote-include file, or <code>null</code> if not found.
      */
     private @Nullable File findQuoteFile(@NonNull String include) {
-        File result = null;
-        
-        // try relative to currently parsed file
-        result = new File(folder, include);
-        if (!result.isFile()) {
-            result = null;
-        }
-        
-        // if no "local" file was found, fall back to system include
-        if (result == null) {
-            result = findSystemFile(include);
-        }
-        
-        return result;
+        return extractor.getIncludePathResolver().findQuoteFile(folder, include);
     }
     
     /**
@@ -153,165 +177,329 @@ class IncludeExpander implements ISyntaxElementVisitor {
         return result;
     }
     
-    @Override
-    public void visitCppStatement(@NonNull CppStatement cppStatement) {
-        if (cppStatement.getType() == Type.INCLUDE) {
-            ICode code = cppStatement.getExpression();
-            if (code instanceof Code) {
-                String include = notNull(((Code) code).getText().trim());
-                File file = findFile(include);
+    /**
+     * Finds the header file that is included by the given #include directive.
+     * 
+     * @param include The #include directive.
+     * 
+     * @return The location of the included header, or <code>null</code> if the given statement is not an #include
+     *      directive, or the header could not be found.
+     */
+    @Nullable File findIncludedFile(@NonNull CppStatement include) {
+        File result = null;
+        
+        ICode code = include.getExpression();
+        if (include.getType() == Type.INCLUDE && code instanceof Code) {
+            String includeStr = notNull(((Code) code).getText().trim());
+            result = findFile(includeStr);
+            
+            if (result == null) {
+                LOGGER.logWarning("Could not find header " + includeStr);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Starts parsing all headers included in the given XML document in the background, on the thread pool of the
+     * extractor. This does nothing if the extractor has no thread pool for this. {@link #parseHeader(File)} uses the
+     * results of these background parses.
+     * 
+     * @param doc The XML document of the file that we are expanding #includes for.
+     */
+    public void prefetch(@NonNull Document doc) {
+        ExecutorService executor = extractor.getHeaderPrefetchExecutor();
+        if (executor == null) {
+            return;
+        }
+        
+        NodeList files = doc.getElementsByTagName("cpp:file");
+        for (int i = 0; i < files.getLength(); i++) {
+            Node node = files.item(i);
+            Node parent = node.getParentNode();
+            if (parent == null || !parent.getNodeName().equals("cpp:include")) {
+                continue;
+            }
+            
+            String include = notNull(node.getTextContent().trim());
+            File file = null;
+            if (include.startsWith("<") || include.startsWith("\"")) {
+                file = findFile(include);
+            }
+            
+            if (file != null) {
+                File header = file;
+                ConcurrentMap<@NonNull File, @NonNull FutureTask<@NonNull ISyntaxElement>> sharedHeaders
+                        = extractor.getSharedHeaders(fileHeaderHandling);
                 
-                if (file != null) {
-                    LOGGER.logDebug("Parsing include: " + include, "-> " + file);
-                    
-                    ISyntaxElement parent = notNull(parents.peek());
-                    
-                    try {
-                        // TODO AK: use some kind of cache to prevent endless recursion
-                        SourceFile<ISyntaxElement> header = extractor.parseFile(file, file);
-                        
-                        LOGGER.logDebug("Replacing #include with parsed header " + file);
-                        
-                        parent.replaceNestedElement(cppStatement, header.getElement(0));
-                        
-                    } catch (CodeExtractorException e) {
-                        Throwable exc = e;
-                        if (e.getCause() != null) {
-                            exc = e.getCause();
+                if (sharedHeaders != null) {
+                    FutureTask<@NonNull ISyntaxElement> task = createParseTask(header);
+                    if (sharedHeaders.putIfAbsent(header, task) == null) {
+                        LOGGER.logDebug("Prefetching shared include: " + header);
+                        if (!execute(executor, task)) {
+                            break;
                         }
-                        ErrorElement error = new ErrorElement(cppStatement.getPresenceCondition(),
-                                "Can't parse header " + file + ": " + exc.getMessage());
-                        error.setSourceFile(cppStatement.getSourceFile());
-                        error.setLineStart(cppStatement.getLineStart());
-                        error.setLineEnd(cppStatement.getLineEnd());
-                        error.setCondition(cppStatement.getCondition());
-                        parent.replaceNestedElement(cppStatement, error);
                     }
                     
-                } else {
-                    LOGGER.logWarning("Could not find header " + include);
+                } else if (!prefetched.containsKey(header)) {
+                    LOGGER.logDebug("Prefetching include: " + header);
+                    FutureTask<@NonNull ISyntaxElement> task = createParseTask(header);
+                    prefetched.put(header, task);
+                    if (!execute(executor, task)) {
+                        break;
+                    }
                 }
-                
             }
         }
-        
-        // no recursion needed
     }
     
-    /*
-     * All other visit*() methods just update the parents stack
+    /**
+     * Starts the given prefetch task on the given executor.
+     * 
+     * @param executor The thread pool of the extractor.
+     * @param task The task to run.
+     * 
+     * @return Whether the task was started; <code>false</code> if the thread pool is already shut down. The task is
+     *      then run by {@link #parseHeader(File)} instead.
      */
-    
-    @Override
-    public void visitBranchStatement(@NonNull BranchStatement branchStatement) {
-        parents.push(branchStatement);
-        ISyntaxElementVisitor.super.visitBranchStatement(branchStatement);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitCaseStatement(@NonNull CaseStatement caseStatement) {
-        parents.push(caseStatement);
-        ISyntaxElementVisitor.super.visitCaseStatement(caseStatement);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitCode(@NonNull Code code) {
-        parents.push(code);
-        ISyntaxElementVisitor.super.visitCode(code);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitCodeList(@NonNull CodeList code) {
-        parents.push(code);
-        ISyntaxElementVisitor.super.visitCodeList(code);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitComment(@NonNull Comment comment) {
-        parents.push(comment);
-        ISyntaxElementVisitor.super.visitComment(comment);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitCompoundStatement(@NonNull CompoundStatement block) {
-        parents.push(block);
-        ISyntaxElementVisitor.super.visitCompoundStatement(block);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitCppBlock(@NonNull CppBlock block) {
-        parents.push(block);
-        ISyntaxElementVisitor.super.visitCppBlock(block);
-        parents.pop();
-    }
-    
-    @Override
-    public void visitFile(net.ssehub.kernel_haven.code_model.ast.@NonNull File file) {
-        parents.push(file);
-        ISyntaxElementVisitor.super.visitFile(file);
-        parents.pop();
+    private static boolean execute(@NonNull ExecutorService executor, @NonNull FutureTask<?> task) {
+        boolean result = true;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            result = false;
+        }
+        return result;
     }
     
-    @Override
-    public void visitFunction(@NonNull Function function) {
-        parents.push(function);
-        ISyntaxElementVisitor.super.visitFunction(function);
-        parents.pop();
+    /**
+     * Creates a task that parses the given header with the extractor.
+     * 
+     * @param header The header to parse.
+     * 
+     * @return A task that returns the AST of the header.
+     */
+    private @NonNull FutureTask<@NonNull ISyntaxElement> createParseTask(@NonNull File header) {
+        // the task registers itself in RUNNERS, so it needs a reference to itself
+        AtomicReference<FutureTask<@NonNull ISyntaxElement>> self = new AtomicReference<>();
+        FutureTask<@NonNull ISyntaxElement> task = new FutureTask<>(() -> {
+            Future<?> thisTask = notNull(self.get());
+            RUNNERS.put(thisTask, Thread.currentThread());
+            try {
+                return parseInThisThread(header);
+            } finally {
+                RUNNERS.remove(thisTask);
+            }
+        });
+        self.set(task);
+        return task;
     }
     
-    @Override
-    public void visitLabel(@NonNull Label label) {
-        parents.push(label);
-        ISyntaxElementVisitor.super.visitLabel(label);
-        parents.pop();
+    /**
+     * Parses the given header with the extractor, in the current thread.
+     * 
+     * @param header The header to parse.
+     * 
+     * @return The parsed AST of the header.
+     * 
+     * @throws CodeExtractorException If parsing the header fails.
+     */
+    private @NonNull ISyntaxElement parseInThisThread(@NonNull File header) throws CodeExtractorException {
+        Set<@NonNull File> parsing = notNull(PARSING.get());
+        parsing.add(header);
+        try {
+            return extractor.parseHeader(header, folder, fileHeaderHandling).getElement(0);
+        } finally {
+            parsing.remove(header);
+        }
     }
     
-    @Override
-    public void visitLoopStatement(@NonNull LoopStatement loop) {
-        parents.push(loop);
-        ISyntaxElementVisitor.super.visitLoopStatement(loop);
-        parents.pop();
+    /**
+     * Cancels all background parses started by {@link #prefetch(Document)} that were not used and did not start yet.
+     */
+    public void cancelPrefetches() {
+        for (Future<@NonNull ISyntaxElement> future : prefetched.values()) {
+            future.cancel(false);
+        }
+        prefetched.clear();
     }
     
-    @Override
-    public void visitSingleStatement(@NonNull SingleStatement statement) {
-        parents.push(statement);
-        ISyntaxElementVisitor.super.visitSingleStatement(statement);
-        parents.pop();
+    /**
+     * Parses the given header file with the extractor. Depending on the header handling of the file, #includes
+     * in the header are handled recursively. If the header is already parsed in the background (see
+     * {@link #prefetch(Document)}), the result of that is used.
+     * <p>
+     * If the extractor shares header ASTs (see {@link SrcMLExtractor#getSharedHeaders(HeaderHandling)}), the shared
+     * AST of the header is returned; this must not be modified.
+     * 
+     * @param header The header file, as returned by {@link #findIncludedFile(CppStatement)}.
+     * 
+     * @return The parsed AST of the header.
+     * 
+     * @throws CodeExtractorException If parsing the header fails.
+     */
+    @NonNull ISyntaxElement parseHeader(@NonNull File header) throws CodeExtractorException {
+        if (notNull(PARSING.get()).contains(header)) {
+            throw cyclicInclude(header);
+        }
+        
+        ConcurrentMap<@NonNull File, @NonNull FutureTask<@NonNull ISyntaxElement>> sharedHeaders
+                = extractor.getSharedHeaders(fileHeaderHandling);
+        
+        if (sharedHeaders != null) {
+            FutureTask<@NonNull ISyntaxElement> task = createParseTask(header);
+            FutureTask<@NonNull ISyntaxElement> existing = sharedHeaders.putIfAbsent(header, task);
+            if (existing != null) {
+                task = existing;
+            }
+            
+            // does nothing if the task is already running in (or was completed by) another thread
+            task.run();
+            
+            Thread current = Thread.currentThread();
+            WAITING_FOR.put(current, task);
+            try {
+                if (!task.isDone() && isWaitingForItself(current)) {
+                    throw cyclicInclude(header);
+                }
+                return getResult(header, task);
+            } finally {
+                WAITING_FOR.remove(current);
+            }
+        }
+        
+        // each prefetched AST is only used once, since the AST is modified after inclusion
+        Future<@NonNull ISyntaxElement> future = prefetched.remove(header);
+        
+        /*
+         * If the background parse did not start yet, we parse the header in this thread instead of waiting for it.
+         * This way, this never waits for a task that is queued behind the task of this thread (e.g. if this thread is
+         * a prefetching thread itself).
+         */
+        if (future != null && !future.cancel(false)) {
+            return getResult(header, future);
+        }
+        
+        return parseInThisThread(header);
     }
     
-    @Override
-    public void visitSwitchStatement(@NonNull SwitchStatement switchStatement) {
-        parents.push(switchStatement);
-        ISyntaxElementVisitor.super.visitSwitchStatement(switchStatement);
-        parents.pop();
+    /**
+     * Checks whether the given thread waits (indirectly) for a header task that waits for the given thread. Each
+     * thread registers in {@link #WAITING_FOR} before checking, so at least one thread of a cycle detects it.
+     * 
+     * @param current The current thread, which is registered in {@link #WAITING_FOR}.
+     * 
+     * @return Whether waiting would never end.
+     */
+    private static boolean isWaitingForItself(@NonNull Thread current) {
+        Set<@NonNull Thread> visited = new HashSet<>();
+        Future<?> awaited = WAITING_FOR.get(current);
+        while (awaited != null) {
+            Thread runner = RUNNERS.get(awaited);
+            if (runner == current) {
+                return true;
+            }
+            if (runner == null || !visited.add(runner)) {
+                // not running yet, already finished, or a cycle that does not involve this thread
+                break;
+            }
+            awaited = WAITING_FOR.get(runner);
+        }
+        return false;
     }
     
-    @Override
-    public void visitTypeDefinition(@NonNull TypeDefinition typeDef) {
-        parents.push(typeDef);
-        ISyntaxElementVisitor.super.visitTypeDefinition(typeDef);
-        parents.pop();
+    /**
+     * Creates the exception for a cyclic #include of the given header.
+     * 
+     * @param header The header that includes itself (indirectly).
+     * 
+     * @return The exception to throw.
+     */
+    private static @NonNull CodeExtractorException cyclicInclude(@NonNull File header) {
+        LOGGER.logWarning("Cyclic #include of " + header);
+        return new CodeExtractorException(header, new FormatException("Cyclic #include of " + header));
     }
     
-    @Override
-    public void visitErrorElement(@NonNull ErrorElement error) {
-        parents.push(error);
-        ISyntaxElementVisitor.super.visitErrorElement(error);
-        parents.pop();
+    /**
+     * Waits for the given header parsing task to finish.
+     * 
+     * @param header The header that is parsed by the task.
+     * @param future The task.
+     * 
+     * @return The parsed AST of the header.
+     * 
+     * @throws CodeExtractorException If parsing the header failed.
+     */
+    private static @NonNull ISyntaxElement getResult(@NonNull File header,
+            @NonNull Future<@NonNull ISyntaxElement> future) throws CodeExtractorException {
+        
+        try {
+            return notNull(future.get());
+            
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CodeExtractorException) {
+                throw (CodeExtractorException) cause;
+            }
+            throw new CodeExtractorException(header, cause);
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodeExtractorException(header, e);
+        }
     }
     
     @Override
-    public void visitReference(@NonNull ReferenceElement referenceElement) {
-        parents.push(referenceElement);
-        ISyntaxElementVisitor.super.visitReference(referenceElement);
-        parents.pop();
+    public boolean process(@NonNull ISyntaxElement element, @NonNull AstPostProcessor processor) {
+        if (!(element instanceof CppStatement)) {
+            return true;
+        }
+        
+        CppStatement cppStatement = (CppStatement) element;
+        if (cppStatement.getType() == Type.INCLUDE) {
+            File file = findIncludedFile(cppStatement);
+            if (file != null) {
+                LOGGER.logDebug("Parsing include: " + file);
+                
+                try {
+                    ISyntaxElement header = parseHeader(file);
+                    
+                    if (extractor.getSharedHeaders(fileHeaderHandling) != null) {
+                        LOGGER.logDebug("Replacing #include with reference to shared header " + file);
+                        
+                        // the PC of the #include is applied at the reference, since the shared AST is not modified
+                        ReferenceElement reference = new ReferenceElement(cppStatement.getPresenceCondition(), header);
+                        reference.setSourceFile(cppStatement.getSourceFile());
+                        reference.setLineStart(cppStatement.getLineStart());
+                        reference.setLineEnd(cppStatement.getLineEnd());
+                        reference.setCondition(cppStatement.getCondition());
+                        processor.replace(reference);
+                        
+                    } else {
+                        LOGGER.logDebug("Replacing #include with parsed header " + file);
+                        
+                        processor.replace(header);
+                    }
+                    
+                } catch (CodeExtractorException e) {
+                    Throwable exc = e;
+                    if (e.getCause() != null) {
+                        exc = e.getCause();
+                    }
+                    ErrorElement error = new ErrorElement(cppStatement.getPresenceCondition(),
+                            "Can't parse header " + file + ": " + exc.getMessage());
+                    error.setSourceFile(cppStatement.getSourceFile());
+                    error.setLineStart(cppStatement.getLineStart());
+                    error.setLineEnd(cppStatement.getLineEnd());
+                    error.setCondition(cppStatement.getCondition());
+                    processor.replace(error);
+                }
+            }
+        }
+        
+        // no recursion needed; the headers are already expanded
+        return false;
     }
     
 }
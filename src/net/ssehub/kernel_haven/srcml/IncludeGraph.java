@@ -0,0 +1,230 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * The include graph of all translation units of an extractor run. This is built upfront from a cheap textual scan of
+ * the #include lines (i.e. without considering any preprocessor conditions). For each header, it counts how many
+ * translation units that were not yet parsed (transitively) include it. This is used to evict shared header ASTs
+ * once no pending translation unit needs them anymore.
+ * <p>
+ * Headers that are not found by the scan (e.g. because they are included via a macro) are not counted, and thus
+ * never reported as unused.
+ *
+ * @author Adam
+ */
+class IncludeGraph {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final @NonNull Pattern INCLUDE_PATTERN = notNull(
+            Pattern.compile("^\\s*#\\s*include\\s*([<\"][^>\"]*[>\"])"));
+
+    private @NonNull IncludePathResolver resolver;
+
+    /**
+     * File -> the headers that it directly includes. Filled lazily, while the graph is built or by
+     * {@link #getIncludedHeaders(File)}.
+     */
+    private @NonNull Map<@NonNull File, @NonNull List<@NonNull File>> directIncludes;
+
+    /**
+     * Header -> the number of pending translation units that (transitively) include it.
+     */
+    private @NonNull ConcurrentMap<@NonNull File, @NonNull AtomicInteger> pendingIncluders;
+
+    /**
+     * Creates a new, empty include graph.
+     *
+     * @param resolver The resolver to find the headers of #include directives with. This must be the same as the
+     *      one used by the {@link IncludeExpander}, so that the same header files are found.
+     */
+    public IncludeGraph(@NonNull IncludePathResolver resolver) {
+        this.resolver = resolver;
+        this.directIncludes = new ConcurrentHashMap<>();
+        this.pendingIncluders = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a translation unit that will be parsed later on. All headers that it includes are scanned. This must not
+     * be called concurrently, or while translation units are released.
+     *
+     * @param translationUnit The path to the source file.
+     */
+    public void addTranslationUnit(@NonNull File translationUnit) {
+        for (File header : getTransitiveIncludes(translationUnit, true)) {
+            pendingIncluders.computeIfAbsent(header, (file) -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the given translation unit as parsed. For all headers that are not included by any other pending
+     * translation unit anymore, the given consumer is called.
+     *
+     * @param translationUnit The path to the source file, as passed to {@link #addTranslationUnit(File)}.
+     * @param unusedHeaderHandler Called for each header that is no longer needed.
+     */
+    public void release(@NonNull File translationUnit, @NonNull Consumer<@NonNull File> unusedHeaderHandler) {
+        for (File header : getTransitiveIncludes(translationUnit, false)) {
+            AtomicInteger count = pendingIncluders.get(header);
+            if (count != null && count.decrementAndGet() == 0) {
+                LOGGER.logDebug("Header not needed by any pending file anymore: " + header);
+                unusedHeaderHandler.accept(header);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pending translation units that (transitively) include the given header.
+     *
+     * @param header The header file.
+     *
+     * @return The number of pending includers. 0 if the header is not known.
+     */
+    public int getPendingIncluders(@NonNull File header) {
+        AtomicInteger count = pendingIncluders.get(header);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Returns all headers that are (transitively) included by the given file. Files that were not yet scanned are
+     * scanned now. This may be called concurrently.
+     *
+     * @param file The file to get the included headers of.
+     *
+     * @return The set of all (transitively) included headers.
+     */
+    public @NonNull Set<@NonNull File> getIncludedHeaders(@NonNull File file) {
+        return getTransitiveIncludes(file, true);
+    }
+
+    /**
+     * Returns all headers that are (transitively) included by the given file.
+     *
+     * @param file The file to start at.
+     * @param scan Whether files that were not yet scanned should be scanned. If <code>false</code>, such files are
+     *      considered to not include anything.
+     *
+     * @return The set of all (transitively) included headers.
+     */
+    private @NonNull Set<@NonNull File> getTransitiveIncludes(@NonNull File file, boolean scan) {
+        Set<@NonNull File> result = new HashSet<>();
+        Deque<@NonNull File> toVisit = new ArrayDeque<>();
+        toVisit.push(file);
+
+        while (!toVisit.isEmpty()) {
+            File current = toVisit.pop();
+
+            List<@NonNull File> includes = directIncludes.get(current);
+            if (includes == null && scan) {
+                includes = scan(current);
+                directIncludes.put(current, includes);
+            }
+
+            if (includes != null) {
+                for (File header : includes) {
+                    if (result.add(header)) {
+                        toVisit.push(header);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Scans the #include lines of the given file and resolves the included headers.
+     *
+     * @param file The file to scan.
+     *
+     * @return The headers that are directly included by the given file.
+     */
+    private @NonNull List<@NonNull File> scan(@NonNull File file) {
+        List<@NonNull File> result = new LinkedList<>();
+        File folder = file.getParentFile();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.indexOf('#') == -1) {
+                    continue;
+                }
+
+                Matcher matcher = INCLUDE_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    File header = resolve(folder, notNull(matcher.group(1)));
+                    if (header != null) {
+                        result.add(header);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            LOGGER.logWarning("Can't scan includes of " + file + ": " + e.getMessage());
+            return notNull(Collections.emptyList());
+        }
+
+        return result;
+    }
+
+    /**
+     * Resolves the header of the given include directive.
+     *
+     * @param folder The folder of the including file.
+     * @param include The include directive, including the surrounding "" or &lt;&gt;.
+     *
+     * @return The header file, or <code>null</code> if not found.
+     */
+    private @Nullable File resolve(@Nullable File folder, @NonNull String include) {
+        String path = notNull(include.substring(1, include.length() - 1).trim());
+
+        File result = null;
+        if (include.startsWith("\"") && folder != null) {
+            result = resolver.findQuoteFile(folder, path);
+        } else {
+            result = resolver.findSystemFile(path);
+        }
+        return result;
+    }
+
+}
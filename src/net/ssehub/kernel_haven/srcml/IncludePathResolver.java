@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Resolves the paths of #include directives, similar to the <code>-I</code> and <code>-isystem</code> options of
+ * GCC. This is shared by all files parsed in one extractor run.
+ * <p>
+ * The content of each directory is listed only once; afterwards, checking whether a file exists is a lookup in the
+ * listing, instead of a call to the file system. The results of system-include lookups are additionally cached, both
+ * positive and negative. This assumes that the source tree does not change during an extractor run. Resolved paths
+ * are normalized, i.e. <code>.</code> and <code>..</code> segments are removed.
+ * <p>
+ * Names that only match an entry of a listing if case is ignored are checked with the file system, so that includes
+ * resolve the same way as with {@link File#isFile()} on case-insensitive file systems (e.g. on Windows and macOS).
+ *
+ * @author Adam
+ */
+class IncludePathResolver {
+
+    /**
+     * The content of a single directory.
+     */
+    private static class DirectoryListing {
+
+        private @NonNull Set<@NonNull String> files;
+
+        private @NonNull Set<@NonNull String> directories;
+
+        /**
+         * The lower case names of all {@link #files} and {@link #directories}.
+         */
+        private @NonNull Set<@NonNull String> lowerCaseNames;
+
+        /**
+         * Lists the content of the given directory.
+         *
+         * @param directory The directory to list. If this is not a directory, the listing is empty.
+         */
+        public DirectoryListing(@NonNull File directory) {
+            this.files = new HashSet<>();
+            this.directories = new HashSet<>();
+            this.lowerCaseNames = new HashSet<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+                for (Path entry : entries) {
+                    // a single stat call per entry
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // e.g. a dangling symbolic link
+                        continue;
+                    }
+
+                    String name = entry.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        directories.add(name);
+                        lowerCaseNames.add(toLowerCase(name));
+                    } else if (attributes.isRegularFile()) {
+                        files.add(name);
+                        lowerCaseNames.add(toLowerCase(name));
+                    }
+                }
+            } catch (IOException e) {
+                // not a directory (or not readable); leave the listing empty
+            }
+        }
+
+        /**
+         * Checks whether the given directory contains a file with the given name.
+         *
+         * @param directory The directory of this listing.
+         * @param name The name of the file.
+         *
+         * @return Whether the file exists.
+         */
+        public boolean containsFile(@NonNull File directory, @NonNull String name) {
+            return files.contains(name)
+                    || (lowerCaseNames.contains(toLowerCase(name)) && new File(directory, name).isFile());
+        }
+
+        /**
+         * Checks whether the given directory contains a sub-directory with the given name.
+         *
+         * @param directory The directory of this listing.
+         * @param name The name of the sub-directory.
+         *
+         * @return Whether the sub-directory exists.
+         */
+        public boolean containsDirectory(@NonNull File directory, @NonNull String name) {
+            return directories.contains(name)
+                    || (lowerCaseNames.contains(toLowerCase(name)) && new File(directory, name).isDirectory());
+        }
+
+    }
+
+    /**
+     * Splits include paths into their segments. <code>\</code> is only a separator where the platform uses it, like
+     * for {@link File}.
+     */
+    private static final @NonNull String SEPARATORS = File.separatorChar == '\\' ? "[/\\\\]" : "/";
+
+    /**
+     * The directories that are searched for both quote- and system-includes (like <code>-I</code>).
+     */
+    private @NonNull List<@NonNull File> includeDirectories;
+
+    /**
+     * The directories that are searched for both quote- and system-includes, after the {@link #includeDirectories}
+     * (like <code>-isystem</code>).
+     */
+    private @NonNull List<@NonNull File> systemIncludeDirectories;
+
+    private @NonNull ConcurrentMap<@NonNull File, @NonNull DirectoryListing> listings;
+
+    /**
+     * Include path (as found inside the #include &lt;&gt; directive) -> resolved file.
+     */
+    private @NonNull ConcurrentMap<@NonNull String, @NonNull File> resolvedSystemIncludes;
+
+    /**
+     * Include paths (as found inside the #include &lt;&gt; directive) that could not be found in any directory.
+     */
+    private @NonNull Set<@NonNull String> missingSystemIncludes;
+
+    /**
+     * Creates a new {@link IncludePathResolver}.
+     *
+     * @param includeDirectories The directories to search in (like <code>-I</code>).
+     * @param systemIncludeDirectories The directories to search in after the other include directories (like
+     *      <code>-isystem</code>).
+     */
+    public IncludePathResolver(@NonNull List<@NonNull File> includeDirectories,
+            @NonNull List<@NonNull File> systemIncludeDirectories) {
+        this.includeDirectories = includeDirectories;
+        this.systemIncludeDirectories = systemIncludeDirectories;
+        this.listings = new ConcurrentHashMap<>();
+        this.resolvedSystemIncludes = new ConcurrentHashMap<>();
+        this.missingSystemIncludes = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Returns the location of the given quote-include. This first searches relative to the including file, and then
+     * falls back to {@link #findSystemFile(String)}.
+     *
+     * @param folder The folder of the file that contains the #include directive.
+     * @param include The quote-include as found inside the #include "" directive.
+     *
+     * @return The path to the quote-include file, or <code>null</code> if not found.
+     */
+    public @Nullable File findQuoteFile(@NonNull File folder, @NonNull String include) {
+        File result = null;
+        if (exists(folder, include)) {
+            result = resolve(folder, include);
+        } else {
+            result = findSystemFile(include);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the location of the given system-include. The include directories are searched in order; the first
+     * match is returned.
+     *
+     * @param include The system-include as found inside the #include &lt;&gt; directive.
+     *
+     * @return The path to the system-include file, or <code>null</code> if not found.
+     */
+    public @Nullable File findSystemFile(@NonNull String include) {
+        File result = resolvedSystemIncludes.get(include);
+
+        if (result == null && !missingSystemIncludes.contains(include)) {
+            result = search(includeDirectories, include);
+            if (result == null) {
+                result = search(systemIncludeDirectories, include);
+            }
+
+            if (result != null) {
+                resolvedSystemIncludes.putIfAbsent(include, result);
+            } else {
+                missingSystemIncludes.add(include);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Searches the given include in the given directories.
+     *
+     * @param directories The directories to search in, in order.
+     * @param include The include path.
+     *
+     * @return The file in the first directory that contains the include, or <code>null</code> if not found.
+     */
+    private @Nullable File search(@NonNull List<@NonNull File> directories, @NonNull String include) {
+        for (File directory : directories) {
+            if (exists(directory, include)) {
+                return resolve(directory, include);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the normalized path of the given include in the given directory.
+     *
+     * @param directory The directory that contains the include.
+     * @param include The include path.
+     *
+     * @return The path of the include, without <code>.</code> and <code>..</code> segments.
+     */
+    private static @NonNull File resolve(@NonNull File directory, @NonNull String include) {
+        return notNull(new File(directory, include).toPath().normalize().toFile());
+    }
+
+    /**
+     * Checks whether the given relative path is a file in the given directory. This uses the cached
+     * {@link DirectoryListing}s of all directories along the path.
+     *
+     * @param directory The directory to start in.
+     * @param path The relative path, separated by <code>/</code> (or the separator of the platform).
+     *
+     * @return Whether the given path points to a file.
+     */
+    boolean exists(@NonNull File directory, @NonNull String path) {
+        File current = directory;
+        String[] parts = path.split(SEPARATORS);
+
+        for (int i = 0; i < parts.length - 1; i++) {
+            String part = parts[i];
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+
+            if (part.equals("..")) {
+                File parent = current.getParentFile();
+                current = parent != null ? parent : new File(current, part);
+
+            } else if (getListing(current).containsDirectory(current, notNull(part))) {
+                current = new File(current, part);
+
+            } else {
+                return false;
+            }
+        }
+
+        return parts.length > 0 && getListing(current).containsFile(current, notNull(parts[parts.length - 1]));
+    }
+
+    /**
+     * Converts the given name to lower case, independent of the default locale.
+     *
+     * @param name The name to convert.
+     *
+     * @return The lower case name.
+     */
+    private static @NonNull String toLowerCase(@NonNull String name) {
+        return notNull(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the (cached) listing of the given directory.
+     *
+     * @param directory The directory to list.
+     *
+     * @return The content of the directory.
+     */
+    private @NonNull DirectoryListing getListing(@NonNull File directory) {
+        DirectoryListing result = listings.get(directory);
+        if (result == null) {
+            result = new DirectoryListing(directory);
+            DirectoryListing existing = listings.putIfAbsent(directory, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.code_model.JsonCodeModelCache;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Stores the ASTs of an extractor run together with a manifest, so that following runs can skip files that did not
+ * change. For each source file, the manifest records the size, last modification time and content hash of the file,
+ * and a hash of the extractor settings. If headers are handled, the same is recorded for all (transitively) included
+ * headers, so that a changed header invalidates all source files that include it. The #includes of an otherwise
+ * unchanged file are resolved again, too, so that a file is also invalidated if it now includes other headers (e.g.
+ * because a new header shadows an old one in the search path).
+ * <p>
+ * A file whose size and modification time match is considered unchanged; if only the modification time differs
+ * (e.g. after a fresh checkout), the content hash is compared. The current state of each file (including its hash,
+ * if needed) is determined at most once per run, since headers are shared by many source files.
+ * <p>
+ * For changed files, the fingerprints of the functions of the stored AST are available, so that unchanged functions
+ * can be re-used (see {@link FunctionFingerprints}).
+ *
+ * @author Adam
+ */
+class IncrementalManifest {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final @NonNull String MANIFEST_NAME = "manifest.txt";
+
+    private static final @NonNull String FILE_PREFIX = "file\t";
+
+    private static final @NonNull String HEADER_PREFIX = "header\t";
+
+    private static final @NonNull String FUNCTION_PREFIX = "function\t";
+
+    /**
+     * The state of a file at the time it was parsed.
+     */
+    private static class FileState {
+
+        private long size;
+
+        private long lastModified;
+
+        private @NonNull String hash;
+
+        /**
+         * Creates a new state.
+         *
+         * @param size The size of the file, in bytes.
+         * @param lastModified The last modification time of the file.
+         * @param hash The hash of the file content.
+         */
+        public FileState(long size, long lastModified, @NonNull String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return size + "\t" + lastModified + "\t" + hash;
+        }
+
+    }
+
+    /**
+     * The state of a file in the current run. The content is only hashed if needed, and at most once.
+     */
+    private static class CurrentState {
+
+        private @NonNull File file;
+
+        private boolean isFile;
+
+        private long size;
+
+        private long lastModified;
+
+        private @Nullable String hash;
+
+        /**
+         * Reads the size and modification time of the given file.
+         *
+         * @param file The file.
+         */
+        public CurrentState(@NonNull File file) {
+            this.file = file;
+            this.isFile = file.isFile();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * Returns the hash of the file content.
+         *
+         * @return The hash of the file.
+         *
+         * @throws IOException If reading the file fails.
+         */
+        public synchronized @NonNull String getHash() throws IOException {
+            String hash = this.hash;
+            if (hash == null) {
+                hash = SrcMlOutputCache.hash(file);
+                this.hash = hash;
+            }
+            return hash;
+        }
+
+        /**
+         * Creates the {@link FileState} to record for the file.
+         *
+         * @return The state of the file.
+         *
+         * @throws IOException If reading the file fails.
+         */
+        public @NonNull FileState toFileState() throws IOException {
+            return new FileState(size, lastModified, getHash());
+        }
+
+        /**
+         * Checks whether the file did not change since the given state was recorded.
+         *
+         * @param recorded The recorded state of the file.
+         *
+         * @return Whether the file still has the recorded state.
+         */
+        public boolean matches(@NonNull FileState recorded) {
+            boolean result = false;
+            if (isFile && size == recorded.size) {
+                if (lastModified == recorded.lastModified) {
+                    result = true;
+                } else {
+                    try {
+                        result = getHash().equals(recorded.hash);
+                    } catch (IOException e) {
+                        result = false;
+                    }
+                }
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * The manifest entry of a single source file.
+     */
+    private static class Entry {
+
+        private @NonNull FileState state;
+
+        private @NonNull String settingsHash;
+
+        /**
+         * Header -> state at the time the source file was parsed.
+         */
+        private @NonNull Map<@NonNull File, @NonNull FileState> headers;
+
+        /**
+         * Fingerprint of a function -> index of the function in the stored AST, as found by
+         * {@link IncrementalManifest#collectFunctions(ISyntaxElement, File, List)}. See {@link FunctionFingerprints}.
+         */
+        private @NonNull Map<@NonNull String, @NonNull Integer> functions;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param state The state of the source file.
+         * @param settingsHash The hash of the extractor settings used for parsing the source file.
+         */
+        public Entry(@NonNull FileState state, @NonNull String settingsHash) {
+            this.state = state;
+            this.settingsHash = settingsHash;
+            this.headers = new HashMap<>();
+            this.functions = new HashMap<>();
+        }
+
+    }
+
+    private @NonNull File directory;
+
+    private @NonNull File manifestFile;
+
+    private @NonNull JsonCodeModelCache astCache;
+
+    private @NonNull String settingsHash;
+
+    private @Nullable IncludeGraph includeGraph;
+
+    /**
+     * Relative path of the source file -> manifest entry.
+     */
+    private @NonNull ConcurrentMap<@NonNull String, @NonNull Entry> entries;
+
+    /**
+     * The state of all source files and headers that were looked at in this run.
+     */
+    private @NonNull ConcurrentMap<@NonNull File, @NonNull CurrentState> currentStates;
+
+    /**
+     * Relative path of the source file -> result of {@link #isUnchanged(File, File)}, until it is used by
+     * {@link #getUnchanged(File, File)}.
+     */
+    private @NonNull ConcurrentMap<@NonNull String, @NonNull Boolean> unchangedResults;
+
+    /**
+     * Creates a new manifest. If the given directory contains the manifest of a previous run, it is loaded.
+     *
+     * @param directory The directory to store the ASTs and the manifest in. Created if it does not exist.
+     * @param settingsHash A hash of all extractor settings that influence the resulting ASTs. Stored ASTs that were
+     *      created with other settings are not re-used.
+     * @param includeGraph The include graph used for finding the headers included by a source file. <code>null</code>
+     *      if headers are not handled (i.e. source files don't depend on their headers).
+     */
+    public IncrementalManifest(@NonNull File directory, @NonNull String settingsHash,
+            @Nullable IncludeGraph includeGraph) {
+
+        this.directory = directory;
+        this.manifestFile = new File(directory, MANIFEST_NAME);
+        this.astCache = new JsonCodeModelCache(directory);
+        this.settingsHash = settingsHash;
+        this.includeGraph = includeGraph;
+        this.entries = new ConcurrentHashMap<>();
+        this.currentStates = new ConcurrentHashMap<>();
+        this.unchangedResults = new ConcurrentHashMap<>();
+
+        directory.mkdirs();
+        if (manifestFile.isFile()) {
+            try {
+                load();
+                // drop the superseded entries appended by previous runs
+                rewrite();
+            } catch (IOException e) {
+                LOGGER.logException("Can't read incremental extraction manifest " + manifestFile, e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether neither the given source file, nor the settings, nor any included header changed since its AST
+     * was stored. The result is kept until {@link #getUnchanged(File, File)} is called for the file.
+     *
+     * @param absoluteTarget The absolute path to the source file.
+     * @param relativeTarget The path to the source file, relative to the source tree.
+     *
+     * @return Whether the file is unchanged.
+     */
+    public boolean isUnchanged(@NonNull File absoluteTarget, @NonNull File relativeTarget) {
+        return notNull(unchangedResults.computeIfAbsent(notNull(relativeTarget.getPath()),
+            (path) -> checkUnchanged(absoluteTarget, relativeTarget)));
+    }
+
+    /**
+     * Checks whether neither the given source file, nor the settings, nor any included header changed since its AST
+     * was stored.
+     *
+     * @param absoluteTarget The absolute path to the source file.
+     * @param relativeTarget The path to the source file, relative to the source tree.
+     *
+     * @return Whether the file is unchanged.
+     */
+    private boolean checkUnchanged(@NonNull File absoluteTarget, @NonNull File relativeTarget) {
+        Entry entry = entries.get(relativeTarget.getPath());
+        if (entry == null || !entry.settingsHash.equals(settingsHash)
+                || !getCurrentState(absoluteTarget).matches(entry.state)) {
+            return false;
+        }
+        for (Map.Entry<@NonNull File, @NonNull FileState> header : entry.headers.entrySet()) {
+            if (!getCurrentState(notNull(header.getKey())).matches(notNull(header.getValue()))) {
+                LOGGER.logDebug("Included header " + header.getKey() + " of " + relativeTarget + " changed");
+                return false;
+            }
+        }
+
+        /*
+         * The #includes may resolve to other headers now, even though no recorded file changed: a new header may
+         * shadow an old one earlier in the search path, or the include directories may have changed.
+         */
+        IncludeGraph includeGraph = this.includeGraph;
+        if (includeGraph != null && !includeGraph.getIncludedHeaders(absoluteTarget).equals(entry.headers.keySet())) {
+            LOGGER.logDebug("Included headers of " + relativeTarget + " resolve differently");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the state of the given file in this run.
+     *
+     * @param file The file.
+     *
+     * @return The current state of the file.
+     */
+    private @NonNull CurrentState getCurrentState(@NonNull File file) {
+        return notNull(currentStates.computeIfAbsent(file, CurrentState::new));
+    }
+
+    /**
+     * Returns the stored AST of the given source file, if neither the file, nor the settings, nor any included
+     * header changed since it was stored.
+     *
+     * @param absoluteTarget The absolute path to the source file.
+     * @param relativeTarget The path to the source file, relative to the source tree.
+     *
+     * @return The stored AST, or <code>null</code> if the file has to be parsed again.
+     */
+    public @Nullable SourceFile<ISyntaxElement> getUnchanged(@NonNull File absoluteTarget,
+            @NonNull File relativeTarget) {
+
+        Boolean unchanged = unchangedResults.remove(relativeTarget.getPath());
+        if (unchanged == null) {
+            unchanged = checkUnchanged(absoluteTarget, relativeTarget);
+        }
+        if (!unchanged) {
+            return null;
+        }
+
+        SourceFile<ISyntaxElement> result = null;
+        try {
+            SourceFile<?> stored = astCache.read(relativeTarget);
+            if (stored != null) {
+                result = stored.castTo(ISyntaxElement.class);
+                LOGGER.logDebug("Re-using stored AST of unchanged file " + relativeTarget);
+            }
+        } catch (IOException | FormatException e) {
+            LOGGER.logException("Can't read stored AST of " + relativeTarget, e);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the functions of the stored AST of the given source file, by their fingerprint. This is used for
+     * re-using unchanged functions of a changed file.
+     *
+     * @param relativeTarget The path to the source file, relative to the source tree.
+     *
+     * @return Fingerprint -> function of the stored AST. Empty if there is no stored AST (with the same settings).
+     */
+    public @NonNull Map<@NonNull String, @NonNull Function> getPreviousFunctions(@NonNull File relativeTarget) {
+        Map<@NonNull String, @NonNull Function> result = new HashMap<>();
+
+        Entry entry = entries.get(relativeTarget.getPath());
+        if (entry != null && entry.settingsHash.equals(settingsHash) && !entry.functions.isEmpty()) {
+            try {
+                SourceFile<?> stored = astCache.read(relativeTarget);
+                if (stored != null) {
+                    List<@NonNull Function> functions = new ArrayList<>();
+                    for (ISyntaxElement element : stored.castTo(ISyntaxElement.class)) {
+                        collectFunctions(element, relativeTarget, functions);
+                    }
+                    for (Map.Entry<@NonNull String, @NonNull Integer> function : entry.functions.entrySet()) {
+                        int index = function.getValue();
+                        if (index < functions.size()) {
+                            result.put(notNull(function.getKey()), notNull(functions.get(index)));
+                        }
+                    }
+                }
+            } catch (IOException | FormatException e) {
+                LOGGER.logException("Can't read stored AST of " + relativeTarget, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Collects all top-level {@link Function}s of the given file, in the order of the AST.
+     *
+     * @param element The element to search in.
+     * @param relativeTarget The path to the source file; functions of included headers are ignored.
+     * @param result The list to add the found functions to.
+     */
+    private static void collectFunctions(@NonNull ISyntaxElement element, @NonNull File relativeTarget,
+            @NonNull List<@NonNull Function> result) {
+
+        if (element instanceof Function) {
+            if (relativeTarget.equals(element.getSourceFile())) {
+                result.add((Function) element);
+            }
+
+        } else {
+            for (ISyntaxElement nested : element) {
+                collectFunctions(nested, relativeTarget, result);
+            }
+        }
+    }
+
+    /**
+     * Stores the AST of a source file that was parsed in this run.
+     *
+     * @param absoluteTarget The absolute path to the source file.
+     * @param relativeTarget The path to the source file, relative to the source tree.
+     * @param ast The AST of the source file.
+     * @param functionFingerprints The fingerprints of the functions in the AST, or <code>null</code> if not
+     *      available.
+     */
+    public void store(@NonNull File absoluteTarget, @NonNull File relativeTarget,
+            @NonNull SourceFile<ISyntaxElement> ast, @Nullable FunctionFingerprints functionFingerprints) {
+
+        try {
+            Entry entry = new Entry(getCurrentState(absoluteTarget).toFileState(), settingsHash);
+            IncludeGraph includeGraph = this.includeGraph;
+            if (includeGraph != null) {
+                for (File header : includeGraph.getIncludedHeaders(absoluteTarget)) {
+                    entry.headers.put(header, getCurrentState(header).toFileState());
+                }
+            }
+            if (functionFingerprints != null) {
+                List<@NonNull Function> functions = new ArrayList<>();
+                for (ISyntaxElement element : ast) {
+                    collectFunctions(element, relativeTarget, functions);
+                }
+                for (int i = 0; i < functions.size(); i++) {
+                    String fingerprint = functionFingerprints.getCurrent().get(functions.get(i));
+                    if (fingerprint != null) {
+                        entry.functions.putIfAbsent(fingerprint, i);
+                    }
+                }
+            }
+
+            astCache.write(ast);
+
+            entries.put(notNull(relativeTarget.getPath()), entry);
+            append(notNull(relativeTarget.getPath()), entry);
+
+        } catch (IOException e) {
+            LOGGER.logException("Can't store AST of " + relativeTarget + " in " + directory, e);
+        }
+    }
+
+    /**
+     * Loads all entries from the {@link #manifestFile}. Later entries of the same file replace earlier ones.
+     *
+     * @throws IOException If reading the manifest fails.
+     */
+    private void load() throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(manifestFile))) {
+            Entry entry = null;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+
+                try {
+                    if (line.startsWith(FILE_PREFIX) && parts.length == 6) {
+                        entry = new Entry(new FileState(Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                                notNull(parts[4])), notNull(parts[5]));
+                        entries.put(notNull(parts[1]), entry);
+
+                    } else if (line.startsWith(HEADER_PREFIX) && parts.length == 5 && entry != null) {
+                        entry.headers.put(new File(parts[1]), new FileState(Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3]), notNull(parts[4])));
+
+                    } else if (line.startsWith(FUNCTION_PREFIX) && parts.length == 3 && entry != null) {
+                        entry.functions.put(notNull(parts[1]), Integer.parseInt(parts[2]));
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.logWarning("Invalid line in incremental extraction manifest: " + line);
+                }
+            }
+        }
+
+        LOGGER.logDebug("Loaded " + entries.size() + " entries from incremental extraction manifest " + manifestFile);
+    }
+
+    /**
+     * Writes all current entries to the {@link #manifestFile}, replacing its previous content.
+     *
+     * @throws IOException If writing the manifest fails.
+     */
+    private synchronized void rewrite() throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(manifestFile))) {
+            for (Map.Entry<@NonNull String, @NonNull Entry> entry : entries.entrySet()) {
+                write(out, notNull(entry.getKey()), notNull(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Appends the given entry to the {@link #manifestFile}.
+     *
+     * @param relativePath The path to the source file, relative to the source tree.
+     * @param entry The entry of the source file.
+     *
+     * @throws IOException If writing the manifest fails.
+     */
+    private synchronized void append(@NonNull String relativePath, @NonNull Entry entry) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(manifestFile, true))) {
+            write(out, relativePath, entry);
+        }
+    }
+
+    /**
+     * Writes a single entry.
+     *
+     * @param out The writer to write to.
+     * @param relativePath The path to the source file, relative to the source tree.
+     * @param entry The entry of the source file.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void write(@NonNull Writer out, @NonNull String relativePath, @NonNull Entry entry)
+            throws IOException {
+
+        out.write(FILE_PREFIX + relativePath + "\t" + entry.state + "\t" + entry.settingsHash + "\n");
+        for (Map.Entry<@NonNull File, @NonNull FileState> header : entry.headers.entrySet()) {
+            out.write(HEADER_PREFIX + header.getKey().getPath() + "\t" + header.getValue() + "\n");
+        }
+        for (Map.Entry<@NonNull String, @NonNull Integer> function : entry.functions.entrySet()) {
+            out.write(FUNCTION_PREFIX + function.getKey() + "\t" + function.getValue() + "\n");
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.util.CodeExtractorException;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Admits files for parsing only within a heap budget. The memory needed for parsing a file (the DOM of the srcML
+ * output plus the AST) is estimated from the size of the file and, if headers are included, the sizes of all headers
+ * it (transitively) includes.
+ * <p>
+ * If admitting a file would exceed the budget, the extractor thread waits until other files are finished; this
+ * temporarily reduces the parallelism. Waiting files are admitted in the order in which they arrived, and no later
+ * file overtakes them, so that a large file can't starve. A file is always admitted if no other file is being
+ * parsed. If a single file
+ * exceeds the budget on its own, its headers are not included (the header handling is downgraded for this file).
+ * All these decisions are logged.
+ *
+ * @author Adam
+ */
+class MemoryGovernor {
+
+    /**
+     * Parses a single file.
+     */
+    @FunctionalInterface
+    interface IParse {
+
+        /**
+         * Parses the file.
+         *
+         * @param fileHeaderHandling The header handling to use for the file.
+         *
+         * @return The parsed file.
+         *
+         * @throws CodeExtractorException If parsing fails.
+         */
+        @NonNull SourceFile<ISyntaxElement> parse(@NonNull HeaderHandling fileHeaderHandling)
+                throws CodeExtractorException;
+
+    }
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * The estimated heap usage per byte of source code, for the DOM of the srcML output and the AST. This is a rough,
+     * deliberately high estimate: srcML wraps nearly every token of the source in XML elements, so its output is
+     * several times larger than the source; each character of it is stored in the DOM as a 2-byte char, and each
+     * element and attribute adds a DOM node of several dozen bytes. The AST converted from the DOM adds its own
+     * objects and strings on top of that. Since only the relation between the files and the budget matters, a
+     * misestimate can be compensated by the configured budget percentage.
+     */
+    static final long BYTES_PER_SOURCE_BYTE = 100;
+
+    private long budget;
+
+    private @Nullable IncludeGraph includeGraph;
+
+    /**
+     * The estimated memory of all files currently parsed. Guarded by <code>this</code>.
+     */
+    private long inUse;
+
+    private int numRunning;
+
+    private int numDelayed;
+
+    private int numDowngraded;
+
+    /**
+     * The threads that wait for admission, in the order in which they arrived. Guarded by <code>this</code>.
+     */
+    private @NonNull Deque<@NonNull Thread> waiting;
+
+    /**
+     * Creates a new governor.
+     *
+     * @param budget The heap budget for all files parsed at the same time, in bytes.
+     * @param includeGraph The include graph for estimating the size of included headers. <code>null</code> if
+     *      headers are not copied into the ASTs of the files that include them.
+     */
+    public MemoryGovernor(long budget, @Nullable IncludeGraph includeGraph) {
+        this.budget = budget;
+        this.includeGraph = includeGraph;
+        this.waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * Parses the given file once it fits into the budget.
+     *
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param headerHandling The configured header handling.
+     * @param parse Parses the file.
+     *
+     * @return The parsed file.
+     *
+     * @throws CodeExtractorException If parsing fails, or the thread is interrupted while waiting.
+     */
+    public @NonNull SourceFile<ISyntaxElement> run(@NonNull File absoluteTarget,
+            @NonNull HeaderHandling headerHandling, @NonNull IParse parse) throws CodeExtractorException {
+
+        HeaderHandling fileHeaderHandling = headerHandling;
+        long demand = estimate(absoluteTarget, fileHeaderHandling);
+        if (demand > budget && includesHeaders(fileHeaderHandling)) {
+            fileHeaderHandling = fileHeaderHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION
+                    ? HeaderHandling.EXPAND_FUNCTION_CONDITION_FROM_SUMMARY : HeaderHandling.IGNORE;
+            demand = estimate(absoluteTarget, fileHeaderHandling);
+            synchronized (this) {
+                numDowngraded++;
+            }
+            LOGGER.logWarning("Estimated memory for " + absoluteTarget + " including its headers exceeds the budget of "
+                    + toMb(budget) + " MB; using header handling " + fileHeaderHandling + " for this file");
+        }
+
+        try {
+            acquire(absoluteTarget, demand);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodeExtractorException(absoluteTarget, e);
+        }
+        try {
+            return parse.parse(fileHeaderHandling);
+        } finally {
+            release(demand);
+        }
+    }
+
+    /**
+     * Estimates the memory needed for parsing the given file.
+     *
+     * @param absoluteTarget The absolute path to the file.
+     * @param fileHeaderHandling The header handling used for the file.
+     *
+     * @return The estimated memory, in bytes.
+     */
+    long estimate(@NonNull File absoluteTarget, @NonNull HeaderHandling fileHeaderHandling) {
+        long sourceBytes = absoluteTarget.length();
+        IncludeGraph includeGraph = this.includeGraph;
+        if (includeGraph != null && includesHeaders(fileHeaderHandling)) {
+            for (File header : includeGraph.getIncludedHeaders(absoluteTarget)) {
+                sourceBytes += header.length();
+            }
+        }
+        return sourceBytes * BYTES_PER_SOURCE_BYTE;
+    }
+
+    /**
+     * Waits until the given demand fits into the budget and all files that arrived earlier are admitted, and
+     * reserves it.
+     *
+     * @param absoluteTarget The file that is admitted; used for logging.
+     * @param demand The estimated memory of the file.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    private synchronized void acquire(@NonNull File absoluteTarget, long demand) throws InterruptedException {
+        if (!waiting.isEmpty() || !fits(demand)) {
+            numDelayed++;
+            LOGGER.logInfo("Delaying " + absoluteTarget + " (estimated " + toMb(demand) + " MB) until other files"
+                    + " are finished; " + numRunning + " files with an estimated " + toMb(inUse) + " MB are parsed"
+                    + " in a budget of " + toMb(budget) + " MB, " + waiting.size() + " files are waiting before it");
+
+            Thread current = notNull(Thread.currentThread());
+            waiting.addLast(current);
+            try {
+                while (waiting.peekFirst() != current || !fits(demand)) {
+                    wait();
+                }
+            } finally {
+                waiting.remove(current);
+                // the next waiting file may fit now, too (or may be first now, if this thread was interrupted)
+                notifyAll();
+            }
+        }
+        inUse += demand;
+        numRunning++;
+    }
+
+    /**
+     * Checks whether the given demand fits into the budget now. Guarded by <code>this</code>.
+     *
+     * @param demand The estimated memory of a file.
+     *
+     * @return Whether the file can be admitted.
+     */
+    private boolean fits(long demand) {
+        return numRunning == 0 || inUse + demand <= budget;
+    }
+
+    /**
+     * Releases the reservation of a finished file.
+     *
+     * @param demand The estimated memory of the file.
+     */
+    private synchronized void release(long demand) {
+        inUse -= demand;
+        numRunning--;
+        notifyAll();
+    }
+
+    /**
+     * Checks whether the given header handling copies the ASTs of the included headers into the file.
+     *
+     * @param fileHeaderHandling The header handling.
+     *
+     * @return Whether headers are included.
+     */
+    private static boolean includesHeaders(@NonNull HeaderHandling fileHeaderHandling) {
+        return fileHeaderHandling == HeaderHandling.INCLUDE
+                || fileHeaderHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION;
+    }
+
+    /**
+     * Converts bytes to megabytes, for logging.
+     *
+     * @param bytes The number of bytes.
+     *
+     * @return The number of megabytes.
+     */
+    private static long toMb(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    /**
+     * Returns the number of files that had to wait for other files to finish.
+     *
+     * @return The number of delayed files.
+     */
+    public synchronized int getNumDelayed() {
+        return numDelayed;
+    }
+
+    /**
+     * Returns the number of files whose header handling was downgraded.
+     *
+     * @return The number of downgraded files.
+     */
+    public synchronized int getNumDowngraded() {
+        return numDowngraded;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * A thread-safe {@link VariableCache} that is shared by all files parsed in one extractor run. This ensures that
+ * there is only one {@link Variable} instance per variable name, instead of one per file.
+ *
+ * @author Adam
+ */
+class SharedVariableCache extends VariableCache {
+
+    private @NonNull ConcurrentMap<@NonNull String, @NonNull Variable> variables;
+
+    /**
+     * Creates a new, empty {@link SharedVariableCache}.
+     */
+    public SharedVariableCache() {
+        this.variables = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public @NonNull Variable getVariable(@NonNull String name) {
+        return notNull(variables.computeIfAbsent(name, Variable::new));
+    }
+
+    /**
+     * Replaces all {@link Variable}s in the given Boolean formula with the instances of this cache. This is used for
+     * formulas created by parsers that don't use this cache. Sub-formulas that are not {@link Negation}s,
+     * {@link Conjunction}s, {@link Disjunction}s or {@link Variable}s (e.g. non-Boolean operators) are kept as they
+     * are.
+     *
+     * @param formula The formula to replace the variables in.
+     *
+     * @return A formula that uses the cached {@link Variable} instances; the same instance if nothing had to be
+     *      replaced.
+     */
+    public @NonNull Formula intern(@NonNull Formula formula) {
+        Formula result = formula;
+
+        if (formula.getClass() == Variable.class) {
+            // the given instance becomes the cached one, so that already canonical formulas are not rebuilt
+            Variable variable = (Variable) formula;
+            Variable existing = variables.putIfAbsent(variable.getName(), variable);
+            result = existing != null ? existing : variable;
+
+        } else if (formula instanceof Negation) {
+            Formula nested = ((Negation) formula).getFormula();
+            Formula internedNested = intern(nested);
+            if (internedNested != nested) {
+                result = new Negation(internedNested);
+            }
+
+        } else if (formula instanceof Conjunction) {
+            Conjunction conjunction = (Conjunction) formula;
+            Formula left = intern(conjunction.getLeft());
+            Formula right = intern(conjunction.getRight());
+            if (left != conjunction.getLeft() || right != conjunction.getRight()) {
+                result = new Conjunction(left, right);
+            }
+
+        } else if (formula instanceof Disjunction) {
+            Disjunction disjunction = (Disjunction) formula;
+            Formula left = intern(disjunction.getLeft());
+            Formula right = intern(disjunction.getRight());
+            if (left != disjunction.getLeft() || right != disjunction.getRight()) {
+                result = new Disjunction(left, right);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of distinct variables in this cache.
+     *
+     * @return The number of cached variables.
+     */
+    public int size() {
+        return variables.size();
+    }
+
+}
@@ -18,9 +18,24 @@ package net.ssehub.kernel_haven.srcml;
 
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -34,6 +49,7 @@ import net.ssehub.kernel_haven.config.Configuration;
 import net.ssehub.kernel_haven.config.DefaultSettings;
 import net.ssehub.kernel_haven.config.EnumSetting;
 import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
 import net.ssehub.kernel_haven.cpp_utils.CppParsingSettings;
 import net.ssehub.kernel_haven.cpp_utils.InvalidConditionHandling;
 import net.ssehub.kernel_haven.util.CodeExtractorException;
@@ -73,6 +89,16 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
     
     private static final Logger LOGGER = Logger.get();
     
+    /**
+     * The maximum number of times srcML is started for a single file.
+     */
+    private static final int MAX_ATTEMPTS = 2;
+    
+    /**
+     * The delay before the first retry of srcML, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 200;
+    
     private static final @NonNull Setting<@NonNull HeaderHandling> HEADER_HANDLING_SETTING = new EnumSetting<>(
             "code.extractor.header_handling", HeaderHandling.class, true, HeaderHandling.IGNORE,
             "How #include directives should be handled.\n\n- IGNORE: Does nothing; leaves the #include directives as"
@@ -80,9 +106,23 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
             + " the #include directive.\n- EXPAND_FUNCTION_CONDITION: Includes headers like INCLUDE. Searches for"
             + " declarations of functions in the headers."
             + " If declarations for the functions that are implemented in the C file are found, then their conditions"
-            + " are expanded by the condition of the declaration.\n\nCurrently only quote include directives"
-            + " (#include \"file.h\") relative to the source file being parsed are supported.");
-    // TODO AK: update "currently only supports" when applicable
+            + " are expanded by the condition of the declaration.\n- EXPAND_FUNCTION_CONDITION_FROM_SUMMARY: Like"
+            + " EXPAND_FUNCTION_CONDITION, but the headers are not included. Instead, each header is parsed only once"
+            + " into a summary of its function declarations, which is used for all files that include it.\n\n"
+            + "Quote include directives (#include \"file.h\") are searched relative to the source file being parsed"
+            + " first. Afterwards, and for system include directives (#include <file.h>), the directories of "
+            + "code.extractor.include_directories and code.extractor.system_include_directories are searched.");
+    
+    private static final @NonNull Setting<@NonNull List<String>> INCLUDE_DIRECTORIES_SETTING = new Setting<>(
+            "code.extractor.include_directories", Type.STRING_LIST, true, "",
+            "The directories to search headers of #include directives in (like the -I option of GCC). Relative paths"
+            + " are relative to the source tree. Only used if code.extractor.header_handling is not IGNORE.");
+    
+    private static final @NonNull Setting<@NonNull List<String>> SYSTEM_INCLUDE_DIRECTORIES_SETTING = new Setting<>(
+            "code.extractor.system_include_directories", Type.STRING_LIST, true, "",
+            "The directories to search headers of #include directives in, after the directories of"
+            + " code.extractor.include_directories (like the -isystem option of GCC). Relative paths are relative to"
+            + " the source tree. Only used if code.extractor.header_handling is not IGNORE.");
     
     private static final @NonNull Setting<@NonNull ExpressionHandling> EXPRESSIVENESS_SETTING = new EnumSetting<>(
         "code.extractor.cpp_expressiveness", ExpressionHandling.class, true, ExpressionHandling.BOOLEAN,
@@ -93,6 +133,124 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
             + ExpressionHandling.NON_BOOLEAN + ": Parses expressions to non-Boolean formulas. Metrics may benefit from "
                 + "this approach, logical analyses like DeadCode analysis won't work with this AST anymore.");
     
+    private static final @NonNull Setting<@NonNull Boolean> INTERN_STRINGS_SETTING = new Setting<>(
+            "code.extractor.intern_strings", Type.BOOLEAN, true, "false",
+            "Whether function names and short code tokens in the AST should be de-duplicated across all parsed files."
+            + " This reduces the memory consumption if many ASTs are kept in memory, at the cost of a lookup in a"
+            + " shared table for each string.");
+    
+    private static final @NonNull Setting<@NonNull Integer> HEADER_PREFETCH_THREADS_SETTING = new Setting<>(
+            "code.extractor.header_prefetch_threads", Type.INTEGER, true, "0",
+            "Only used with header handling INCLUDE and EXPAND_FUNCTION_CONDITION. The number of threads that parse"
+            + " the headers included by a file in the background, while the file itself is still converted. Shared by"
+            + " all extractor threads. 0 (the default) disables the prefetching; headers are then parsed one after"
+            + " another.");
+    
+    private static final @NonNull Setting<@NonNull Boolean> SHARE_HEADERS_SETTING = new Setting<>(
+            "code.extractor.share_header_asts", Type.BOOLEAN, true, "false",
+            "Only used with header handling INCLUDE and EXPAND_FUNCTION_CONDITION. If enabled, each header is parsed"
+            + " only once per run. Instead of a copy of the header AST, the #include directive is replaced by a"
+            + " ReferenceElement that points to the AST shared by all files that include the header. The presence"
+            + " condition of the #include is set on the ReferenceElement. This reduces the memory consumption if"
+            + " many ASTs are kept in memory. Before the extraction starts, the #include lines of all source files"
+            + " are scanned, so that shared headers can be evicted once no file that still has to be parsed"
+            + " includes them.");
+    
+    private static final @NonNull Setting<@NonNull Boolean> DEDUPLICATE_FILES_SETTING = new Setting<>(
+            "code.extractor.deduplicate_files", Type.BOOLEAN, true, "false",
+            "If enabled, the files of the run that have the same size as another file are hashed before the run"
+            + " starts. srcML runs only once for all byte-identical files (e.g. copied drivers or headers duplicated"
+            + " across architecture directories); its output is converted for each file separately. The srcML output"
+            + " is kept in memory until the last file with the same content is parsed. Headers parsed for #include"
+            + " directives are not de-duplicated.");
+    
+    private static final @NonNull Setting<@Nullable String> INCREMENTAL_DIRECTORY_SETTING = new Setting<>(
+            "code.extractor.incremental_directory", Type.STRING, false, null,
+            "If this is set to a directory, the ASTs of all parsed files are stored in it, together with a manifest"
+            + " of the size, modification time and content hash of each file. Following runs return the stored ASTs"
+            + " of all files that did not change since, without running srcML. Stored ASTs are not re-used if the"
+            + " extractor settings changed, or (if header handling is not IGNORE) an included header changed. With"
+            + " header handling IGNORE or INCLUDE, the unchanged functions of changed files are re-used, too.");
+    
+    private static final @NonNull Setting<@Nullable String> PATCH_FILE_SETTING = new Setting<>(
+            "code.extractor.patch_file", Type.STRING, false, null,
+            "If this is set to a unified diff file (e.g. created by git diff), only the files changed by this patch"
+            + " are parsed; empty results are returned for all other files. For the changed files, only the top-level"
+            + " elements (e.g. functions) that overlap with the changed lines are converted. Paths in the patch must"
+            + " be relative to the source tree (git's a/ and b/ prefixes are stripped). Changes to headers are not"
+            + " propagated: a source file that includes a changed header, but is not changed itself, gets an empty"
+            + " result, too."
+            + " If this is set, code.extractor.incremental_directory is not used.");
+    
+    private static final @NonNull Setting<@NonNull Integer> PIPELINE_PROCESS_THREADS_SETTING = new Setting<>(
+            "code.extractor.pipeline_process_threads", Type.INTEGER, true, "0",
+            "The number of threads that run srcML on the files of the run ahead of the extractor threads, and read its"
+            + " output into memory. The output is then parsed and pre-processed by the"
+            + " code.extractor.pipeline_parse_threads, so that the extractor threads only need to convert it to the"
+            + " AST. 0 disables this pipeline; each extractor thread then runs all steps itself. The pipeline holds"
+            + " the parsed output of files outside of code.extractor.memory_budget, so it can't be combined with"
+            + " that.");
+    
+    private static final @NonNull Setting<@NonNull Integer> PIPELINE_PARSE_THREADS_SETTING = new Setting<>(
+            "code.extractor.pipeline_parse_threads", Type.INTEGER, true, "1",
+            "Only used if code.extractor.pipeline_process_threads is greater than 0. The number of threads that parse"
+            + " and pre-process the srcML output in the pipeline.");
+    
+    private static final @NonNull Setting<@NonNull Integer> PIPELINE_CAPACITY_SETTING = new Setting<>(
+            "code.extractor.pipeline_capacity", Type.INTEGER, true, "16",
+            "Only used if code.extractor.pipeline_process_threads is greater than 0. The maximum number of files that"
+            + " are in the pipeline, including the prepared files that were not yet requested by an extractor"
+            + " thread.");
+    
+    private static final @NonNull Setting<@NonNull Integer> STALL_TIMEOUT_SETTING = new Setting<>(
+            "code.extractor.stall_timeout", Type.INTEGER, true, "0",
+            "The time in milliseconds after which a srcML process that produced no output is killed. The file is then"
+            + " parsed again after a short delay; if srcML stalls again, the file is reported as failed. Only the"
+            + " consumption of the output is observed, so a process whose output is read slowly (e.g. because"
+            + " converting a large file takes a long time) looks stalled, too; choose a timeout well above such pauses."
+            + " 0 disables this watchdog.");
+    
+    private static final @NonNull Setting<@NonNull Integer> HEDGE_PERCENTILE_SETTING = new Setting<>(
+            "code.extractor.hedge_percentile", Type.INTEGER, true, "0",
+            "If a srcML run takes longer than this percentile (1 to 99) of the recent srcML runs (relative to the"
+            + " size of the parsed files), a second srcML run is started for the same file. The output of the run"
+            + " that finishes first is used; the other run is killed. This trims the tail latency caused by straggler"
+            + " files, at the cost of additional srcML processes. 0 disables the hedging.");
+    
+    private static final @NonNull Setting<@Nullable String> HISTORY_FILE_SETTING = new Setting<>(
+            "code.extractor.history_file", Type.STRING, false, null,
+            "If set, the parsing duration of each file that is parsed completely (i.e. not re-used from"
+            + " code.extractor.incremental_directory) is stored in this file. Following runs then feed the files"
+            + " longest-first into the pipeline (see code.extractor.pipeline_process_threads), so that srcML runs on"
+            + " the longest files early. Files without a recorded duration are estimated by their size. The order in"
+            + " which the extractor threads get the files is not changed.");
+    
+    private static final @NonNull Setting<@NonNull Boolean> DIRECTORY_LOCALITY_SETTING = new Setting<>(
+            "code.extractor.directory_locality", Type.BOOLEAN, true, "false",
+            "Only used if code.extractor.header_handling is not IGNORE. If enabled, the srcML output of the headers"
+            + " parsed for a directory is kept until the extractor threads move on to files of other directories."
+            + " Sibling files that include the same local headers then don't run srcML on these again. This works"
+            + " best if the files of a directory are handed out consecutively, as for a directory listed in"
+            + " code.extractor.files. The files are fed into the pipeline (see"
+            + " code.extractor.pipeline_process_threads) grouped by directory; this can be combined with"
+            + " code.extractor.history_file.");
+    
+    private static final @NonNull Setting<@NonNull Integer> MEMORY_BUDGET_SETTING = new Setting<>(
+            "code.extractor.memory_budget", Type.INTEGER, true, "0",
+            "The percentage of the maximum heap that all files parsed at the same time may use. The memory needed for"
+            + " a file is estimated from its size and the sizes of the headers it includes. If the budget is"
+            + " exhausted, extractor threads wait until other files are finished. If a single file exceeds the"
+            + " budget, its headers are not included (INCLUDE is downgraded to IGNORE, EXPAND_FUNCTION_CONDITION to"
+            + " EXPAND_FUNCTION_CONDITION_FROM_SUMMARY). 0 disables this. Can't be combined with"
+            + " code.extractor.pipeline_process_threads.");
+    
+    private static final @NonNull Setting<@Nullable String> FUNCTION_DECLARATION_INDEX_SETTING = new Setting<>(
+            "code.extractor.function_declaration_index", Type.STRING, false, null,
+            "Only used with header handling EXPAND_FUNCTION_CONDITION(_FROM_SUMMARY). The function declarations found"
+            + " in each header are collected only once per run. If this is set to a file path, the collected"
+            + " declarations are stored in this file, and re-used in following runs for all headers that did not"
+            + " change since.");
+    
     /**
      * <b>Do not use this variable directly, use {@link #hasSrcmlInstalled()} instead.</b>
      * Caches the result of {@link #hasSrcmlInstalled()}.
@@ -111,6 +269,131 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
     private @NonNull InvalidConditionHandling invalidConditionHandling = InvalidConditionHandling.EXCEPTION;
     
     private File srcExec;
+    
+    /**
+     * Shared by all files parsed in this run, so that each variable only exists once.
+     */
+    private @NonNull SharedVariableCache variableCache = new SharedVariableCache();
+    
+    /**
+     * Resolves the paths of #include directives. Shared by all files parsed in this run.
+     */
+    private @NonNull IncludePathResolver includePathResolver
+            = new IncludePathResolver(new LinkedList<>(), new LinkedList<>()); // will be overridden in init()
+    
+    /**
+     * Parses headers in the background, before the {@link IncludeExpander} needs them. <code>null</code> if
+     * prefetching is disabled, or the run is finished.
+     */
+    private volatile @Nullable ExecutorService headerPrefetchExecutor;
+    
+    /**
+     * The shared ASTs of all headers parsed in this run, or <code>null</code> if {@link #SHARE_HEADERS_SETTING} is
+     * disabled.
+     */
+    private @Nullable ConcurrentMap<@NonNull File, @NonNull FutureTask<@NonNull ISyntaxElement>> sharedHeaders;
+    
+    /**
+     * The include graph of all files of this run. Used for evicting {@link #sharedHeaders} that are not needed
+     * anymore. <code>null</code> if header ASTs are not shared.
+     */
+    private @Nullable IncludeGraph includeGraph;
+    
+    /**
+     * The run-wide index of function declarations in headers. Used for
+     * {@link HeaderHandling#EXPAND_FUNCTION_CONDITION} and
+     * {@link HeaderHandling#EXPAND_FUNCTION_CONDITION_FROM_SUMMARY}.
+     */
+    private @Nullable FunctionDeclarationIndex functionDeclarationIndex;
+    
+    /**
+     * The srcML output of all files parsed in this run, by their content. <code>null</code> if
+     * {@link #DEDUPLICATE_FILES_SETTING} is disabled.
+     */
+    private @Nullable SrcMlOutputCache srcmlOutputCache;
+    
+    /**
+     * The string interning table of this extractor, or <code>null</code> if {@link #INTERN_STRINGS_SETTING} is
+     * disabled.
+     */
+    private @Nullable StringInterner stringInterner;
+    
+    /**
+     * The stored ASTs of previous runs. <code>null</code> if {@link #INCREMENTAL_DIRECTORY_SETTING} is not set.
+     */
+    private @Nullable IncrementalManifest incrementalManifest;
+    
+    /**
+     * The patch to restrict the extraction to. <code>null</code> if {@link #PATCH_FILE_SETTING} is not set.
+     */
+    private @Nullable UnifiedDiff patch;
+    
+    /**
+     * Runs srcML and parses its output ahead of the extractor threads. <code>null</code> if
+     * {@link #PIPELINE_PROCESS_THREADS_SETTING} is 0, or after the end of the run.
+     */
+    private volatile @Nullable ExtractionPipeline<@NonNull PreparedXml> pipeline;
+    
+    /**
+     * Kills stalled srcML processes. <code>null</code> if {@link #STALL_TIMEOUT_SETTING} is 0.
+     */
+    private volatile @Nullable SrcMlWatchdog watchdog;
+    
+    /**
+     * Starts second srcML runs for stragglers. <code>null</code> if {@link #HEDGE_PERCENTILE_SETTING} is 0.
+     */
+    private volatile @Nullable SrcMlHedging hedging;
+    
+    /**
+     * The extraction durations of previous runs. <code>null</code> if {@link #HISTORY_FILE_SETTING} is not set.
+     */
+    private @Nullable ExtractionHistory history;
+    
+    /**
+     * The srcML output of the headers parsed for the directories currently processed. <code>null</code> if
+     * {@link #DIRECTORY_LOCALITY_SETTING} is disabled.
+     */
+    private @Nullable DirectoryHeaderMemo directoryHeaderMemo;
+    
+    /**
+     * Admits files for parsing within a heap budget. <code>null</code> if {@link #MEMORY_BUDGET_SETTING} is 0.
+     */
+    private @Nullable MemoryGovernor memoryGovernor;
+    
+    /**
+     * The files that will be parsed in this run, relative to the source tree, in the order in which they are fed into
+     * the {@link #pipeline}. Only computed if needed; see {@link #getTranslationUnits(Configuration)}.
+     */
+    private @Nullable List<@NonNull File> translationUnits;
+    
+    /**
+     * The number of files of this run that are not yet parsed. When this reaches 0, the background threads are shut
+     * down (see {@link #close()}). <code>null</code> if there are no background threads.
+     */
+    private @Nullable AtomicInteger remainingFiles;
+    
+    /**
+     * The result of parsing and pre-processing the srcML output of a file; ready to be converted to an AST.
+     */
+    private static class PreparedXml {
+        
+        private @NonNull Node root;
+        
+        private @NonNull IncludeExpander includeExpander;
+        
+        /**
+         * Creates a new {@link PreparedXml}.
+         * 
+         * @param root The pre-processed {@code <unit>} node.
+         * @param includeExpander The {@link IncludeExpander} that already started prefetching the headers included by
+         *      the file.
+         */
+        public PreparedXml(@NonNull Node root, @NonNull IncludeExpander includeExpander) {
+            this.root = root;
+            this.includeExpander = includeExpander;
+        }
+        
+    }
 
     @Override
     protected void init(@NonNull Configuration config) throws SetUpException {
@@ -122,37 +405,570 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
         config.registerSetting(HEADER_HANDLING_SETTING);
         this.headerHandling = config.getValue(HEADER_HANDLING_SETTING);
         
+        config.registerSetting(INCLUDE_DIRECTORIES_SETTING);
+        config.registerSetting(SYSTEM_INCLUDE_DIRECTORIES_SETTING);
+        this.includePathResolver = new IncludePathResolver(
+                toDirectories(config.getValue(INCLUDE_DIRECTORIES_SETTING)),
+                toDirectories(config.getValue(SYSTEM_INCLUDE_DIRECTORIES_SETTING)));
+        
+        config.registerSetting(HEADER_PREFETCH_THREADS_SETTING);
+        int prefetchThreads = config.getValue(HEADER_PREFETCH_THREADS_SETTING);
+        if (prefetchThreads > 0 && (headerHandling == HeaderHandling.INCLUDE
+                || headerHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION)) {
+            this.headerPrefetchExecutor = createDaemonExecutor("srcML-header-prefetch", prefetchThreads);
+        }
+        
+        config.registerSetting(SHARE_HEADERS_SETTING);
+        if (config.getValue(SHARE_HEADERS_SETTING) && (headerHandling == HeaderHandling.INCLUDE
+                || headerHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION)) {
+            this.sharedHeaders = new ConcurrentHashMap<>();
+            this.includeGraph = buildIncludeGraph(getTranslationUnits(config));
+        }
+        
+        config.registerSetting(MEMORY_BUDGET_SETTING);
+        int memoryBudget = config.getValue(MEMORY_BUDGET_SETTING);
+        if (memoryBudget > 0) {
+            IncludeGraph headerSizes = null;
+            if (sharedHeaders == null && (headerHandling == HeaderHandling.INCLUDE
+                    || headerHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION)) {
+                // each file contains a copy of its headers
+                headerSizes = buildIncludeGraph(getTranslationUnits(config));
+            }
+            this.memoryGovernor = new MemoryGovernor(Runtime.getRuntime().maxMemory() / 100 * memoryBudget,
+                    headerSizes);
+        }
+        
+        config.registerSetting(DEDUPLICATE_FILES_SETTING);
+        if (config.getValue(DEDUPLICATE_FILES_SETTING)) {
+            List<@NonNull File> files = new ArrayList<>();
+            for (File translationUnit : getTranslationUnits(config)) {
+                files.add(new File(sourceTree, translationUnit.getPath()));
+            }
+            this.srcmlOutputCache = new SrcMlOutputCache(files);
+        }
+        
+        config.registerSetting(INTERN_STRINGS_SETTING);
+        if (config.getValue(INTERN_STRINGS_SETTING)) {
+            this.stringInterner = new StringInterner();
+        }
+        
         // TODO: these settings are CodeBlockExtractor-specific; the user may not know that they apply here
         config.registerSetting(CppParsingSettings.HANDLE_LINUX_MACROS);
         this.handleLinuxMacro = config.getValue(CppParsingSettings.HANDLE_LINUX_MACROS);
         config.registerSetting(CppParsingSettings.INVALID_CONDITION_SETTING);
         this.invalidConditionHandling = config.getValue(CppParsingSettings.INVALID_CONDITION_SETTING);
         
+        config.registerSetting(FUNCTION_DECLARATION_INDEX_SETTING);
+        if (headerHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION
+                || headerHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION_FROM_SUMMARY) {
+            String indexFile = config.getValue(FUNCTION_DECLARATION_INDEX_SETTING);
+            this.functionDeclarationIndex = new FunctionDeclarationIndex(
+                    indexFile != null ? new File(indexFile) : null, getSettingsHash(config), variableCache);
+        }
+        
+        config.registerSetting(PATCH_FILE_SETTING);
+        String patchFile = config.getValue(PATCH_FILE_SETTING);
+        if (patchFile != null) {
+            try {
+                this.patch = UnifiedDiff.parse(new File(patchFile));
+            } catch (IOException e) {
+                throw new SetUpException("Can't read patch file " + patchFile, e);
+            }
+        }
+        
+        config.registerSetting(INCREMENTAL_DIRECTORY_SETTING);
+        String incrementalDirectory = config.getValue(INCREMENTAL_DIRECTORY_SETTING);
+        if (incrementalDirectory != null) {
+            IncludeGraph includeGraph = this.includeGraph;
+            if (includeGraph == null && headerHandling != HeaderHandling.IGNORE) {
+                includeGraph = new IncludeGraph(includePathResolver);
+            }
+            this.incrementalManifest = new IncrementalManifest(new File(incrementalDirectory),
+                    getSettingsHash(config), includeGraph);
+        }
+        
+        config.registerSetting(STALL_TIMEOUT_SETTING);
+        int stallTimeout = config.getValue(STALL_TIMEOUT_SETTING);
+        if (stallTimeout > 0) {
+            this.watchdog = new SrcMlWatchdog(stallTimeout);
+        }
+        
+        config.registerSetting(HEDGE_PERCENTILE_SETTING);
+        int hedgePercentile = config.getValue(HEDGE_PERCENTILE_SETTING);
+        if (hedgePercentile > 0) {
+            this.hedging = new SrcMlHedging(hedgePercentile);
+        }
+        
         if (!hasSrcmlInstalled()) {
             Preparation preparator = new Preparation(config);
             srcExec = preparator.prepareExec();
         }
+        
+        config.registerSetting(HISTORY_FILE_SETTING);
+        config.registerSetting(DIRECTORY_LOCALITY_SETTING);
+        String historyFile = config.getValue(HISTORY_FILE_SETTING);
+        boolean directoryLocality = config.getValue(DIRECTORY_LOCALITY_SETTING)
+                && headerHandling != HeaderHandling.IGNORE;
+        if (directoryLocality && sharedHeaders == null) {
+            // shared header ASTs are parsed only once per run anyway
+            this.directoryHeaderMemo = new DirectoryHeaderMemo();
+        }
+        if (historyFile != null || directoryLocality) {
+            List<@NonNull File> ordered = getTranslationUnits(config);
+            if (historyFile != null) {
+                ExtractionHistory history = new ExtractionHistory(new File(historyFile));
+                ordered = history.orderLongestFirst(sourceTree, ordered);
+                this.history = history;
+            }
+            if (directoryLocality) {
+                // the directory of the longest file (if ordered by history) comes first
+                ordered = DirectoryHeaderMemo.groupByDirectory(ordered);
+            }
+            
+            // only the pipeline is fed in this order; the framework hands out the files in the configured order
+            this.translationUnits = ordered;
+        }
+        
+        config.registerSetting(PIPELINE_PROCESS_THREADS_SETTING);
+        config.registerSetting(PIPELINE_PARSE_THREADS_SETTING);
+        config.registerSetting(PIPELINE_CAPACITY_SETTING);
+        int processThreads = config.getValue(PIPELINE_PROCESS_THREADS_SETTING);
+        if (processThreads > 0 && memoryGovernor != null) {
+            // the pipeline prepares files before the governor admits them, so their DOMs would not be in the budget
+            close();
+            throw new SetUpException(PIPELINE_PROCESS_THREADS_SETTING.getKey() + " can't be combined with "
+                    + MEMORY_BUDGET_SETTING.getKey());
+        }
+        if (processThreads > 0) {
+            this.pipeline = startPipeline(getTranslationUnits(config), processThreads,
+                    Math.max(config.getValue(PIPELINE_PARSE_THREADS_SETTING), 1),
+                    config.getValue(PIPELINE_CAPACITY_SETTING));
+        }
+        
+        if (headerPrefetchExecutor != null || pipeline != null || watchdog != null || hedging != null) {
+            // there is no hook at the end of the run, so count down the files to know when the last one is done; if
+            // the framework hands out other files than listed, this only disables the background threads early
+            int numFiles = getTranslationUnits(config).size();
+            this.remainingFiles = new AtomicInteger(numFiles);
+            if (numFiles == 0) {
+                close();
+            }
+        }
+    }
+    
+    /**
+     * Shuts down the background threads of this run. This is called after the last file of the run is parsed.
+     * <p>
+     * Since {@link #remainingFiles} is based on the extractor's own listing of the files, this may be called while
+     * other files are still parsed. All components stay usable after this: headers are then parsed in the calling
+     * thread, files are not taken from the pipeline anymore, and srcML runs are neither watched nor hedged. The
+     * string interning statistics are logged here, so they do not include strings of files that are still parsed.
+     */
+    private void close() {
+        ExecutorService headerPrefetchExecutor = this.headerPrefetchExecutor;
+        this.headerPrefetchExecutor = null;
+        if (headerPrefetchExecutor != null) {
+            headerPrefetchExecutor.shutdown();
+        }
+        
+        ExtractionPipeline<@NonNull PreparedXml> pipeline = this.pipeline;
+        this.pipeline = null;
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        
+        SrcMlWatchdog watchdog = this.watchdog;
+        this.watchdog = null;
+        if (watchdog != null) {
+            watchdog.close();
+        }
+        
+        SrcMlHedging hedging = this.hedging;
+        this.hedging = null;
+        if (hedging != null) {
+            hedging.close();
+        }
+        
+        StringInterner stringInterner = this.stringInterner;
+        if (stringInterner != null) {
+            long lookups = stringInterner.getNumLookups();
+            long hits = stringInterner.getNumHits();
+            LOGGER.logInfo("String interning statistics:",
+                    " - Number of interning lookups: " + lookups,
+                    " - Number of strings added to the table: " + (lookups - hits),
+                    " - Number of de-duplicated strings: " + hits);
+        }
+    }
+    
+    /**
+     * Counts down the {@link #remainingFiles} of this run, and calls {@link #close()} after the last one.
+     */
+    private void countFileDone() {
+        AtomicInteger remainingFiles = this.remainingFiles;
+        if (remainingFiles != null && remainingFiles.decrementAndGet() == 0) {
+            close();
+        }
+    }
+    
+    /**
+     * Creates and starts the {@link #pipeline}.
+     * 
+     * @param translationUnits The files of this run, relative to the source tree.
+     * @param processThreads The number of threads that run srcML.
+     * @param parseThreads The number of threads that parse the srcML output.
+     * @param capacity The maximum number of files in the pipeline.
+     * 
+     * @return The started pipeline.
+     */
+    private @NonNull ExtractionPipeline<@NonNull PreparedXml> startPipeline(
+            @NonNull List<@NonNull File> translationUnits, int processThreads, int parseThreads, int capacity) {
+        
+        ExtractionPipeline<@NonNull PreparedXml> result = new ExtractionPipeline<>(
+                createDaemonExecutor("srcML-pipeline-process", processThreads),
+                createDaemonExecutor("srcML-pipeline-parse", parseThreads), capacity,
+                (absoluteTarget) -> {
+                    SrcMlOutputCache srcmlOutputCache = this.srcmlOutputCache;
+                    return srcmlOutputCache != null
+                            ? srcmlOutputCache.getOutput(absoluteTarget, () -> runSrcMlHedged(absoluteTarget))
+                            : runSrcMlHedged(absoluteTarget);
+                },
+                // there is no memory governor with a pipeline, so the header handling is never downgraded here
+                (absoluteTarget, relativeTarget, xml) ->
+                    prepareXml(absoluteTarget, relativeTarget, new ByteArrayInputStream(xml), headerHandling));
+        
+        UnifiedDiff patch = this.patch;
+        IncrementalManifest incrementalManifest = this.incrementalManifest;
+        result.start(sourceTree, translationUnits, (absoluteTarget) -> {
+            File relativeTarget = notNull(sourceTree.toPath().relativize(absoluteTarget.toPath()).toFile());
+            boolean needed;
+            if (patch != null) {
+                needed = patch.getChangedLines(relativeTarget) != null;
+            } else if (incrementalManifest != null) {
+                needed = !incrementalManifest.isUnchanged(absoluteTarget, relativeTarget);
+            } else {
+                needed = true;
+            }
+            return needed;
+        });
+        return result;
+    }
+    
+    /**
+     * Converts the given paths to directories. Relative paths are resolved against the source tree.
+     * 
+     * @param paths The paths, as specified in the configuration.
+     * 
+     * @return The directories.
+     */
+    private @NonNull List<@NonNull File> toDirectories(@NonNull List<String> paths) {
+        List<@NonNull File> result = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            File directory = new File(path);
+            if (!directory.isAbsolute()) {
+                directory = new File(sourceTree, path);
+            }
+            result.add(directory);
+        }
+        return result;
+    }
+    
+    /**
+     * Creates a hash of all settings that influence the resulting ASTs.
+     * 
+     * @param config The configuration to read the settings from.
+     * 
+     * @return The hash of the settings.
+     */
+    private @NonNull String getSettingsHash(@NonNull Configuration config) {
+        String settings = headerHandling + "\n" + cppExpressiveness + "\n" + handleLinuxMacro + "\n"
+                + invalidConditionHandling + "\n" + config.getValue(INCLUDE_DIRECTORIES_SETTING) + "\n"
+                + config.getValue(SYSTEM_INCLUDE_DIRECTORIES_SETTING) + "\n"
+                + config.getValue(SHARE_HEADERS_SETTING);
+        return SrcMlOutputCache.hash(notNull(settings));
+    }
+    
+    /**
+     * Builds the include graph of all files that will be parsed in this run.
+     * 
+     * @param translationUnits The files that will be parsed, relative to the source tree.
+     * 
+     * @return The include graph.
+     */
+    private @NonNull IncludeGraph buildIncludeGraph(@NonNull List<@NonNull File> translationUnits) {
+        PerformanceProbe p = new PerformanceProbe("SrcMLExtractor include graph");
+        IncludeGraph graph = new IncludeGraph(includePathResolver);
+        
+        for (File translationUnit : translationUnits) {
+            graph.addTranslationUnit(new File(sourceTree, translationUnit.getPath()));
+        }
+        
+        p.close();
+        return graph;
+    }
+    
+    /**
+     * Lists all files that will be parsed in this run. The source tree is only walked once per run.
+     * 
+     * @param config The configuration that specifies the files to parse.
+     * 
+     * @return The files to parse, relative to the source tree.
+     */
+    private @NonNull List<@NonNull File> getTranslationUnits(@NonNull Configuration config) {
+        List<@NonNull File> result = this.translationUnits;
+        if (result == null) {
+            result = new ArrayList<>();
+            
+            Pattern fileRegex = config.getValue(DefaultSettings.CODE_EXTRACTOR_FILE_REGEX);
+            List<String> paths = config.getValue(DefaultSettings.CODE_EXTRACTOR_FILES);
+            if (paths.isEmpty()) {
+                // the complete source tree is parsed
+                addTranslationUnits(result, "", fileRegex);
+            }
+            for (String path : paths) {
+                addTranslationUnits(result, notNull(path), fileRegex);
+            }
+            
+            this.translationUnits = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the given file, or all files in the given directory, to the given list.
+     * 
+     * @param result The list to add the files to.
+     * @param relativePath The path to the file or directory, relative to the source tree.
+     * @param fileRegex The pattern that the relative paths of source files match.
+     */
+    private void addTranslationUnits(@NonNull List<@NonNull File> result, @NonNull String relativePath,
+            @NonNull Pattern fileRegex) {
+        
+        File absolute = new File(sourceTree, relativePath);
+        if (absolute.isDirectory()) {
+            String[] children = absolute.list();
+            if (children != null) {
+                for (String child : children) {
+                    addTranslationUnits(result, relativePath.isEmpty() ? notNull(child) : relativePath + "/" + child,
+                            fileRegex);
+                }
+            }
+            
+        } else if (absolute.isFile() && fileRegex.matcher(relativePath).matches()) {
+            result.add(new File(relativePath));
+        }
+    }
+    
+    /**
+     * Creates a thread pool for running tasks in the background. The threads are daemon threads, so that they don't
+     * prevent the JVM from exiting.
+     * 
+     * @param name The name prefix of the threads.
+     * @param numThreads The number of threads.
+     * 
+     * @return The thread pool.
+     */
+    private static @NonNull ExecutorService createDaemonExecutor(@NonNull String name, int numThreads) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        return notNull(Executors.newFixedThreadPool(numThreads, (runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+    
+    /**
+     * Returns the thread pool for parsing headers in the background.
+     * 
+     * @return The thread pool, or <code>null</code> if headers should not be parsed in the background.
+     */
+    @Nullable ExecutorService getHeaderPrefetchExecutor() {
+        return headerPrefetchExecutor;
+    }
+    
+    /**
+     * Returns the shared ASTs of all headers parsed in this run. Header ASTs in this map must not be modified, since
+     * they are referenced by all files that include them.
+     * 
+     * @param fileHeaderHandling The header handling of the file that includes the headers. The shared ASTs are parsed
+     *      with the configured header handling, so files with a downgraded header handling don't share them.
+     * 
+     * @return Header file -> task that parses the header (or already did); <code>null</code> if header ASTs should
+     *      not be shared.
+     */
+    @Nullable ConcurrentMap<@NonNull File, @NonNull FutureTask<@NonNull ISyntaxElement>> getSharedHeaders(
+            @NonNull HeaderHandling fileHeaderHandling) {
+        return fileHeaderHandling == headerHandling ? sharedHeaders : null;
+    }
+    
+    /**
+     * Returns the run-wide resolver for the paths of #include directives.
+     * 
+     * @return The {@link IncludePathResolver}.
+     */
+    @NonNull IncludePathResolver getIncludePathResolver() {
+        return includePathResolver;
     }
     
     @Override
     protected @NonNull SourceFile<ISyntaxElement> runOnFile(@NonNull File target) throws ExtractorException {
         File absoulteTarget = new File(sourceTree, target.getPath());
         if (!absoulteTarget.exists()) {
+            ExtractionPipeline<@NonNull PreparedXml> pipeline = this.pipeline;
+            if (pipeline != null) {
+                pipeline.discard(target);
+            }
+            countFileDone();
             throw new ExtractorException("srcML could not parse specified file, which does not exist: "
                     + absoulteTarget.getAbsolutePath());
         }
         
-        return parseFile(absoulteTarget, target);
+        DirectoryHeaderMemo directoryHeaderMemo = this.directoryHeaderMemo;
+        if (directoryHeaderMemo != null) {
+            directoryHeaderMemo.start(sourceTree, target);
+        }
+        
+        IncrementalManifest incrementalManifest = this.incrementalManifest;
+        try {
+            UnifiedDiff patch = this.patch;
+            if (patch != null) {
+                return runOnPatchedFile(absoulteTarget, target, patch);
+            }
+            
+            SourceFile<ISyntaxElement> result = null;
+            if (incrementalManifest != null) {
+                result = incrementalManifest.getUnchanged(absoulteTarget, target);
+            }
+            
+            if (result == null) {
+                result = runGoverned(absoulteTarget, (fileHeaderHandling) ->
+                        runOnChangedFile(absoulteTarget, target, fileHeaderHandling));
+            }
+            return result;
+            
+        } finally {
+            IncludeGraph includeGraph = this.includeGraph;
+            ConcurrentMap<@NonNull File, @NonNull FutureTask<@NonNull ISyntaxElement>> sharedHeaders
+                    = this.sharedHeaders;
+            if (includeGraph != null && sharedHeaders != null) {
+                // evict shared headers that are not needed by any other file anymore
+                includeGraph.release(absoulteTarget, sharedHeaders::remove);
+            }
+            
+            if (directoryHeaderMemo != null) {
+                directoryHeaderMemo.release(sourceTree, target);
+            }
+            
+            ExtractionPipeline<@NonNull PreparedXml> pipeline = this.pipeline;
+            if (pipeline != null) {
+                // the file may have been prepared by the pipeline without being taken (e.g. if parsing failed early)
+                pipeline.discard(target);
+            }
+            
+            countFileDone();
+        }
+    }
+    
+    /**
+     * Parses the given file within the budget of the {@link #memoryGovernor}, if there is one.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param parse Parses the file with the given header handling.
+     * 
+     * @return The parsed {@link SourceFile}.
+     * 
+     * @throws CodeExtractorException If parsing the file fails.
+     */
+    private @NonNull SourceFile<ISyntaxElement> runGoverned(@NonNull File absoluteTarget,
+            MemoryGovernor.@NonNull IParse parse) throws CodeExtractorException {
+        
+        MemoryGovernor memoryGovernor = this.memoryGovernor;
+        return memoryGovernor != null
+                ? memoryGovernor.run(absoluteTarget, headerHandling, parse)
+                : parse.parse(headerHandling);
+    }
+    
+    /**
+     * Parses the given file that is not unchanged since the previous incremental run (or there is no incremental
+     * run), re-using the unchanged functions of the previous result, if possible.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree.
+     * @param fileHeaderHandling The header handling for this file.
+     * 
+     * @return The parsed {@link SourceFile}.
+     * 
+     * @throws CodeExtractorException If parsing the file fails.
+     */
+    private @NonNull SourceFile<ISyntaxElement> runOnChangedFile(@NonNull File absoluteTarget,
+            @NonNull File relativeTarget, @NonNull HeaderHandling fileHeaderHandling) throws CodeExtractorException {
+        
+        IncrementalManifest incrementalManifest = this.incrementalManifest;
+        FunctionFingerprints functionFingerprints = null;
+        // the other header handlings modify the converted functions, so these can't be re-used
+        if (incrementalManifest != null && fileHeaderHandling == headerHandling
+                && (headerHandling == HeaderHandling.IGNORE || headerHandling == HeaderHandling.INCLUDE)) {
+            functionFingerprints = new FunctionFingerprints(incrementalManifest.getPreviousFunctions(relativeTarget));
+        }
+        
+        long start = System.currentTimeMillis();
+        SourceFile<ISyntaxElement> result = parseFile(absoluteTarget, relativeTarget, functionFingerprints, null,
+                fileHeaderHandling);
+        // only complete parses are recorded; not cache hits, partial parses of patched files or waits for the budget
+        ExtractionHistory history = this.history;
+        if (history != null) {
+            history.record(relativeTarget, System.currentTimeMillis() - start, absoluteTarget.length());
+        }
+        if (functionFingerprints != null && functionFingerprints.getNumReused() > 0) {
+            LOGGER.logDebug("Re-used " + functionFingerprints.getNumReused() + " unchanged functions of "
+                    + relativeTarget);
+        }
+        // a result with downgraded header handling must not be re-used by following runs
+        if (incrementalManifest != null && fileHeaderHandling == headerHandling) {
+            incrementalManifest.store(absoluteTarget, relativeTarget, result, functionFingerprints);
+        }
+        return result;
+    }
+    
+    /**
+     * Parses the given file, restricted to the parts that are changed by the given patch.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree.
+     * @param patch The patch to restrict the extraction to.
+     * 
+     * @return The parsed {@link SourceFile}. Empty if the file is not changed by the patch.
+     * 
+     * @throws CodeExtractorException If parsing the file fails.
+     */
+    private @NonNull SourceFile<ISyntaxElement> runOnPatchedFile(@NonNull File absoluteTarget,
+            @NonNull File relativeTarget, @NonNull UnifiedDiff patch) throws CodeExtractorException {
+        
+        SourceFile<ISyntaxElement> result;
+        BitSet changedLines = patch.getChangedLines(relativeTarget);
+        if (changedLines == null) {
+            LOGGER.logDebug("Skipping " + relativeTarget + ", since it is not changed by the patch");
+            result = new SourceFile<>(relativeTarget);
+        } else {
+            result = runGoverned(absoluteTarget, (fileHeaderHandling) ->
+                    parseFile(absoluteTarget, relativeTarget, null, changedLines, fileHeaderHandling));
+        }
+        return result;
     }
     
     /**
-     * Holds the information associated with a srcml process.
+     * Holds the information associated with a srcml process. The error output of the process is redirected to a
+     * temporary file by the operating system, so that no thread is needed to drain it while the process runs. Call
+     * {@link #close()} after the process finished to delete this file.
      */
     private class SrcMlProcess {
         
         private @NonNull Process process;
         
-        private @NonNull String stderr = "";
+        private @NonNull InputStream stdout;
+        
+        private @NonNull File stderrFile;
+        
+        private @Nullable String stderr;
 
         /**
          * Creates and starts a srcml process.
@@ -177,17 +993,20 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
                 builder.environment().put("LD_LIBRARY_PATH", libFolder);
                 builder.environment().put("DYLD_LIBRARY_PATH", libFolder);
             }
-
-            this.process = notNull(builder.start());
             
-            Thread errorReader = new Thread(() -> {
-                try {
-                    this.stderr = Util.readStream(notNull(this.process.getErrorStream()));
-                } catch (IOException e) {
-                }
-            }, "SrcMLStderrReader");
-            errorReader.setDaemon(true);
-            errorReader.start();
+            this.stderrFile = notNull(File.createTempFile("srcml", ".stderr"));
+            builder.redirectError(stderrFile);
+            
+            try {
+                this.process = notNull(builder.start());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            
+            SrcMlWatchdog watchdog = SrcMLExtractor.this.watchdog;
+            InputStream stdout = notNull(process.getInputStream());
+            this.stdout = watchdog != null ? watchdog.watch(process, stdout) : stdout;
         }
         
         /**
@@ -196,18 +1015,45 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
          * @return The standard output stream of this process.
          */
         public @NonNull InputStream getStdout() {
-            return notNull(this.process.getInputStream());
+            return stdout;
+        }
+        
+        /**
+         * Returns whether this process was killed by the {@link SrcMlWatchdog}, because it made no progress.
+         * 
+         * @return Whether this process stalled.
+         */
+        public boolean isStalled() {
+            return stdout instanceof SrcMlWatchdog.WatchedStream && ((SrcMlWatchdog.WatchedStream) stdout).isStalled();
         }
         
         /**
-         * After {@link #waitFor()} is called, this returns the error output of this process.
+         * After {@link #waitFor(long)} is called, this returns the error output of this process.
          * 
          * @return The error output of this process.
          */
         public @NonNull String getStderr() {
+            String stderr = this.stderr;
+            if (stderr == null) {
+                try {
+                    stderr = new String(Files.readAllBytes(stderrFile.toPath()));
+                } catch (IOException e) {
+                    stderr = "";
+                }
+                this.stderr = stderr;
+            }
             return stderr;
         }
         
+        /**
+         * Deletes the temporary file that holds the error output of this process.
+         */
+        public void close() {
+            if (!stderrFile.delete() && stderrFile.exists()) {
+                stderrFile.deleteOnExit();
+            }
+        }
+        
         /**
          * Waits until this process is finished and returns the exit code. If this process is already finished, only
          * the exit code is returned.
@@ -223,6 +1069,39 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
         
     }
 
+    /**
+     * Parses the given header file. If {@link #DIRECTORY_LOCALITY_SETTING} is enabled, the srcML output of the
+     * header is re-used for all files in the directory of the including file.
+     * 
+     * @param header The absolute path to the header. Also used as the path in the result {@link SourceFile}.
+     * @param directory The directory of the file that includes the header.
+     * @param fileHeaderHandling The header handling of the file that includes the header. Headers included by the
+     *      header are handled the same way.
+     * 
+     * @return The parsed {@link SourceFile}.
+     * 
+     * @throws CodeExtractorException If parsing the header fails.
+     */
+    @NonNull SourceFile<ISyntaxElement> parseHeader(@NonNull File header, @NonNull File directory,
+            @NonNull HeaderHandling fileHeaderHandling) throws CodeExtractorException {
+        
+        DirectoryHeaderMemo directoryHeaderMemo = this.directoryHeaderMemo;
+        if (directoryHeaderMemo == null) {
+            return parseFile(header, header, null, null, fileHeaderHandling);
+        }
+        
+        try {
+            byte[] xml = directoryHeaderMemo.getOutput(directory, header, () -> runSrcMlHedged(header));
+            
+            SourceFile<ISyntaxElement> result = new SourceFile<>(header);
+            result.addElement(parse(header, header, new ByteArrayInputStream(xml), null, null, fileHeaderHandling));
+            return result;
+            
+        } catch (IOException | SAXException | FormatException e) {
+            throw new CodeExtractorException(header, e);
+        }
+    }
+    
     /**
      * Parses the given source file.
      * 
@@ -236,6 +1115,53 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
      */
     public @NonNull SourceFile<ISyntaxElement> parseFile(@NonNull File absoluteTarget, @NonNull File relativeTarget)
             throws CodeExtractorException {
+        return parseFile(absoluteTarget, relativeTarget, null, null, headerHandling);
+    }
+    
+    /**
+     * Parses the given source file.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree. This is used in exceptions
+     *      and as the path in the result {@link SourceFile}.
+     * @param functionFingerprints The fingerprints for re-using the functions of a previous result, or
+     *      <code>null</code> if all functions should be converted.
+     * @param changedLines The lines to restrict the conversion to (see
+     *      {@link XmlToAstConverter#setChangedLines(BitSet)}), or <code>null</code> if the complete file should be
+     *      converted.
+     * @param fileHeaderHandling The header handling for this file. Usually the configured header handling, unless
+     *      it is downgraded by the {@link MemoryGovernor}.
+     *      
+     * @return The parsed {@link SourceFile}.
+     * 
+     * @throws CodeExtractorException If parsing the file fails.
+     */
+    private @NonNull SourceFile<ISyntaxElement> parseFile(@NonNull File absoluteTarget, @NonNull File relativeTarget,
+            @Nullable FunctionFingerprints functionFingerprints, @Nullable BitSet changedLines,
+            @NonNull HeaderHandling fileHeaderHandling) throws CodeExtractorException {
+        
+        ExtractionPipeline<@NonNull PreparedXml> pipeline = this.pipeline;
+        if (pipeline != null) {
+            PreparedXml prepared = pipeline.take(relativeTarget);
+            if (prepared != null) {
+                try {
+                    SourceFile<ISyntaxElement> result = new SourceFile<>(relativeTarget);
+                    result.addElement(convert(absoluteTarget, relativeTarget, prepared, functionFingerprints,
+                            changedLines, fileHeaderHandling));
+                    return result;
+        
+                } catch (FormatException e) {
+                    throw new CodeExtractorException(relativeTarget, e);
+                }
+            }
+            // not (successfully) prepared by the pipeline; fall back to running all steps in this thread
+        }
+        
+        SrcMlOutputCache srcmlOutputCache = this.srcmlOutputCache;
+        if (srcmlOutputCache != null || hedging != null) {
+            return parseFileBuffered(absoluteTarget, relativeTarget, srcmlOutputCache, functionFingerprints,
+                    changedLines, fileHeaderHandling);
+        }
 
         SourceFile<ISyntaxElement> result = null;
         int iteration = 1;
@@ -250,6 +1176,7 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
         do {
             if (iteration > 1) {
                 LOGGER.logInfo("Trying again");
+                backOff(iteration);
             }
             
             SrcMlProcess process = null;
@@ -258,45 +1185,190 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
                 process = new SrcMlProcess(absoluteTarget);
                 
                 result = new SourceFile<>(relativeTarget);
-                result.addElement(parse(absoluteTarget, relativeTarget, process.getStdout()));
+                result.addElement(parse(absoluteTarget, relativeTarget, process.getStdout(), functionFingerprints,
+                        changedLines, fileHeaderHandling));
                 // if we have a successfully parsed result, we don't need to try again if the srcML exe hangs
                 success = true;
                 
             } catch (IOException | SAXException | FormatException e) {
-                throw new CodeExtractorException(relativeTarget, e);
+                if (process == null || !process.isStalled() || iteration >= MAX_ATTEMPTS) {
+                    throw new CodeExtractorException(relativeTarget, e);
+                }
+                // the watchdog killed srcML, so its output is incomplete; try again
+                result = null;
                 
             } finally {
-                if (process != null) {
-                    try {
-                        // close stdout in the case that an exception aborted our parsing early
-                        process.getStdout().close();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                    // wait only a bit for the srcml exe to stop, since parsing is already finished
-                    Integer exitCode = process.waitFor(100);
-                    
-                    if (exitCode != null) {
-                        if (exitCode != 0) {
-                            LOGGER.logWarning("srcML exe did not execute succesfully: " + exitCode);
-                        } else {
-                            // if the srcML exe didn't hang, we don't need to try again
-                            success = true;
-                        }
-                    } else {
-                        LOGGER.logWarning("srcML was killed due to the kill-timeout being reached");
-                    }
-                    if (process.getStderr().length() > 0) {
-                        LOGGER.logDebug("srcML stderr:", process.getStderr());
-                    }
+                if (process != null && finishProcess(process)) {
+                    success = true;
                 }
             }
             
-        } while (!success && (++iteration) < 3);
+        } while (!success && (++iteration) <= MAX_ATTEMPTS);
         
+        if (result == null) {
+            // srcML stalled in all attempts
+            throw new CodeExtractorException(relativeTarget, new IOException("srcML produced no output for "
+                    + absoluteTarget + " in " + MAX_ATTEMPTS + " attempts"));
+        }
         return result;
     }
     
+    /**
+     * Parses the given source file, by reading the complete srcML output into memory first. This is used for
+     * re-using the srcML output of previously parsed files with the same content, and for hedging srcML runs.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree. This is used in exceptions
+     *      and as the path in the result {@link SourceFile}.
+     * @param srcmlOutputCache The cache of srcML outputs to use, or <code>null</code> if srcML should always run.
+     * @param functionFingerprints The fingerprints for re-using the functions of a previous result, or
+     *      <code>null</code> if all functions should be converted.
+     * @param changedLines The lines to restrict the conversion to (see
+     *      {@link XmlToAstConverter#setChangedLines(BitSet)}), or <code>null</code> if the complete file should be
+     *      converted.
+     * @param fileHeaderHandling The header handling for this file. Usually the configured header handling, unless
+     *      it is downgraded by the {@link MemoryGovernor}.
+     *      
+     * @return The parsed {@link SourceFile}.
+     * 
+     * @throws CodeExtractorException If parsing the file fails.
+     */
+    private @NonNull SourceFile<ISyntaxElement> parseFileBuffered(@NonNull File absoluteTarget,
+            @NonNull File relativeTarget, @Nullable SrcMlOutputCache srcmlOutputCache,
+            @Nullable FunctionFingerprints functionFingerprints, @Nullable BitSet changedLines,
+            @NonNull HeaderHandling fileHeaderHandling) throws CodeExtractorException {
+        
+        try {
+            byte[] xml = srcmlOutputCache != null
+                    ? srcmlOutputCache.getOutput(absoluteTarget, () -> runSrcMlHedged(absoluteTarget))
+                    : runSrcMlHedged(absoluteTarget);
+            
+            SourceFile<ISyntaxElement> result = new SourceFile<>(relativeTarget);
+            // the XML is converted again for each file, so that the AST contains the correct source file
+            result.addElement(parse(absoluteTarget, relativeTarget, new ByteArrayInputStream(xml),
+                    functionFingerprints, changedLines, fileHeaderHandling));
+            return result;
+            
+        } catch (IOException | SAXException | FormatException e) {
+            throw new CodeExtractorException(relativeTarget, e);
+        }
+    }
+    
+    /**
+     * Runs srcML on the given file and reads its complete output. If {@link #HEDGE_PERCENTILE_SETTING} is set, a
+     * second srcML run is started for stragglers.
+     * 
+     * @param absoluteTarget The absolute path to the file to run srcML on.
+     * 
+     * @return The XML output of srcML.
+     * 
+     * @throws IOException If running srcML or reading its output fails.
+     */
+    private byte @NonNull [] runSrcMlHedged(@NonNull File absoluteTarget) throws IOException {
+        SrcMlHedging hedging = this.hedging;
+        return hedging != null
+                ? hedging.run(absoluteTarget.length(), (onStart) -> runSrcMl(absoluteTarget, onStart))
+                : runSrcMl(absoluteTarget, null);
+    }
+    
+    /**
+     * Runs srcML on the given file and reads its complete output.
+     * 
+     * @param absoluteTarget The absolute path to the file to run srcML on.
+     * @param onStart Called with each started srcML process; may be <code>null</code>.
+     * 
+     * @return The XML output of srcML.
+     * 
+     * @throws IOException If running srcML or reading its output fails.
+     */
+    private byte @NonNull [] runSrcMl(@NonNull File absoluteTarget, @Nullable Consumer<@NonNull Process> onStart)
+            throws IOException {
+        for (int iteration = 1;; iteration++) {
+            if (iteration > 1) {
+                LOGGER.logInfo("Trying again");
+                backOff(iteration);
+            }
+            
+            SrcMlProcess process = new SrcMlProcess(absoluteTarget);
+            if (onStart != null) {
+                onStart.accept(process.process);
+            }
+            try (InputStream stdout = process.getStdout()) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stdout.read(buffer)) != -1) {
+                    result.write(buffer, 0, read);
+                }
+                if (!process.isStalled()) {
+                    return notNull(result.toByteArray());
+                }
+                
+            } catch (IOException e) {
+                if (!process.isStalled()) {
+                    throw e;
+                }
+                
+            } finally {
+                finishProcess(process);
+            }
+            
+            // the watchdog killed srcML, so its output is incomplete
+            if (iteration >= MAX_ATTEMPTS) {
+                throw new IOException("srcML produced no output for " + absoluteTarget + " in " + MAX_ATTEMPTS
+                        + " attempts");
+            }
+        }
+    }
+    
+    /**
+     * Waits before starting srcML again after a failed attempt. The delay doubles with each attempt.
+     * 
+     * @param iteration The number of the attempt that is about to start (2 for the first retry).
+     */
+    private static void backOff(int iteration) {
+        try {
+            Thread.sleep(RETRY_DELAY << (iteration - 2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Waits for the given srcML process to stop after its output was read, and logs its errors.
+     * 
+     * @param process The process to finish.
+     * 
+     * @return Whether the process exited normally.
+     */
+    private static boolean finishProcess(@NonNull SrcMlProcess process) {
+        boolean success = false;
+        try {
+            // close stdout in the case that an exception aborted our parsing early
+            process.getStdout().close();
+        } catch (IOException e) {
+            // ignore
+        }
+        // wait only a bit for the srcml exe to stop, since parsing is already finished
+        Integer exitCode = process.waitFor(100);
+        
+        if (exitCode != null) {
+            if (exitCode != 0) {
+                LOGGER.logWarning("srcML exe did not execute succesfully: " + exitCode);
+            } else {
+                // if the srcML exe didn't hang, we don't need to try again
+                success = true;
+            }
+        } else {
+            LOGGER.logWarning("srcML was killed due to the kill-timeout being reached");
+        }
+        if (process.getStderr().length() > 0) {
+            LOGGER.logDebug("srcML stderr:", process.getStderr());
+        }
+        process.close();
+        return success;
+    }
+    
     /**
      * Parses the given XML stream to an AST.
      * 
@@ -304,6 +1376,13 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
      * @param relativeTarget The path to the file to parse, relative to the source tree. This is used in exceptions
      *      and as the path in the result {@link SourceFile}.
      * @param xml The XML stream to parse.
+     * @param functionFingerprints The fingerprints for re-using the functions of a previous result, or
+     *      <code>null</code> if all functions should be converted.
+     * @param changedLines The lines to restrict the conversion to (see
+     *      {@link XmlToAstConverter#setChangedLines(BitSet)}), or <code>null</code> if the complete file should be
+     *      converted.
+     * @param fileHeaderHandling The header handling for this file. Usually the configured header handling, unless
+     *      it is downgraded by the {@link MemoryGovernor}.
      * 
      * @return The parsed AST.
      * 
@@ -312,8 +1391,37 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
      * @throws IOException If reading the XML stream fails.
      */
     private @NonNull ISyntaxElement parse(@NonNull File absoluteTarget, @NonNull File relativeTarget,
-            @NonNull InputStream xml) throws FormatException, SAXException, IOException {
+            @NonNull InputStream xml, @Nullable FunctionFingerprints functionFingerprints,
+            @Nullable BitSet changedLines, @NonNull HeaderHandling fileHeaderHandling)
+            throws FormatException, SAXException, IOException {
         PerformanceProbe p = new PerformanceProbe("SrcMLExtractor parse()");
+        try {
+            return convert(absoluteTarget, relativeTarget,
+                    prepareXml(absoluteTarget, relativeTarget, xml, fileHeaderHandling),
+                    functionFingerprints, changedLines, fileHeaderHandling);
+        } finally {
+            p.close();
+        }
+    }
+    
+    /**
+     * Parses and pre-processes the given XML stream. The headers included by the file are prefetched, if enabled.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree.
+     * @param xml The XML stream to parse.
+     * @param fileHeaderHandling The header handling for this file. Usually the configured header handling, unless
+     *      it is downgraded by the {@link MemoryGovernor}.
+     * 
+     * @return The pre-processed XML, ready to be converted.
+     * 
+     * @throws FormatException If the XML is not a srcML unit of C code.
+     * @throws SAXException If parsing the XML fails.
+     * @throws IOException If reading the XML stream fails.
+     */
+    private @NonNull PreparedXml prepareXml(@NonNull File absoluteTarget, @NonNull File relativeTarget,
+            @NonNull InputStream xml, @NonNull HeaderHandling fileHeaderHandling)
+            throws FormatException, SAXException, IOException {
         PerformanceProbe p1 = new PerformanceProbe("SrcMLExtractor 1) XML parsing");
         
         Document doc = XmlParser.parse(xml);
@@ -321,19 +1429,16 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
         
         if (!root.getNodeName().equals("unit")) {
             p1.close();
-            p.close();
             throw new FormatException("Expected <unit> but got <" + root.getNodeName() + ">");
         }
         
         Node languageAttr = root.getAttributes().getNamedItem("language");
         if (languageAttr == null) {
             p1.close();
-            p.close();
             throw new FormatException("Language attribute not specified in <unit>");
         }
         if (!languageAttr.getTextContent().equals("C")) {
             p1.close();
-            p.close();
             throw new FormatException("Unsupported language \"" + languageAttr.getTextContent() + "\"");
         }    
         debugXmlOutput("Parsed", root);
@@ -341,44 +1446,111 @@ public class SrcMLExtractor extends AbstractCodeModelExtractor {
         p1.close();
         p1 = new PerformanceProbe("SrcMLExtractor 2) Preprocessing");
         
+        IncludeExpander includeExpander = new IncludeExpander(absoluteTarget, this, fileHeaderHandling);
+        if (fileHeaderHandling == HeaderHandling.INCLUDE
+                || fileHeaderHandling == HeaderHandling.EXPAND_FUNCTION_CONDITION) {
+            // start parsing the headers in the background, while this file is converted
+            includeExpander.prefetch(doc);
+        }
+        
         new XmlPrepreocessor(relativeTarget, doc).preprocess(root);
         debugXmlOutput("Pre-Processed", root);
         
         p1.close();
-        p1 = new PerformanceProbe("SrcMLExtractor 3) Conversion");
+        return new PreparedXml(root, includeExpander);
+    }
+    
+    /**
+     * Converts the given pre-processed XML to an AST, and handles the headers.
+     * 
+     * @param absoluteTarget The absolute path to the file to parse.
+     * @param relativeTarget The path to the file to parse, relative to the source tree.
+     * @param prepared The pre-processed XML.
+     * @param functionFingerprints The fingerprints for re-using the functions of a previous result, or
+     *      <code>null</code> if all functions should be converted.
+     * @param changedLines The lines to restrict the conversion to (see
+     *      {@link XmlToAstConverter#setChangedLines(BitSet)}), or <code>null</code> if the complete file should be
+     *      converted.
+     * @param fileHeaderHandling The header handling for this file. Usually the configured header handling, unless
+     *      it is downgraded by the {@link MemoryGovernor}.
+     * 
+     * @return The converted AST.
+     * 
+     * @throws FormatException If the configured header handling is not implemented.
+     */
+    private @NonNull ISyntaxElement convert(@NonNull File absoluteTarget, @NonNull File relativeTarget,
+            @NonNull PreparedXml prepared, @Nullable FunctionFingerprints functionFingerprints,
+            @Nullable BitSet changedLines, @NonNull HeaderHandling fileHeaderHandling) throws FormatException {
+        PerformanceProbe p1 = new PerformanceProbe("SrcMLExtractor 3) Conversion");
         
+        IncludeExpander includeExpander = prepared.includeExpander;
         XmlToAstConverter converter = new XmlToAstConverter(relativeTarget, this.handleLinuxMacro, cppExpressiveness,
-                this.invalidConditionHandling);
-        net.ssehub.kernel_haven.code_model.ast.File file = converter.convertFile(root);   
+                this.invalidConditionHandling, this.variableCache, this.stringInterner);
+        converter.setFunctionFingerprints(functionFingerprints);
+        converter.setChangedLines(changedLines);
+        net.ssehub.kernel_haven.code_model.ast.File file = converter.convertFile(prepared.root);   
         debugFileOutput(file);
         
         p1.close();
         p1 = new PerformanceProbe("SrcMLExtractor 4) Header Handling");
         
-        switch (headerHandling) {
+        switch (fileHeaderHandling) {
         case IGNORE:
             // do nothing
             break;
             
         case INCLUDE:
-            new IncludeExpander(absoluteTarget, this).expand(file);
+            includeExpander.expand(file);
             break;
             
         case EXPAND_FUNCTION_CONDITION:
-            new IncludeExpander(absoluteTarget, this).expand(file);
-            new FunctionConditionExpander().expand(file);
+            expandFunctionConditions(absoluteTarget, relativeTarget, file, includeExpander,
+                    new FunctionConditionExpander(functionDeclarationIndex, converter.getFunctionDeclarationNames()));
+            break;
+            
+        case EXPAND_FUNCTION_CONDITION_FROM_SUMMARY:
+            expandFunctionConditions(absoluteTarget, relativeTarget, file, null,
+                    new FunctionConditionExpander(functionDeclarationIndex, converter.getFunctionDeclarationNames(),
+                            includeExpander));
             break;
         
         default:
             p1.close();
-            p.close();
-            throw new FormatException("Header handling " + headerHandling + " not implemented");
+            throw new FormatException("Header handling " + fileHeaderHandling + " not implemented");
         }
+        includeExpander.cancelPrefetches();
         
         p1.close();
-        p.close();
         return file;
     }
+    
+    /**
+     * Runs the given {@link FunctionConditionExpander} on the given AST. If the AST is a header parsed for an
+     * #include directive, its declarations are stored in the {@link #functionDeclarationIndex} afterwards.
+     * 
+     * @param absoluteTarget The absolute path to the parsed file.
+     * @param relativeTarget The path to the parsed file, relative to the source tree.
+     * @param file The parsed AST.
+     * @param includeExpander If not <code>null</code>, the #include directives are expanded with this in the same
+     *      traversal of the AST.
+     * @param expander The expander to run.
+     */
+    private void expandFunctionConditions(@NonNull File absoluteTarget, @NonNull File relativeTarget,
+            net.ssehub.kernel_haven.code_model.ast.@NonNull File file, @Nullable IncludeExpander includeExpander,
+            @NonNull FunctionConditionExpander expander) {
+        
+        if (includeExpander != null) {
+            // included headers are directly searched for declarations, before the traversal continues
+            new AstPostProcessor(includeExpander, expander).process(file);
+        } else {
+            expander.expand(file);
+        }
+        
+        // headers are parsed by the IncludeExpander with the absolute path as the relative path, too
+        if (absoluteTarget.equals(relativeTarget)) {
+            expander.publishDeclarations(absoluteTarget);
+        }
+    }
 
     /**
      * Prints the parsed {@link net.ssehub.kernel_haven.code_model.ast.File}, if {@link #DEBUG_LOGGING}.
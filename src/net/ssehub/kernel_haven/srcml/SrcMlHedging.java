@@ -0,0 +1,334 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Hedged execution of srcML for straggler files. The durations of the recent srcML runs are tracked relative to the
+ * size of their input files; if a run takes longer than a configured percentile of these durations (scaled to the
+ * size of its input file), a second (hedge) run is started for the same file in another thread. Whichever run
+ * finishes first wins; the process of the other run is killed. The first run is executed in the calling thread, so
+ * that only hedge runs need additional threads.
+ *
+ * @author Adam
+ */
+class SrcMlHedging {
+
+    /**
+     * A single run of srcML.
+     */
+    @FunctionalInterface
+    interface IAttempt {
+
+        /**
+         * Runs srcML and reads its complete output.
+         *
+         * @param onStart Must be called with each process that is started, so that it can be killed if the other
+         *      run wins.
+         *
+         * @return The XML output of srcML.
+         *
+         * @throws IOException If running srcML fails.
+         */
+        byte @NonNull [] run(@NonNull Consumer<@NonNull Process> onStart) throws IOException;
+
+    }
+
+    /**
+     * A started run, which can be cancelled by killing its process.
+     */
+    private static class Run {
+
+        private @NonNull CompletableFuture<byte @NonNull []> result = new CompletableFuture<>();
+
+        private @Nullable Process process;
+
+        private boolean cancelled;
+
+        /**
+         * Records a started process of this run.
+         *
+         * @param process The started process.
+         */
+        private synchronized void started(@NonNull Process process) {
+            this.process = process;
+            if (cancelled) {
+                process.destroyForcibly();
+            }
+        }
+
+        /**
+         * Kills the process of this run, if it is still running.
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+            Process process = this.process;
+            if (process != null) {
+                process.destroyForcibly();
+            }
+        }
+
+        /**
+         * Returns whether this run was cancelled.
+         *
+         * @return Whether {@link #cancel()} was called.
+         */
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * The minimum number of recorded durations before any run is hedged.
+     */
+    private static final int MIN_SAMPLES = 50;
+
+    /**
+     * The number of recent durations that the percentile is computed from.
+     */
+    private static final int WINDOW = 512;
+
+    private int percentile;
+
+    /**
+     * Starts the hedge runs when their threshold is reached.
+     */
+    private @NonNull ScheduledExecutorService timer;
+
+    /**
+     * Executes the hedge runs.
+     */
+    private @NonNull ExecutorService threads;
+
+    /**
+     * Ring buffer of the recent durations, in milliseconds per byte of the input file. Guarded by <code>this</code>.
+     */
+    private double @NonNull [] durations;
+
+    private int numDurations;
+
+    private @NonNull AtomicInteger numHedged;
+
+    /**
+     * Creates a new hedging strategy.
+     *
+     * @param percentile The percentile (1 to 99) of recent durations after which a run is hedged.
+     */
+    public SrcMlHedging(int percentile) {
+        this.percentile = Math.min(Math.max(percentile, 1), 99);
+        this.durations = new double[WINDOW];
+        this.numHedged = new AtomicInteger();
+
+        this.timer = notNull(Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "srcML-hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.threads = notNull(Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "srcML-hedge-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Runs srcML in the calling thread, and hedges the run if it is a straggler.
+     *
+     * @param size The size of the input file, in bytes.
+     * @param attempt The srcML run. May be executed twice in parallel.
+     *
+     * @return The output of the run that finished first.
+     *
+     * @throws IOException If all runs failed.
+     */
+    public byte @NonNull [] run(long size, @NonNull IAttempt attempt) throws IOException {
+        long start = System.nanoTime();
+        long threshold = getThreshold(size);
+
+        Run primary = new Run();
+        AtomicReference<@Nullable Run> hedge = new AtomicReference<>();
+        ScheduledFuture<?> hedgeStart = null;
+        if (threshold >= 0) {
+            try {
+                hedgeStart = timer.schedule(() -> hedge.set(startHedge(threshold, primary, attempt)),
+                        threshold, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // already closed; run without a hedge
+            }
+        }
+
+        byte[] result = null;
+        IOException failure = null;
+        try {
+            result = attempt.run(primary::started);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if (hedgeStart != null) {
+                hedgeStart.cancel(false);
+            }
+        }
+
+        Run hedgeRun = hedgeStart != null && !hedgeStart.isCancelled() ? waitFor(hedgeStart, hedge) : null;
+        if (hedgeRun != null) {
+            if (primary.isCancelled() || result == null) {
+                // the hedge won and killed the primary run, or the primary run failed
+                try {
+                    result = hedgeRun.result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted while waiting for srcML", e);
+                }
+            }
+            hedgeRun.cancel();
+        }
+
+        if (result == null) {
+            throw notNull(failure);
+        }
+        record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), size);
+        return result;
+    }
+
+    /**
+     * Waits until the hedge run of a primary run is started.
+     *
+     * @param hedgeStart The scheduled start of the hedge run.
+     * @param hedge The hedge run, set by the scheduled start.
+     *
+     * @return The started hedge run.
+     */
+    private static @Nullable Run waitFor(@NonNull ScheduledFuture<?> hedgeStart,
+            @NonNull AtomicReference<@Nullable Run> hedge) {
+        try {
+            hedgeStart.get();
+        } catch (ExecutionException | CancellationException e) {
+            // not started
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return hedge.get();
+    }
+
+    /**
+     * Starts a hedge run in a background thread. If it succeeds, the primary run is killed.
+     *
+     * @param threshold The threshold that the primary run exceeded, in milliseconds.
+     * @param primary The primary run.
+     * @param attempt The srcML run.
+     *
+     * @return The started hedge run, or <code>null</code> if this is already closed.
+     */
+    private @Nullable Run startHedge(long threshold, @NonNull Run primary, @NonNull IAttempt attempt) {
+        Run run = new Run();
+        try {
+            threads.execute(() -> {
+                try {
+                    run.result.complete(attempt.run(run::started));
+                    primary.cancel();
+                } catch (IOException | RuntimeException e) {
+                    run.result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already closed; the primary run continues alone
+            return null;
+        }
+
+        LOGGER.logDebug("srcML run exceeded " + threshold + " ms; started a hedge run");
+        numHedged.incrementAndGet();
+        return run;
+    }
+
+    /**
+     * Records the duration of a srcML run.
+     *
+     * @param duration The duration, in milliseconds.
+     * @param size The size of the input file, in bytes.
+     */
+    synchronized void record(long duration, long size) {
+        durations[numDurations % WINDOW] = (double) duration / Math.max(size, 1);
+        numDurations++;
+    }
+
+    /**
+     * Computes the duration after which a run is hedged.
+     *
+     * @param size The size of the input file of the run, in bytes.
+     *
+     * @return The configured percentile of the recent durations, scaled to the given size, in milliseconds; or -1 if
+     *      not enough durations are recorded yet.
+     */
+    synchronized long getThreshold(long size) {
+        long result = -1;
+        if (numDurations >= MIN_SAMPLES) {
+            double[] sorted = Arrays.copyOf(durations, Math.min(numDurations, WINDOW));
+            Arrays.sort(sorted);
+            // never hedge runs that are faster than it takes to start another process
+            result = Math.max((long) (sorted[(sorted.length - 1) * percentile / 100] * Math.max(size, 1)), 10);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of runs that were hedged.
+     *
+     * @return The number of started hedge runs.
+     */
+    public int getNumHedged() {
+        return numHedged.get();
+    }
+
+    /**
+     * Stops the background threads. Hedge runs that are already started are finished. This may be called while
+     * other threads still call {@link #run(long, IAttempt)}; these runs are then not hedged anymore.
+     */
+    public void close() {
+        timer.shutdownNow();
+        threads.shutdown();
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Caches the XML output of srcML by the content of the parsed files. Byte-identical files (e.g. copied drivers or
+ * headers duplicated across architecture directories) are only passed to srcML once per run; the XML is then
+ * converted again for each path, so that the resulting ASTs carry the correct source file.
+ * <p>
+ * The content is identified by its SHA-256 hash. Only files that have the same size as another file of the run are
+ * hashed, and the XML of a content is only kept until the last file with this content got it.
+ *
+ * @author Adam
+ */
+class SrcMlOutputCache {
+
+    /**
+     * Runs srcML on a file.
+     */
+    @FunctionalInterface
+    interface ISrcMlRunner {
+
+        /**
+         * Runs srcML and returns the complete XML output.
+         *
+         * @return The XML output of srcML.
+         *
+         * @throws IOException If running srcML fails.
+         */
+        byte @NonNull [] run() throws IOException;
+
+    }
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * Content hash -> task that runs (or already ran) srcML on the first file with this content.
+     */
+    private @NonNull ConcurrentMap<@NonNull String, @NonNull FutureTask<byte @NonNull []>> outputs;
+
+    /**
+     * File -> hash of its content, for all files of the run that have the same content as another file of the run.
+     */
+    private @NonNull Map<@NonNull File, @NonNull String> duplicateHashes;
+
+    /**
+     * Content hash -> number of files with this content that did not get their output yet.
+     */
+    private @NonNull Map<@NonNull String, @NonNull AtomicInteger> remaining;
+
+    private @NonNull AtomicInteger numDuplicates;
+
+    /**
+     * Creates a new, empty cache for the given files. Files that have the same size as another file are hashed
+     * here; srcML output is only cached for files with the same content as another file, and only until all of these
+     * got it.
+     *
+     * @param files All files of the run, as they are later passed to {@link #getOutput(File, ISrcMlRunner)}.
+     */
+    public SrcMlOutputCache(@NonNull Collection<@NonNull File> files) {
+        this.outputs = new ConcurrentHashMap<>();
+        this.remaining = new HashMap<>();
+        this.numDuplicates = new AtomicInteger();
+
+        // files with a unique size can't have the same content as another file, so they don't need to be hashed
+        Map<Long, List<@NonNull File>> bySize = new HashMap<>();
+        for (File file : files) {
+            bySize.computeIfAbsent(file.length(), (size) -> new ArrayList<>()).add(file);
+        }
+
+        Map<@NonNull String, List<@NonNull File>> byHash = new HashMap<>();
+        for (List<@NonNull File> sameSize : bySize.values()) {
+            if (sameSize.size() > 1) {
+                for (File file : sameSize) {
+                    try {
+                        byHash.computeIfAbsent(hash(file), (hash) -> new ArrayList<>()).add(file);
+                    } catch (IOException e) {
+                        LOGGER.logException("Can't hash " + file, e);
+                    }
+                }
+            }
+        }
+
+        Map<@NonNull File, @NonNull String> duplicateHashes = new HashMap<>();
+        for (Map.Entry<@NonNull String, List<@NonNull File>> entry : byHash.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                for (File file : entry.getValue()) {
+                    duplicateHashes.put(file, notNull(entry.getKey()));
+                }
+                remaining.put(notNull(entry.getKey()), new AtomicInteger(entry.getValue().size()));
+            }
+        }
+        this.duplicateHashes = duplicateHashes;
+    }
+
+    /**
+     * Returns the XML output of srcML for the given file. If a file with the same content was already passed to
+     * this method, its output is returned (if srcML is still running on it, this waits for it to finish). Otherwise,
+     * the given runner is called in the current thread.
+     *
+     * @param file The file to get the srcML output for.
+     * @param runner Runs srcML on the given file, if no output for its content is cached.
+     *
+     * @return The XML output of srcML.
+     *
+     * @throws IOException If running srcML fails.
+     */
+    public byte @NonNull [] getOutput(@NonNull File file, @NonNull ISrcMlRunner runner) throws IOException {
+        String key = duplicateHashes.get(file);
+        if (key == null) {
+            // no other file of the run has the same content
+            return runner.run();
+        }
+
+        FutureTask<byte @NonNull []> task = new FutureTask<>(runner::run);
+        FutureTask<byte @NonNull []> existing = outputs.putIfAbsent(key, task);
+        if (existing == null) {
+            task.run();
+        } else {
+            LOGGER.logDebug("Re-using srcML output for identical file " + file);
+            numDuplicates.incrementAndGet();
+            task = existing;
+        }
+
+        try {
+            return notNull(task.get());
+
+        } catch (ExecutionException e) {
+            // don't keep failures; the next file with the same content tries again
+            outputs.remove(key, task);
+
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+
+        } finally {
+            AtomicInteger remaining = this.remaining.get(key);
+            if (remaining != null && remaining.decrementAndGet() <= 0) {
+                // this was the last file with this content
+                outputs.remove(key, task);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files for which the output of a previous file with the same content was re-used.
+     *
+     * @return The number of duplicate files.
+     */
+    public int getNumDuplicates() {
+        return numDuplicates.get();
+    }
+
+    /**
+     * Returns the number of srcML outputs that are currently kept in memory.
+     *
+     * @return The number of cached outputs.
+     */
+    int getNumCachedOutputs() {
+        return outputs.size();
+    }
+
+    /**
+     * Computes the hash of the content of the given file.
+     *
+     * @param file The file to hash.
+     *
+     * @return The hash of the file, as a hex string.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    static @NonNull String hash(@NonNull File file) throws IOException {
+        MessageDigest digest = createDigest();
+
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the hash of the given text.
+     *
+     * @param text The text to hash.
+     *
+     * @return The hash of the UTF-8 encoded text, as a hex string.
+     */
+    static @NonNull String hash(@NonNull String text) {
+        return toHex(createDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates the message digest used for hashing.
+     *
+     * @return A new SHA-256 digest.
+     */
+    private static @NonNull MessageDigest createDigest() {
+        try {
+            return notNull(MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts the given bytes to a hex string.
+     *
+     * @param bytes The bytes to convert.
+     *
+     * @return The hex string.
+     */
+    private static @NonNull String toHex(byte @NonNull [] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return notNull(result.toString());
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.PerformanceProbe;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Kills srcML processes that make no progress. The standard output of a watched process is wrapped in a
+ * {@link WatchedStream}; if no bytes were read from it for longer than the stall timeout, the process is killed. The
+ * thread reading the output then reaches the end of the stream, and can check {@link WatchedStream#isStalled()} to
+ * find out whether it should try again.
+ * <p>
+ * All processes are checked by a single background thread. Call {@link #close()} at the end of the run to stop it.
+ * <p>
+ * Note that only the consumption of the output is observed: if the reading thread doesn't read for longer than the
+ * stall timeout (e.g. because converting the already read output takes that long), the process looks stalled, too.
+ *
+ * @author Adam
+ */
+class SrcMlWatchdog {
+
+    /**
+     * The standard output of a watched process. Reading from this stream counts as progress of the process.
+     */
+    class WatchedStream extends FilterInputStream {
+
+        private @NonNull Process process;
+
+        private volatile long lastProgress;
+
+        private volatile boolean stalled;
+
+        /**
+         * Creates a new {@link WatchedStream}.
+         *
+         * @param process The process to watch.
+         * @param stdout The standard output of the process.
+         */
+        private WatchedStream(@NonNull Process process, @NonNull InputStream stdout) {
+            super(stdout);
+            this.process = process;
+            this.lastProgress = System.nanoTime();
+        }
+
+        /**
+         * Records the result of a read call.
+         *
+         * @param read The result of the read call; -1 if the end of the stream is reached.
+         *
+         * @return The given result.
+         */
+        private int progress(int read) {
+            if (read == -1) {
+                // nothing to watch anymore, the process is finished writing its output
+                watched.remove(this);
+            } else {
+                lastProgress = System.nanoTime();
+            }
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return progress(super.read());
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return progress(super.read(buffer, offset, length));
+        }
+
+        @Override
+        public void close() throws IOException {
+            watched.remove(this);
+            super.close();
+        }
+
+        /**
+         * Returns whether the process was killed by the watchdog, because it made no progress.
+         *
+         * @return Whether the process stalled.
+         */
+        public boolean isStalled() {
+            return stalled;
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.get();
+
+    private long stallTimeout;
+
+    private @NonNull Set<@NonNull WatchedStream> watched;
+
+    private @NonNull AtomicInteger numStalls;
+
+    private @NonNull ScheduledExecutorService timer;
+
+    /**
+     * Creates a new watchdog and starts its background thread.
+     *
+     * @param stallTimeout The time without any output after which a process is killed, in milliseconds.
+     */
+    public SrcMlWatchdog(long stallTimeout) {
+        this.stallTimeout = TimeUnit.MILLISECONDS.toNanos(stallTimeout);
+        this.watched = notNull(ConcurrentHashMap.newKeySet());
+        this.numStalls = new AtomicInteger();
+
+        this.timer = notNull(Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "srcML-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        long period = Math.max(stallTimeout / 4, 10);
+        timer.scheduleAtFixedRate(this::check, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts watching the given process.
+     *
+     * @param process The process to watch.
+     * @param stdout The standard output of the process.
+     *
+     * @return The stream to read the output from, instead of the given stream. If this is already closed, the
+     *      process is not watched.
+     */
+    public @NonNull WatchedStream watch(@NonNull Process process, @NonNull InputStream stdout) {
+        WatchedStream result = new WatchedStream(process, stdout);
+        if (!timer.isShutdown()) {
+            watched.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Kills all watched processes that made no progress within the stall timeout.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (WatchedStream stream : watched) {
+            if (now - stream.lastProgress > stallTimeout && watched.remove(stream)) {
+                stream.stalled = true;
+                stream.process.destroyForcibly();
+                numStalls.incrementAndGet();
+
+                LOGGER.logWarning("Killed srcML process, since it produced no output for "
+                        + TimeUnit.NANOSECONDS.toMillis(stallTimeout) + " ms");
+                // record the stall in the performance measurements
+                new PerformanceProbe("SrcMLExtractor stalled srcML process").close();
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread. Processes that are still watched are not killed anymore. This may be called while
+     * other threads still start processes; these are then not watched.
+     */
+    public void close() {
+        timer.shutdownNow();
+        watched.clear();
+    }
+
+    /**
+     * Returns the number of processes that were killed, because they made no progress.
+     *
+     * @return The number of stalled processes.
+     */
+    public int getNumStalls() {
+        return numStalls.get();
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * A thread-safe interning table for strings in the AST (function names and code tokens). Equal strings are replaced
+ * by a single shared instance. Both keys and values are only weakly referenced, so strings that are no longer used by
+ * any AST can be garbage collected.
+ * <p>
+ * The table is split into several stripes, each guarded by its own lock, so that concurrent extractor threads rarely
+ * block each other.
+ *
+ * @author Adam
+ */
+class StringInterner {
+
+    /**
+     * Longer strings are not interned, since it is unlikely that they occur more than once.
+     */
+    static final int MAX_LENGTH = 64;
+
+    private static final int NUM_STRIPES = 16;
+
+    private final Map<String, WeakReference<String>>[] stripes;
+
+    private final @NonNull AtomicLong numLookups;
+
+    private final @NonNull AtomicLong numHits;
+
+    /**
+     * Creates a new, empty {@link StringInterner}.
+     */
+    @SuppressWarnings("unchecked")
+    public StringInterner() {
+        stripes = new Map[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new WeakHashMap<>();
+        }
+        numLookups = new AtomicLong();
+        numHits = new AtomicLong();
+    }
+
+    /**
+     * Returns the shared instance for the given string. Strings longer than {@link #MAX_LENGTH} are returned
+     * unchanged.
+     *
+     * @param str The string to intern.
+     *
+     * @return A string equal to the given one; the same instance for all equal strings passed to this method.
+     */
+    public @NonNull String intern(@NonNull String str) {
+        if (str.length() > MAX_LENGTH) {
+            return str;
+        }
+
+        numLookups.incrementAndGet();
+
+        Map<String, WeakReference<String>> stripe = stripes[(str.hashCode() & 0x7FFFFFFF) % NUM_STRIPES];
+        String result;
+        synchronized (stripe) {
+            WeakReference<String> ref = stripe.get(str);
+            result = ref != null ? ref.get() : null;
+
+            if (result == null) {
+                stripe.put(str, new WeakReference<>(str));
+                result = str;
+            } else {
+                numHits.incrementAndGet();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns how many strings were passed to {@link #intern(String)} (excluding the ones that were too long).
+     *
+     * @return The number of lookups.
+     */
+    public long getNumLookups() {
+        return numLookups.get();
+    }
+
+    /**
+     * Returns how many strings passed to {@link #intern(String)} were replaced by an already existing instance.
+     *
+     * @return The number of de-duplicated strings.
+     */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import net.ssehub.kernel_haven.cpp_utils.CppConditionParser;
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A fast path for the most common, trivial CPP conditions. These are recognized with a single scan over the
+ * characters, without invoking the full {@link CppConditionParser}. The following shapes are supported
+ * (whitespace is allowed between all tokens):
+ * <ul>
+ *      <li>{@code 0} and {@code 1}</li>
+ *      <li>{@code defined(VAR)} and {@code defined VAR}</li>
+ *      <li>{@code !defined(VAR)} and {@code !defined VAR}</li>
+ * </ul>
+ * All other conditions are not handled by this class and have to be passed to the {@link CppConditionParser}.
+ *
+ * @author Adam
+ */
+class TrivialConditionParser {
+
+    private static final @NonNull String DEFINED = "defined";
+
+    /**
+     * Used for creating the {@link Variable}s, so that the same variable name always results in the same
+     * {@link Variable} instance.
+     */
+    private @NonNull VariableCache variables;
+
+    /**
+     * Creates a new {@link TrivialConditionParser}.
+     *
+     * @param variables The cache to create all {@link Variable}s with.
+     */
+    public TrivialConditionParser(@NonNull VariableCache variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * Returns the (cached) {@link Variable} for the given name.
+     *
+     * @param name The name of the variable.
+     *
+     * @return The {@link Variable} with the given name.
+     */
+    public @NonNull Variable getVariable(@NonNull String name) {
+        return variables.getVariable(name);
+    }
+
+    /**
+     * Parses the given condition, if it is a trivial one.
+     *
+     * @param condition The condition of an {@code #if} or {@code #elif}.
+     *
+     * @return The parsed {@link Formula}, or <code>null</code> if the condition is not trivial and has to be parsed
+     *      by the {@link CppConditionParser}.
+     */
+    public @Nullable Formula parse(@NonNull String condition) {
+        Formula result = null;
+
+        int start = skipWhitespace(condition, 0);
+        int end = condition.length();
+        while (end > start && Character.isWhitespace(condition.charAt(end - 1))) {
+            end--;
+        }
+
+        if (end - start == 1) {
+            char c = condition.charAt(start);
+            if (c == '0') {
+                result = False.INSTANCE;
+            } else if (c == '1') {
+                result = True.INSTANCE;
+            }
+
+        } else if (end > start) {
+            boolean negated = false;
+            int pos = start;
+            if (condition.charAt(pos) == '!') {
+                negated = true;
+                pos = skipWhitespace(condition, pos + 1);
+            }
+
+            Variable variable = parseDefined(condition, pos, end);
+            if (variable != null) {
+                result = negated ? new Negation(variable) : variable;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses a single {@code defined(VAR)} or {@code defined VAR} that spans the complete given range.
+     *
+     * @param str The string to parse.
+     * @param start The start index, inclusive. Must point to a non-whitespace character.
+     * @param end The end index, exclusive. Must be directly after a non-whitespace character.
+     *
+     * @return The variable that is checked by the defined, or <code>null</code> if the given range is not a single
+     *      defined.
+     */
+    private @Nullable Variable parseDefined(@NonNull String str, int start, int end) {
+        if (!str.startsWith(DEFINED, start)) {
+            return null;
+        }
+
+        int pos = start + DEFINED.length();
+        boolean bracket = false;
+        if (pos < end && str.charAt(pos) == '(') {
+            bracket = true;
+            pos++;
+        } else if (pos < end && !Character.isWhitespace(str.charAt(pos))) {
+            // something like "definedX"
+            return null;
+        }
+        pos = skipWhitespace(str, pos);
+
+        int nameStart = pos;
+        while (pos < end && isIdentifierChar(str.charAt(pos))) {
+            pos++;
+        }
+        int nameEnd = pos;
+
+        pos = skipWhitespace(str, pos);
+        if (bracket) {
+            if (pos >= end || str.charAt(pos) != ')') {
+                return null;
+            }
+            pos++;
+        }
+
+        Variable result = null;
+        if (pos == end && isIdentifier(str, nameStart, nameEnd)) {
+            result = getVariable(str.substring(nameStart, nameEnd));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the first non-whitespace character, starting at the given index.
+     *
+     * @param str The string to search in.
+     * @param start The index to start searching at.
+     *
+     * @return The index of the first non-whitespace character, or the length of the string if there is none.
+     */
+    private static int skipWhitespace(@NonNull String str, int start) {
+        int pos = start;
+        while (pos < str.length() && Character.isWhitespace(str.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Checks whether the given character may be part of a CPP identifier.
+     *
+     * @param c The character to check.
+     *
+     * @return Whether the character is a letter, digit or underscore.
+     */
+    private static boolean isIdentifierChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Checks whether the given range of the string is a valid CPP identifier, i.e. it is not empty, consists only of
+     * identifier characters, and does not start with a digit.
+     *
+     * @param str The string to check.
+     * @param start The start index, inclusive.
+     * @param end The end index, exclusive.
+     *
+     * @return Whether the range is a valid identifier.
+     */
+    static boolean isIdentifier(@NonNull String str, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        char first = str.charAt(start);
+        if (first >= '0' && first <= '9') {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (!isIdentifierChar(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * The lines changed by a unified diff (e.g. a patch created by <code>git diff</code> or <code>diff -u</code>). For
+ * each file, this contains the line numbers in the new version of the file that were added or modified. For
+ * removed lines, the lines directly before and after the removal are considered changed (for hunks without context
+ * lines, the line number of an empty new range is the line before the removal). The end of each hunk is
+ * determined by the line counts in its header, so that lines of the following file header (e.g. <code>--- a/x.c</code>)
+ * are not mistaken for removed lines.
+ * <p>
+ * If the old path of a file starts with <code>a/</code> and its new path with <code>b/</code> (as created by git),
+ * these prefixes are stripped. Otherwise (e.g. for <code>diff -u</code> or <code>git diff --no-prefix</code>), the
+ * paths are used as they are, since <code>a/</code> may be a real directory. Deleted files are not contained.
+ *
+ * @author Adam
+ */
+class UnifiedDiff {
+
+    private static final @NonNull Pattern HUNK_HEADER = notNull(
+            Pattern.compile("^@@ -\\d+(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*"));
+
+    private static final @NonNull String DEV_NULL = "/dev/null";
+
+    /**
+     * Path (separated by <code>/</code>) -> changed lines in the new version of the file.
+     */
+    private @NonNull Map<@NonNull String, @NonNull BitSet> changedLines;
+
+    /**
+     * Creates an empty diff. Use {@link #parse(Reader)}.
+     */
+    private UnifiedDiff() {
+        this.changedLines = new HashMap<>();
+    }
+
+    /**
+     * Reads the given unified diff file.
+     *
+     * @param file The diff file to read.
+     *
+     * @return The parsed diff.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    public static @NonNull UnifiedDiff parse(@NonNull File file) throws IOException {
+        try (Reader in = new FileReader(file)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Reads a unified diff.
+     *
+     * @param in The diff to read.
+     *
+     * @return The parsed diff.
+     *
+     * @throws IOException If reading fails.
+     */
+    public static @NonNull UnifiedDiff parse(@NonNull Reader in) throws IOException {
+        UnifiedDiff result = new UnifiedDiff();
+        BufferedReader reader = new BufferedReader(in);
+
+        BitSet current = null;
+        String oldPath = null;
+        int newLine = 0;
+        // the number of old and new lines of the current hunk that were not read yet; the hunk ends if both are 0
+        int oldRemaining = 0;
+        int newRemaining = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher hunkHeader = HUNK_HEADER.matcher(line);
+
+            if (oldRemaining > 0 || newRemaining > 0) {
+                if (line.startsWith("+")) {
+                    if (current != null) {
+                        current.set(newLine);
+                    }
+                    newLine++;
+                    newRemaining--;
+
+                } else if (line.startsWith("-")) {
+                    if (current != null) {
+                        // the removed line was between these two lines of the new file
+                        current.set(Math.max(newLine - 1, 1));
+                        current.set(newLine);
+                    }
+                    oldRemaining--;
+
+                } else if (line.startsWith(" ") || line.isEmpty()) {
+                    // some tools strip the trailing space of empty context lines
+                    newLine++;
+                    oldRemaining--;
+                    newRemaining--;
+
+                } else if (!line.startsWith("\\")) {
+                    // a truncated hunk; "\" is "\ No newline at end of file"
+                    oldRemaining = 0;
+                    newRemaining = 0;
+                }
+
+            } else if (line.startsWith("--- ")) {
+                oldPath = toPath(line);
+
+            } else if (line.startsWith("+++ ")) {
+                String path = toPath(line);
+                current = null;
+                if (!path.equals(DEV_NULL)) {
+                    if (hasGitPrefixes(oldPath, path)) {
+                        path = notNull(path.substring(2));
+                    }
+                    current = result.changedLines.computeIfAbsent(path, (p) -> new BitSet());
+                }
+                oldPath = null;
+
+            } else if (hunkHeader.matches()) {
+                oldRemaining = hunkHeader.group(1) != null ? Integer.parseInt(hunkHeader.group(1)) : 1;
+                newLine = Integer.parseInt(hunkHeader.group(2));
+                newRemaining = hunkHeader.group(3) != null ? Integer.parseInt(hunkHeader.group(3)) : 1;
+                if (newRemaining == 0) {
+                    // an empty new range starts at the line after which the lines were removed (e.g. "-5 +4,0")
+                    newLine++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Extracts the path of a file from a <code>---</code> or <code>+++</code> line.
+     *
+     * @param line The line starting with <code>--- </code> or <code>+++ </code>.
+     *
+     * @return The path, with the prefix of the diff tool (if any); {@link #DEV_NULL} if the file does not exist on
+     *      this side.
+     */
+    private static @NonNull String toPath(@NonNull String line) {
+        String path = line.substring(4);
+        int tab = path.indexOf('\t');
+        if (tab != -1) {
+            // strip the timestamp added by diff -u
+            path = path.substring(0, tab);
+        }
+        return notNull(path.trim().replace('\\', '/'));
+    }
+
+    /**
+     * Checks whether the paths of a file follow git's convention of prefixing the old path with <code>a/</code> and
+     * the new path with <code>b/</code>.
+     *
+     * @param oldPath The path of the <code>---</code> line, or <code>null</code> if there was none.
+     * @param newPath The path of the <code>+++</code> line.
+     *
+     * @return Whether the prefix of the new path should be stripped.
+     */
+    private static boolean hasGitPrefixes(@Nullable String oldPath, @NonNull String newPath) {
+        return oldPath != null && (oldPath.startsWith("a/") || oldPath.equals(DEV_NULL)) && newPath.startsWith("b/");
+    }
+
+    /**
+     * Returns the changed lines of the given file.
+     *
+     * @param relativePath The path of the file, relative to the root of the diff.
+     *
+     * @return The line numbers (1-based) in the new version of the file that were changed, or <code>null</code> if
+     *      the file is not contained in this diff.
+     */
+    public @Nullable BitSet getChangedLines(@NonNull File relativePath) {
+        return changedLines.get(relativePath.getPath().replace('\\', '/'));
+    }
+
+    /**
+     * Returns the number of files that are changed by this diff.
+     *
+     * @return The number of changed files.
+     */
+    public int getNumFiles() {
+        return changedLines.size();
+    }
+
+}
@@ -20,16 +20,21 @@ import static net.ssehub.kernel_haven.srcml.XmlUserData.CONVERTED;
 import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_END;
 import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_START;
 import static net.ssehub.kernel_haven.srcml.XmlUserData.NODE_REFERENCE;
+import static net.ssehub.kernel_haven.srcml.XmlUserData.PREVIOUS_CONDITIONS_NEGATED;
 import static net.ssehub.kernel_haven.srcml.XmlUserData.PREVIOUS_CPP_BLOCK;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.maybeNull;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 
 import org.w3c.dom.Node;
@@ -69,6 +74,7 @@ import net.ssehub.kernel_haven.util.logic.Negation;
 import net.ssehub.kernel_haven.util.logic.True;
 import net.ssehub.kernel_haven.util.logic.parser.ExpressionFormatException;
 import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
 
 /**
  * Converts the XML output of srcML to KernelHaven's AST structure.
@@ -81,6 +87,23 @@ class XmlToAstConverter {
     
     private @NonNull CppConditionParser cppConditionParser;
     
+    /**
+     * Fast path for trivial conditions, before {@link #cppConditionParser} is used. <code>null</code> if the
+     * conditions are parsed to non-Boolean formulas, since these need to be handled by the full parser.
+     */
+    private @Nullable TrivialConditionParser trivialConditionParser;
+    
+    /**
+     * The run-wide cache for {@link net.ssehub.kernel_haven.util.logic.Variable}s in parsed conditions.
+     */
+    private @NonNull SharedVariableCache variableCache;
+    
+    /**
+     * The run-wide table for de-duplicating function names and code strings. <code>null</code> if strings should not
+     * be interned.
+     */
+    private @Nullable StringInterner stringInterner;
+    
     /**
      * The current stack of C-preprocessor conditions. Always contains a {@link True} at the bottom of the stack.
      */
@@ -111,6 +134,24 @@ class XmlToAstConverter {
      */
     private @NonNull Map<@NonNull Node, @NonNull List<@NonNull ReferenceElement>> referencesToResolve;
     
+    /**
+     * The names of all converted {@link SingleStatement.Type#FUNCTION_DECLARATION}s, as found in the {@code <name>}
+     * child of the {@code <function_decl>}. Identity-based, since the statements are only relevant as AST nodes.
+     */
+    private @NonNull Map<@NonNull SingleStatement, @NonNull String> functionDeclarationNames;
+    
+    /**
+     * The fingerprints for re-using the functions of a previous result. <code>null</code> if functions are always
+     * converted.
+     */
+    private @Nullable FunctionFingerprints functionFingerprints;
+    
+    /**
+     * The lines of the file that were changed by a patch. If not <code>null</code>, only the top-level elements that
+     * overlap with these lines are converted.
+     */
+    private @Nullable BitSet changedLines;
+    
     /**
      * Creates an XML output converter for the given base source file that is being parsed.
      * 
@@ -119,11 +160,17 @@ class XmlToAstConverter {
      *      IS_ENABLED, IS_BUILTIN, IS_MODULE).
      * @param cppExpressiveness Specifies expressiveness of AST and how to handle non-Boolean conditions.
      * @param invalidConditionHandling How to handle unparseable conditions.
+     * @param variableCache The run-wide cache for variables in parsed conditions.
+     * @param stringInterner The run-wide table for de-duplicating strings, or <code>null</code> if strings should
+     *      not be interned.
      */
     public XmlToAstConverter(java.io.@NonNull File baseFile, boolean handleLinuxMacros,
-        ExpressionHandling cppExpressiveness, @NonNull InvalidConditionHandling invalidConditionHandling) {
+        ExpressionHandling cppExpressiveness, @NonNull InvalidConditionHandling invalidConditionHandling,
+        @NonNull SharedVariableCache variableCache, @Nullable StringInterner stringInterner) {
         
         this.baseFile = baseFile;
+        this.variableCache = variableCache;
+        this.stringInterner = stringInterner;
         this.conditions = new LinkedList<>();
         this.conditions.push(True.INSTANCE);
         
@@ -132,12 +179,14 @@ class XmlToAstConverter {
         } else {
             this.cppConditionParser = new CppConditionParser(handleLinuxMacros,
                 cppExpressiveness == ExpressionHandling.FUZZY, invalidConditionHandling);
+            this.trivialConditionParser = new TrivialConditionParser(variableCache);
         }
         
         this.elementStack = new LinkedList<>();
         this.switchStack = new LinkedList<>();
         this.ifStack = new LinkedList<>();
         this.referencesToResolve = new HashMap<>();
+        this.functionDeclarationNames = new IdentityHashMap<>();
     }
     
     /**
@@ -151,11 +200,16 @@ class XmlToAstConverter {
         File result = new File(getPc(), baseFile);
         postCreation(result, node);
         
+        BitSet changedLines = this.changedLines;
+        Set<@NonNull Node> selected = changedLines != null ? selectChangedNodes(node, changedLines) : null;
+        
         elementStack.push(result);
         NodeList children = node.getChildNodes();
         for (int i = 0; i < children.getLength(); i++) {
             Node child = notNull(children.item(i));
-            result.addNestedElement(convertSafe(child));
+            if (selected == null || selected.contains(child)) {
+                result.addNestedElement(convertSafe(child));
+            }
         }
         elementStack.pop();
         
@@ -164,6 +218,92 @@ class XmlToAstConverter {
         return result;
     }
     
+    /**
+     * Sets the fingerprints for re-using the functions of a previous result of the same file. Functions with an
+     * unchanged fingerprint are taken from the previous result instead of being converted again. The fingerprints of
+     * all functions of the new result are recorded in the given object, too.
+     * 
+     * @param functionFingerprints The fingerprints, or <code>null</code> if all functions should be converted.
+     */
+    public void setFunctionFingerprints(@Nullable FunctionFingerprints functionFingerprints) {
+        this.functionFingerprints = functionFingerprints;
+    }
+    
+    /**
+     * Restricts the conversion to the top-level elements (e.g. functions) that overlap with the given lines. All
+     * other top-level elements are left out of the resulting {@link File}, unless they are referenced by a converted
+     * element.
+     * 
+     * @param changedLines The lines (1-based) to convert the top-level elements of, or <code>null</code> if the
+     *      complete file should be converted.
+     */
+    public void setChangedLines(@Nullable BitSet changedLines) {
+        this.changedLines = changedLines;
+    }
+    
+    /**
+     * Returns the names of all function declarations converted by this converter. These are taken directly from the
+     * XML structure, so the {@link Code} of the declarations doesn't need to be parsed again.
+     * 
+     * @return The {@link SingleStatement.Type#FUNCTION_DECLARATION} statements mapped to the name of the function
+     *      they declare. Identity-based.
+     */
+    public @NonNull Map<@NonNull SingleStatement, @NonNull String> getFunctionDeclarationNames() {
+        return functionDeclarationNames;
+    }
+    
+    /**
+     * Selects the top-level nodes that overlap with the given lines. Top-level nodes that are referenced by a
+     * {@code <kh:reference>} in a selected node are selected, too.
+     * 
+     * @param unit The {@code <unit>} node.
+     * @param changedLines The changed lines.
+     * 
+     * @return The selected children of the unit node. Identity-based.
+     */
+    static @NonNull Set<@NonNull Node> selectChangedNodes(@NonNull Node unit, @NonNull BitSet changedLines) {
+        Set<@NonNull Node> result = notNull(Collections.newSetFromMap(new IdentityHashMap<>()));
+        Deque<@NonNull Node> toCheck = new LinkedList<>();
+        
+        NodeList children = unit.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = notNull(children.item(i));
+            Object lineStart = child.getUserData(LINE_START);
+            Object lineEnd = child.getUserData(LINE_END);
+            
+            boolean overlaps = true;
+            if (lineStart instanceof Integer && lineEnd instanceof Integer) {
+                int changed = changedLines.nextSetBit((int) lineStart);
+                overlaps = changed != -1 && changed <= (int) lineEnd;
+            }
+            
+            if (overlaps && result.add(child)) {
+                toCheck.push(child);
+            }
+        }
+        
+        // add the top-level nodes referred to by the selected nodes, so that no reference is left unresolved
+        while (!toCheck.isEmpty()) {
+            Node current = toCheck.pop();
+            if (current.getNodeName().equals("kh:reference")) {
+                Node referred = (Node) current.getUserData(NODE_REFERENCE);
+                while (referred != null && referred.getParentNode() != unit) {
+                    referred = referred.getParentNode();
+                }
+                if (referred != null && result.add(referred)) {
+                    toCheck.push(referred);
+                }
+            }
+            
+            NodeList nested = current.getChildNodes();
+            for (int i = 0; i < nested.getLength(); i++) {
+                toCheck.push(notNull(nested.item(i)));
+            }
+        }
+        
+        return result;
+    }
+    
     /**
      * Post-processing step: resolve all {@link ReferenceElement}s that were not yet resolved.
      * 
@@ -236,7 +376,7 @@ class XmlToAstConverter {
         ISyntaxElement result;
         
         if (node.getNodeType() == Node.TEXT_NODE) {
-            Code text = new Code(getPc(), notNull(node.getTextContent().trim()));
+            Code text = new Code(getPc(), intern(notNull(node.getTextContent().trim())));
             postCreation(text, node);
             result = text;
             
@@ -428,18 +568,7 @@ class XmlToAstConverter {
         if (type != CppBlock.Type.ELSE) {
             nestedStartIndex = 3;
             
-            String formulaStr = notNull(node.getChildNodes().item(2).getTextContent());
-            if (type == CppBlock.Type.IFDEF) {
-                formulaStr = "defined(" + formulaStr + ")";
-            } else if (type == CppBlock.Type.IFNDEF) {
-                formulaStr = "!defined(" + formulaStr + ")";
-            }
-            
-            try {
-                formula = cppConditionParser.parse(formulaStr);
-            } catch (ExpressionFormatException e) {
-                throw makeException(node, "Can't parse <" + node.getNodeName() + "> condition", e);
-            }
+            formula = parseCondition(node, type, notNull(node.getChildNodes().item(2).getTextContent()));
         } else {
             formula = null;
             nestedStartIndex = 2;
@@ -467,22 +596,37 @@ class XmlToAstConverter {
                 throw makeException(node, "First sibling must be a <cpp:if>, <cpp:ifdef> or <cpp:ifndef>, but is "
                         + sibling.getType());
             }
-            if (sibling.getCondition() == null) {
+            
+            /*
+             * Only the directly previous block has to be considered: if it is an #elif, it stores the negated
+             * conditions of all blocks before it; thus every new block only adds one new negation to the chain.
+             */
+            Formula previousCondition = previousBlock.getCondition();
+            if (previousCondition == null) {
                 throw makeException(node, "Sibling must have condition");
             }
-            Formula allPreviousNegated = new Negation(notNull(sibling.getCondition()));
             
-            for (int i = 1; i < previousBlock.getSiblingCount(); i++) {
-                sibling = previousBlock.getSibling(i);
-                if (sibling.getType() != CppBlock.Type.ELSEIF) {
-                    throw makeException(node, "Sibling must be an <cpp:elif>, but is" + sibling.getType());
-                }
+            Formula allPreviousNegated;
+            if (previousBlock == sibling) {
+                allPreviousNegated = new Negation(previousCondition);
                 
-                if (!(sibling.getCondition() instanceof Conjunction) && sibling.getCondition() == null) {
+            } else {
+                if (previousBlock.getType() != CppBlock.Type.ELSEIF) {
+                    throw makeException(node, "Sibling must be an <cpp:elif>, but is " + previousBlock.getType());
+                }
+                if (!(previousCondition instanceof Conjunction)) {
                     throw makeException(node, "Previous <cpp:elif> condition must have a conjunction as top-level");
                 }
-                Conjunction siblingCondition = (Conjunction) notNull(sibling.getCondition());
-                allPreviousNegated = new Conjunction(allPreviousNegated, new Negation(siblingCondition.getRight()));
+                Formula beforePrevious = (Formula) previousNode.getUserData(PREVIOUS_CONDITIONS_NEGATED);
+                if (beforePrevious == null) {
+                    throw makeException(node, "Can't find conditions of blocks before previous <cpp:elif>");
+                }
+                allPreviousNegated = new Conjunction(beforePrevious,
+                        new Negation(((Conjunction) previousCondition).getRight()));
+            }
+            
+            if (type == CppBlock.Type.ELSEIF) {
+                node.setUserData(PREVIOUS_CONDITIONS_NEGATED, allPreviousNegated, null);
             }
             
             if (type == CppBlock.Type.ELSE) {
@@ -536,6 +680,57 @@ class XmlToAstConverter {
         return result;
     }
     
+    /**
+     * Parses the condition of a C preprocessor {@code #if} (etc.) statement. Trivial conditions are handled by
+     * {@link #trivialConditionParser}, everything else is passed to {@link #cppConditionParser}.
+     * 
+     * @param node The XML node representing the CPP statement. Used for error messages.
+     * @param type The type of CPP block; must not be {@link CppBlock.Type#ELSE}.
+     * @param condition The condition text, as found in the XML.
+     * 
+     * @return The parsed condition.
+     * 
+     * @throws FormatException If parsing the condition fails.
+     */
+    private @NonNull Formula parseCondition(@NonNull Node node, CppBlock.@NonNull Type type,
+            @NonNull String condition) throws FormatException {
+        
+        Formula result = null;
+        TrivialConditionParser trivialConditionParser = this.trivialConditionParser;
+        
+        if (trivialConditionParser != null) {
+            if (type == CppBlock.Type.IFDEF || type == CppBlock.Type.IFNDEF) {
+                String name = notNull(condition.trim());
+                if (TrivialConditionParser.isIdentifier(name, 0, name.length())) {
+                    result = trivialConditionParser.getVariable(name);
+                    if (type == CppBlock.Type.IFNDEF) {
+                        result = new Negation(result);
+                    }
+                }
+                
+            } else {
+                result = trivialConditionParser.parse(condition);
+            }
+        }
+        
+        if (result == null) {
+            String formulaStr = condition;
+            if (type == CppBlock.Type.IFDEF) {
+                formulaStr = "defined(" + formulaStr + ")";
+            } else if (type == CppBlock.Type.IFNDEF) {
+                formulaStr = "!defined(" + formulaStr + ")";
+            }
+            
+            try {
+                result = variableCache.intern(cppConditionParser.parse(formulaStr));
+            } catch (ExpressionFormatException e) {
+                throw makeException(node, "Can't parse <" + node.getNodeName() + "> condition", e);
+            }
+        }
+        
+        return result;
+    }
+    
     /**
      * Converts a comment.
      * 
@@ -601,6 +796,13 @@ class XmlToAstConverter {
             result.setContainsErrorElement(true);
         }
         
+        if (type == SingleStatement.Type.FUNCTION_DECLARATION) {
+            List<@NonNull Node> names = getChildren(node, "name");
+            if (!names.isEmpty()) {
+                functionDeclarationNames.put(result, intern(notNull(names.get(0).getTextContent().trim())));
+            }
+        }
+        
         return result;
     }
     
@@ -740,6 +942,22 @@ class XmlToAstConverter {
      * @throws FormatException If converting fails.
      */
     private @NonNull Function convertFunction(@NonNull Node node) throws FormatException {
+        FunctionFingerprints functionFingerprints = this.functionFingerprints;
+        String fingerprint = null;
+        if (functionFingerprints != null) {
+            fingerprint = FunctionFingerprints.compute(node, notNull(conditions.peek()), getPc());
+            if (fingerprint != null) {
+                Function reused = functionFingerprints.reuse(fingerprint, (int) node.getUserData(LINE_START));
+                if (reused != null) {
+                    node.setUserData(CONVERTED, reused, null);
+                    if (reused.containsErrorElement()) {
+                        markErrorElement();
+                    }
+                    return reused;
+                }
+            }
+        }
+        
         int i = 0;
         NodeList children = node.getChildNodes();
         while (i < children.getLength() && children.item(i).getNodeName().equals("specifier")) {
@@ -751,7 +969,7 @@ class XmlToAstConverter {
         checkChildName(node, i++, "name");
         checkChildName(node, i++, "parameter_list");
         
-        String name = notNull(notNull(children.item(nameIndex)).getTextContent());
+        String name = intern(notNull(notNull(children.item(nameIndex)).getTextContent()));
         
         Function result = new Function(getPc(), name, convertChildrenToCode(node, 0, 3));
         postCreation(result, node);
@@ -767,6 +985,10 @@ class XmlToAstConverter {
         }
         elementStack.pop();
         
+        if (functionFingerprints != null && fingerprint != null) {
+            functionFingerprints.add(result, fingerprint);
+        }
+        
         return result;
     }
     
@@ -1188,7 +1410,7 @@ class XmlToAstConverter {
                 
             } else if (node.getNodeName().startsWith("cpp:if") || node.getNodeName().startsWith("cpp:el")) {
                 if (str.length() > 0) {
-                    Code untilThisPart = new Code(getPc(), notNull(str.toString()));
+                    Code untilThisPart = new Code(getPc(), intern(notNull(str.toString())));
                     untilThisPart.setSourceFile(baseFile);
                     untilThisPart.setCondition(conditions.peek());
                     untilThisPart.setLineStart(strLineStart);
@@ -1229,7 +1451,7 @@ class XmlToAstConverter {
                 } else {
                     // finish up everything until now
                     if (str.length() > 0) {
-                        Code untilThisPart = new Code(getPc(), notNull(str.toString()));
+                        Code untilThisPart = new Code(getPc(), intern(notNull(str.toString())));
                         untilThisPart.setSourceFile(baseFile);
                         untilThisPart.setCondition(conditions.peek());
                         untilThisPart.setLineStart(strLineStart);
@@ -1255,7 +1477,7 @@ class XmlToAstConverter {
         }
         
         if (str.length() > 0) {
-            Code untilThisPart = new Code(getPc(), notNull(str.toString()));
+            Code untilThisPart = new Code(getPc(), intern(notNull(str.toString())));
             untilThisPart.setSourceFile(baseFile);
             untilThisPart.setCondition(conditions.peek());
             untilThisPart.setLineStart(strLineStart);
@@ -1299,7 +1521,7 @@ class XmlToAstConverter {
                             list.remove(i);
                             endIndex--;
                         }
-                        Code newCode = new Code(first.getPresenceCondition(), notNull(sj.toString()));
+                        Code newCode = new Code(first.getPresenceCondition(), intern(notNull(sj.toString())));
                         newCode.setSourceFile(baseFile);
                         newCode.setCondition(first.getCondition());
                         newCode.setLineStart(first.getLineStart());
@@ -1332,6 +1554,22 @@ class XmlToAstConverter {
         return result;
     }
     
+    /**
+     * De-duplicates the given string with {@link #stringInterner}, if enabled.
+     * 
+     * @param str The string to intern.
+     * 
+     * @return The shared instance of the string, or the string itself if interning is disabled.
+     */
+    private @NonNull String intern(@NonNull String str) {
+        StringInterner stringInterner = this.stringInterner;
+        String result = str;
+        if (stringInterner != null) {
+            result = stringInterner.intern(str);
+        }
+        return result;
+    }
+    
     /**
      * Call this after creating an AST element. This method sets the condition, start and end lines properly.
      * 
@@ -46,6 +46,9 @@ class XmlUserData {
     public static final @NonNull String CPP_BLOCK_END = "net.ssehub.kernel_haven:cpp_block_end";
     
     public static final @NonNull String CONVERTED = "net.ssehub.kernel_haven:converted";
+    
+    public static final @NonNull String PREVIOUS_CONDITIONS_NEGATED
+            = "net.ssehub.kernel_haven:previous_conditions_negated";
 
     /**
      * Don't allow any instances.
@@ -93,6 +96,7 @@ class XmlUserData {
                 printUserData(element, PREVIOUS_CPP_BLOCK, "previousCppBlock");
                 printUserData(element, CPP_BLOCK_END, "cppBlockEnd");
                 printUserData(element, CONVERTED, "converted");
+                printUserData(element, PREVIOUS_CONDITIONS_NEGATED, "previousConditionsNegated");
                 System.out.println(">");
                 
                 NodeList children = element.getChildNodes();
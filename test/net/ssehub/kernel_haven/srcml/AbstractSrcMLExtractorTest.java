@@ -114,6 +114,21 @@ public class AbstractSrcMLExtractorTest {
      */
     protected SourceFile<ISyntaxElement> loadFile(String file, HeaderHandling headerHandling,
             InvalidConditionHandling invalidConditionHandling) {
+        return loadFile(file, headerHandling, invalidConditionHandling, new Properties());
+    }
+    
+    /**
+     * Helper method which runs the {@link SrcMLExtractor} on the specified source file.
+     *  
+     * @param file The source file to parse.
+     * @param headerHandling The header handling that should be used.
+     * @param invalidConditionHandling How to handle unparseable conditions.
+     * @param additionalSettings Further settings for the extractor.
+     * 
+     * @return The parsed code model, ready for testing the result.
+     */
+    protected SourceFile<ISyntaxElement> loadFile(String file, HeaderHandling headerHandling,
+            InvalidConditionHandling invalidConditionHandling, Properties additionalSettings) {
         File srcFile = new File(AllTests.TESTDATA, file);
         Assert.assertTrue("Specified test file does not exist: " + srcFile, srcFile.isFile());
         
@@ -125,6 +140,7 @@ public class AbstractSrcMLExtractorTest {
             props.setProperty("code.extractor.files", file);
             props.setProperty("code.extractor.header_handling", headerHandling.name());
             props.setProperty("code.extractor.invalid_condition", invalidConditionHandling.name());
+            props.putAll(additionalSettings);
             
             TestConfiguration config = new TestConfiguration(props);
             
@@ -29,14 +29,33 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({
+    AstPostProcessorTest.class,
     CppTest.class,
     CTest.class,
+    DirectoryHeaderMemoTest.class,
+    ExtractionHistoryTest.class,
+    ExtractionPipelineTest.class,
+    FunctionConditionExpanderTest.class,
+    FunctionDeclarationIndexTest.class,
+    FunctionFingerprintsTest.class,
     IncludeTest.class,
+    IncludeGraphTest.class,
+    IncludePathResolverTest.class,
+    IncrementalManifestTest.class,
     InvalidFileTest.class,
+    MemoryGovernorTest.class,
     RobustnessTests.class,
+    SharedVariableCacheTest.class,
+    SrcMlHedgingTest.class,
+    SrcMlOutputCacheTest.class,
+    SrcMlWatchdogTest.class,
+    StringInternerTest.class,
+    TrivialConditionParserTest.class,
+    UnifiedDiffTest.class,
     XmlParserTest.class,
     XmlPreprocessorTest.class,
     XmlPreprocessorNegativeTest.class,
+    XmlToAstConverterTest.class,
     })
 public class AllTests {
     public static final File TESTDATA = new File("testdata");
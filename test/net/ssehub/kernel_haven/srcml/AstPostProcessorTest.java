@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.CppBlock;
+import net.ssehub.kernel_haven.code_model.ast.File;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
+import net.ssehub.kernel_haven.test_utils.TestConfiguration;
+import net.ssehub.kernel_haven.util.ExtractorException;
+import net.ssehub.kernel_haven.util.logic.True;
+
+/**
+ * Tests the {@link AstPostProcessor}.
+ *
+ * @author Adam
+ */
+public class AstPostProcessorTest extends AbstractSrcMLExtractorTest {
+
+    private static final java.io.File RELATIVE_TARGET = new java.io.File("headers/function.c");
+
+    private static final java.io.File ABSOLUTE_TARGET = new java.io.File(AllTests.TESTDATA, "headers/function.c");
+
+    /**
+     * Creates an extractor that does not handle headers, so that the post-processing can be done by the tests.
+     *
+     * @return The initialized extractor.
+     *
+     * @throws SetUpException unwanted.
+     */
+    private static SrcMLExtractor createExtractor() throws SetUpException {
+        Properties props = new Properties();
+        props.setProperty("resource_dir", RESOURCE_DIR.getAbsolutePath());
+        props.setProperty("source_tree", "testdata/");
+        props.setProperty("code.extractor.files", RELATIVE_TARGET.getPath());
+        props.setProperty("code.extractor.header_handling", HeaderHandling.IGNORE.name());
+
+        SrcMLExtractor extractor = new SrcMLExtractor();
+        extractor.init(new TestConfiguration(props));
+        return extractor;
+    }
+
+    /**
+     * Tests that running the {@link IncludeExpander} and the {@link FunctionConditionExpander} in a single traversal
+     * has the same result as running them one after another.
+     *
+     * @throws SetUpException unwanted.
+     * @throws ExtractorException unwanted.
+     */
+    @Test
+    public void testMergedTraversal() throws SetUpException, ExtractorException {
+        SrcMLExtractor extractor = createExtractor();
+
+        ISyntaxElement merged = extractor.runOnFile(RELATIVE_TARGET).getElement(0);
+        new AstPostProcessor(new IncludeExpander(ABSOLUTE_TARGET, extractor, HeaderHandling.IGNORE),
+                new FunctionConditionExpander(null, new IdentityHashMap<>())).process(merged);
+
+        ISyntaxElement twoPass = extractor.runOnFile(RELATIVE_TARGET).getElement(0);
+        new IncludeExpander(ABSOLUTE_TARGET, extractor, HeaderHandling.IGNORE).expand(twoPass);
+        new FunctionConditionExpander(null, new IdentityHashMap<>()).expand(twoPass);
+
+        assertThat(merged.toString(), is(twoPass.toString()));
+
+        // the header is inlined, and the declarations in it are used for the function condition
+        assertElement(File.class, "1", "1", merged.getNestedElement(0));
+        CppBlock ifdef = assertElement(CppBlock.class, "C", "C", merged.getNestedElement(1));
+        Function func = assertElement(Function.class, "C && (A || B)", "C && (A || B)", ifdef.getNestedElement(0));
+        assertThat(func.getName(), is("func1"));
+    }
+
+    /**
+     * Tests that the root element can be replaced, and that the following stages get the replacement and its nested
+     * elements.
+     */
+    @Test
+    public void testReplaceRoot() {
+        File original = new File(True.INSTANCE, new java.io.File("a.c"));
+        original.addNestedElement(new SingleStatement(True.INSTANCE, new Code(True.INSTANCE, "a ;"),
+                SingleStatement.Type.INSTRUCTION));
+
+        File replacement = new File(True.INSTANCE, new java.io.File("b.c"));
+        SingleStatement nested = new SingleStatement(True.INSTANCE, new Code(True.INSTANCE, "b ;"),
+                SingleStatement.Type.INSTRUCTION);
+        replacement.addNestedElement(nested);
+
+        List<ISyntaxElement> seen = new ArrayList<>();
+        AstPostProcessor processor = new AstPostProcessor(
+            (element, proc) -> {
+                if (element == original) {
+                    proc.replace(replacement);
+                }
+                return true;
+            },
+            (element, proc) -> {
+                seen.add(element);
+                return true;
+            });
+
+        ISyntaxElement result = processor.process(original);
+
+        assertThat(result, sameInstance(replacement));
+        assertThat(processor.getRoot() == null, is(true));
+        assertThat(seen.get(0), sameInstance(replacement));
+        assertThat(seen.get(1), sameInstance(nested));
+    }
+
+}
@@ -35,6 +35,7 @@ import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
 import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
 import net.ssehub.kernel_haven.cpp_utils.CppConditionParser;
 import net.ssehub.kernel_haven.cpp_utils.InvalidConditionHandling;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
 import net.ssehub.kernel_haven.util.logic.False;
 import net.ssehub.kernel_haven.util.logic.Formula;
 import net.ssehub.kernel_haven.util.logic.Variable;
@@ -290,6 +291,45 @@ public class CppTest extends AbstractSrcMLExtractorTest {
         assertThat(elseElem.getSibling(2), sameInstance(elseElem));
     }
     
+    /**
+     * Test that a longer chain of <tt>&#35;elif</tt> statements is translated correctly and that the negated
+     * conditions of previous blocks are shared along the chain.
+     */
+    @Test
+    public void testElifChain() {
+        SourceFile<ISyntaxElement> ast = loadFile("ElifChain.c");
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        assertEquals("Got unexpected number of elements", 5, elements.size());
+        
+        Formula notANotB = and(not("A"), not("B"));
+        Formula notANotBNotC = and(notANotB, not("C"));
+        
+        CppBlock ifElem = assertIf("A", "A", new Variable("A"), 1, Type.IF, elements.get(0));
+        CppBlock elifB = assertIf("!A && B", "!A && B", and(not("A"), "B"), 1, Type.ELSEIF, elements.get(1));
+        CppBlock elifC = assertIf("!A && !B && C", "!A && !B && C", and(notANotB, "C"), 1, Type.ELSEIF,
+                elements.get(2));
+        CppBlock elifD = assertIf("!A && !B && !C && D", "!A && !B && !C && D", and(notANotBNotC, "D"), 1,
+                Type.ELSEIF, elements.get(3));
+        CppBlock elseElem = assertIf("!A && !B && !C && !D", "!A && !B && !C && !D", and(notANotBNotC, not("D")), 1,
+                Type.ELSE, elements.get(4));
+        
+        assertElement(SingleStatement.class, "!A && !B && !C && D", "!A && !B && !C && D",
+                elifD.getNestedElement(0));
+        
+        // the negated previous conditions are not re-created for each block
+        Formula elifCPrevious = ((Conjunction) elifC.getCondition()).getLeft();
+        Formula elifDPrevious = ((Conjunction) elifD.getCondition()).getLeft();
+        Formula elsePrevious = ((Conjunction) elseElem.getCondition()).getLeft();
+        assertThat(((Conjunction) elifDPrevious).getLeft(), sameInstance(elifCPrevious));
+        assertThat(elsePrevious, sameInstance(elifDPrevious));
+        
+        assertThat(ifElem.getSiblingCount(), is(5));
+        assertThat(elifB.getSiblingCount(), is(5));
+        assertThat(elseElem.getSibling(0), sameInstance(ifElem));
+        assertThat(elseElem.getSibling(4), sameInstance(elseElem));
+    }
+    
     /**
      * Test translation of nested <tt>&#35;if defined()</tt> statements.
      */
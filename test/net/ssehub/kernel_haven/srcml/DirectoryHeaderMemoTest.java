@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link DirectoryHeaderMemo}.
+ *
+ * @author Adam
+ */
+public class DirectoryHeaderMemoTest {
+
+    private static final File DEDUP = new File(AllTests.TESTDATA, "dedup");
+
+    private static final File HEADER = new File(DEDUP, "b/Other.c");
+
+    /**
+     * Tests that files are grouped by directory, keeping the order of the first file of each directory.
+     */
+    @Test
+    public void testGroupByDirectory() {
+        assertThat(DirectoryHeaderMemo.groupByDirectory(Arrays.asList(
+                new File("b/1.c"), new File("a/1.c"), new File("b/2.c"), new File("top.c"), new File("a/2.c"))),
+                is(Arrays.asList(
+                new File("b/1.c"), new File("b/2.c"), new File("a/1.c"), new File("a/2.c"), new File("top.c"))));
+    }
+
+    /**
+     * Tests that the output of a header is re-used for sibling files, until a file of another directory is started.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMemoDroppedAfterDirectory() throws IOException {
+        File first = new File("a/Same.c");
+        File second = new File("a/Other.c");
+        File other = new File("b/Other.c");
+        DirectoryHeaderMemo memo = new DirectoryHeaderMemo();
+        File directory = new File(DEDUP, "a");
+        AtomicInteger runs = new AtomicInteger();
+
+        memo.start(DEDUP, first);
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        memo.release(DEDUP, first);
+        // kept for the next sibling, even though no file of the directory was parsed in between
+        memo.start(DEDUP, second);
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(1));
+        memo.release(DEDUP, second);
+
+        memo.start(DEDUP, other);
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(2));
+        // no new memo is created for a directory without a file being parsed
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(3));
+    }
+
+    /**
+     * Tests that the memo of a directory is kept while one of its files is parsed, even if files of other
+     * directories are started in parallel.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMemoKeptWhileParsed() throws IOException {
+        File first = new File("a/Same.c");
+        File other = new File("b/Other.c");
+        DirectoryHeaderMemo memo = new DirectoryHeaderMemo();
+        File directory = new File(DEDUP, "a");
+        AtomicInteger runs = new AtomicInteger();
+
+        memo.start(DEDUP, first);
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        memo.start(DEDUP, other);
+        memo.getOutput(directory, HEADER, () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(1));
+    }
+
+    /**
+     * Tests that headers are memoized by their path, not by their content.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMemoizedByPath() throws IOException {
+        DirectoryHeaderMemo memo = new DirectoryHeaderMemo();
+        memo.start(DEDUP, new File("a/Same.c"));
+        File directory = new File(DEDUP, "a");
+        AtomicInteger runs = new AtomicInteger();
+
+        // both headers have the same content
+        memo.getOutput(directory, new File(DEDUP, "a/Same.c"), () -> new byte[runs.incrementAndGet()]);
+        memo.getOutput(directory, new File(DEDUP, "b/Same.c"), () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(2));
+
+        memo.getOutput(directory, new File(DEDUP, "b/Same.c"), () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(2));
+    }
+
+    /**
+     * Tests that headers are not memoized for directories without a file being parsed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUnknownDirectory() throws IOException {
+        DirectoryHeaderMemo memo = new DirectoryHeaderMemo();
+        memo.start(DEDUP, new File("a/Same.c"));
+        AtomicInteger runs = new AtomicInteger();
+
+        memo.getOutput(new File(DEDUP, "b"), HEADER, () -> new byte[runs.incrementAndGet()]);
+        memo.getOutput(new File(DEDUP, "b"), HEADER, () -> new byte[runs.incrementAndGet()]);
+        assertThat(runs.get(), is(2));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.DefaultSettings;
+import net.ssehub.kernel_haven.test_utils.TestConfiguration;
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Tests the {@link ExtractionHistory}.
+ *
+ * @author Adam
+ */
+public class ExtractionHistoryTest {
+
+    private static final File TMP_DIR = new File(AllTests.TESTDATA, "tmpHistory");
+
+    private static final File HISTORY_FILE = new File(TMP_DIR, "history.txt");
+
+    private static final File DEDUP = new File(AllTests.TESTDATA, "dedup");
+
+    private static final File SAME = new File("a/Same.c");
+
+    private static final File OTHER = new File("b/Other.c");
+
+    /**
+     * Creates the temporary directory.
+     */
+    @Before
+    public void setUp() {
+        TMP_DIR.mkdirs();
+    }
+
+    /**
+     * Deletes the temporary directory.
+     *
+     * @throws IOException If deleting fails.
+     */
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteFolder(TMP_DIR);
+    }
+
+    /**
+     * Tests that without any recorded durations, larger files come first.
+     */
+    @Test
+    public void testOrderBySize() {
+        ExtractionHistory history = new ExtractionHistory(HISTORY_FILE);
+
+        List<File> ordered = history.orderLongestFirst(DEDUP, Arrays.asList(SAME, OTHER));
+
+        // b/Other.c is larger than a/Same.c
+        assertThat(ordered, is(Arrays.asList(OTHER, SAME)));
+    }
+
+    /**
+     * Tests that recorded durations take precedence over the size, and are loaded by following runs.
+     */
+    @Test
+    public void testRecordedDurationsPersisted() {
+        ExtractionHistory history = new ExtractionHistory(HISTORY_FILE);
+        history.record(SAME, 500, 22);
+        history.record(OTHER, 5, 28);
+
+        ExtractionHistory nextRun = new ExtractionHistory(HISTORY_FILE);
+        List<File> ordered = nextRun.orderLongestFirst(DEDUP, Arrays.asList(OTHER, SAME));
+
+        assertThat(ordered, is(Arrays.asList(SAME, OTHER)));
+    }
+
+    /**
+     * Tests that the latest recorded duration of a file is used.
+     */
+    @Test
+    public void testLatestDurationUsed() {
+        ExtractionHistory history = new ExtractionHistory(HISTORY_FILE);
+        history.record(SAME, 500, 22);
+        history.record(OTHER, 100, 28);
+        history.record(SAME, 1, 22);
+
+        ExtractionHistory nextRun = new ExtractionHistory(HISTORY_FILE);
+        List<File> ordered = nextRun.orderLongestFirst(DEDUP, Arrays.asList(SAME, OTHER));
+
+        assertThat(ordered, is(Arrays.asList(OTHER, SAME)));
+    }
+
+    /**
+     * Tests that the extractor does not modify the configured list of files when a history is used.
+     *
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testConfiguredFilesUnchanged() throws SetUpException {
+        File resourceDir = new File(TMP_DIR, "res");
+        resourceDir.mkdir();
+
+        Properties props = new Properties();
+        props.setProperty("resource_dir", resourceDir.getAbsolutePath());
+        props.setProperty("source_tree", DEDUP.getPath());
+        props.setProperty("code.extractor.files", "a/Same.c,b/Other.c");
+        props.setProperty("code.extractor.history_file", HISTORY_FILE.getPath());
+        TestConfiguration config = new TestConfiguration(props);
+
+        new SrcMLExtractor().init(config);
+
+        // b/Other.c is larger than a/Same.c, but the framework still hands out the files in the configured order
+        assertThat(config.getValue(DefaultSettings.CODE_EXTRACTOR_FILES), is(Arrays.asList("a/Same.c", "b/Other.c")));
+    }
+
+}
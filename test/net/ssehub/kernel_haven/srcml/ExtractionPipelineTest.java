@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ExtractionPipeline}.
+ *
+ * @author Adam
+ */
+public class ExtractionPipelineTest {
+
+    private ExecutorService processPool;
+
+    private ExecutorService parsePool;
+
+    /**
+     * Creates the thread pools.
+     */
+    @Before
+    public void createPools() {
+        processPool = Executors.newFixedThreadPool(2);
+        parsePool = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Shuts down the thread pools.
+     */
+    @After
+    public void shutdownPools() {
+        processPool.shutdownNow();
+        parsePool.shutdownNow();
+    }
+
+    /**
+     * Tests that the results of both stages are passed to the requesting thread.
+     *
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testStages() throws InterruptedException {
+        CountDownLatch submitted = new CountDownLatch(2);
+        ExtractionPipeline<String> pipeline = new ExtractionPipeline<>(processPool, parsePool, 4,
+            (absoluteTarget) -> {
+                submitted.countDown();
+                return absoluteTarget.getName().getBytes(StandardCharsets.UTF_8);
+            },
+            (absoluteTarget, relativeTarget, xml) -> relativeTarget + ":" + new String(xml, StandardCharsets.UTF_8));
+
+        pipeline.start(new File("src"), Arrays.asList(new File("a.c"), new File("dir/b.c")), (file) -> true);
+        // files requested before the pipeline reached them would be skipped by the pipeline
+        assertThat(submitted.await(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(pipeline.take(new File("a.c")), is("a.c:a.c"));
+        assertThat(pipeline.take(new File("dir/b.c")), is("dir" + File.separator + "b.c:b.c"));
+        pipeline.close();
+    }
+
+    /**
+     * Tests that filtered files and failed files are not returned by the pipeline.
+     *
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testFilteredAndFailed() throws InterruptedException {
+        CountDownLatch failSubmitted = new CountDownLatch(1);
+        CountDownLatch okSubmitted = new CountDownLatch(1);
+        ExtractionPipeline<String> pipeline = new ExtractionPipeline<>(processPool, parsePool, 1,
+            (absoluteTarget) -> {
+                if (absoluteTarget.getName().equals("fail.c")) {
+                    failSubmitted.countDown();
+                    throw new IOException("srcML failed");
+                }
+                okSubmitted.countDown();
+                return new byte[0];
+            },
+            (absoluteTarget, relativeTarget, xml) -> relativeTarget.getPath());
+
+        pipeline.start(new File("src"), Arrays.asList(new File("skip.c"), new File("fail.c"), new File("ok.c")),
+            (file) -> !file.getName().equals("skip.c"));
+
+        assertThat(failSubmitted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(pipeline.take(new File("skip.c")), nullValue());
+        assertThat(pipeline.take(new File("fail.c")), nullValue());
+        // the capacity of 1 is only released by taking fail.c
+        assertThat(okSubmitted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(pipeline.take(new File("ok.c")), is("ok.c"));
+        pipeline.close();
+    }
+
+    /**
+     * Tests that discarding a file that was not taken releases its capacity.
+     *
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testDiscard() throws InterruptedException {
+        CountDownLatch firstSubmitted = new CountDownLatch(1);
+        CountDownLatch secondSubmitted = new CountDownLatch(1);
+        ExtractionPipeline<String> pipeline = new ExtractionPipeline<>(processPool, parsePool, 1,
+            (absoluteTarget) -> {
+                if (absoluteTarget.getName().equals("a.c")) {
+                    firstSubmitted.countDown();
+                } else {
+                    secondSubmitted.countDown();
+                }
+                return new byte[0];
+            },
+            (absoluteTarget, relativeTarget, xml) -> relativeTarget.getPath());
+
+        pipeline.start(new File("src"), Arrays.asList(new File("a.c"), new File("b.c")), (file) -> true);
+
+        assertThat(firstSubmitted.await(10, TimeUnit.SECONDS), is(true));
+        pipeline.discard(new File("a.c"));
+        // the capacity of 1 is only released by discarding a.c
+        assertThat(secondSubmitted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(pipeline.take(new File("a.c")), nullValue());
+        assertThat(pipeline.take(new File("b.c")), is("b.c"));
+        pipeline.close();
+    }
+
+    /**
+     * Tests that closing the pipeline drops its results and shuts down its thread pools.
+     *
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testClose() throws InterruptedException {
+        CountDownLatch submitted = new CountDownLatch(1);
+        ExtractionPipeline<String> pipeline = new ExtractionPipeline<>(processPool, parsePool, 1,
+            (absoluteTarget) -> {
+                submitted.countDown();
+                return new byte[0];
+            },
+            (absoluteTarget, relativeTarget, xml) -> relativeTarget.getPath());
+
+        pipeline.start(new File("src"), Arrays.asList(new File("a.c"), new File("b.c")), (file) -> true);
+        assertThat(submitted.await(10, TimeUnit.SECONDS), is(true));
+        pipeline.close();
+
+        assertThat(pipeline.take(new File("a.c")), nullValue());
+        assertThat(pipeline.take(new File("b.c")), nullValue());
+        assertThat(processPool.isShutdown(), is(true));
+        assertThat(parsePool.isShutdown(), is(true));
+    }
+
+    /**
+     * Tests that {@link ExtractionPipeline#take(File)} keeps the interrupt flag of the calling thread.
+     *
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testTakeInterrupted() throws InterruptedException {
+        CountDownLatch submitted = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExtractionPipeline<String> pipeline = new ExtractionPipeline<>(processPool, parsePool, 1,
+            (absoluteTarget) -> {
+                submitted.countDown();
+                finish.await();
+                return new byte[0];
+            },
+            (absoluteTarget, relativeTarget, xml) -> relativeTarget.getPath());
+
+        pipeline.start(new File("src"), Arrays.asList(new File("a.c")), (file) -> true);
+        assertThat(submitted.await(10, TimeUnit.SECONDS), is(true));
+
+        Thread.currentThread().interrupt();
+        assertThat(pipeline.take(new File("a.c")), nullValue());
+        assertThat(Thread.interrupted(), is(true));
+
+        finish.countDown();
+        pipeline.close();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.CompoundStatement;
+import net.ssehub.kernel_haven.code_model.ast.File;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FunctionConditionExpander}.
+ *
+ * @author Adam
+ */
+public class FunctionConditionExpanderTest {
+
+    /**
+     * Tests that nested elements with the same presence condition instance share the expanded condition, while
+     * elements with equal, but distinct presence conditions keep their own instance.
+     */
+    @Test
+    public void testPcsUpdatedByIdentity() {
+        Variable a = new Variable("A");
+        Variable b1 = new Variable("B");
+        Variable b2 = new Variable("B");
+
+        File file = new File(True.INSTANCE, new java.io.File("test.c"));
+        SingleStatement decl = new SingleStatement(a, new Code(a, "void f ( ) ;"),
+                SingleStatement.Type.FUNCTION_DECLARATION);
+        Function function = new Function(True.INSTANCE, "f", new Code(True.INSTANCE, "void f ( )"));
+        CompoundStatement body = new CompoundStatement(True.INSTANCE);
+        SingleStatement stmt1 = new SingleStatement(b1, new Code(b1, "a ;"), SingleStatement.Type.INSTRUCTION);
+        SingleStatement stmt2 = new SingleStatement(b2, new Code(b2, "b ;"), SingleStatement.Type.INSTRUCTION);
+        SingleStatement stmt3 = new SingleStatement(b1, new Code(b1, "c ;"), SingleStatement.Type.INSTRUCTION);
+
+        file.addNestedElement(decl);
+        file.addNestedElement(function);
+        function.addNestedElement(body);
+        body.addNestedElement(stmt1);
+        body.addNestedElement(stmt2);
+        body.addNestedElement(stmt3);
+
+        Map<@NonNull SingleStatement, @NonNull String> names = new IdentityHashMap<>();
+        names.put(decl, "f");
+        new FunctionConditionExpander(null, names).expand(file);
+
+        assertThat(function.getCondition(), sameInstance(a));
+        assertThat(function.getPresenceCondition(), sameInstance(a));
+        assertThat(body.getPresenceCondition(), sameInstance(a));
+
+        Formula pc1 = stmt1.getPresenceCondition();
+        Formula pc2 = stmt2.getPresenceCondition();
+        assertThat(pc1, instanceOf(Conjunction.class));
+        assertThat(pc2, instanceOf(Conjunction.class));
+        assertThat(((Conjunction) pc1).getLeft(), sameInstance(b1));
+        assertThat(((Conjunction) pc2).getLeft(), sameInstance(b2));
+        assertThat(((Conjunction) pc1).getRight(), sameInstance(a));
+
+        // same previous instance -> same expanded instance; equal previous instances are not merged
+        assertThat(stmt3.getPresenceCondition(), sameInstance(pc1));
+        assertThat(pc2, not(sameInstance(pc1)));
+        assertThat(pc2, is(pc1));
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.srcml.FunctionDeclarationIndex.HeaderSummary;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FunctionDeclarationIndex}.
+ *
+ * @author Adam
+ */
+public class FunctionDeclarationIndexTest {
+
+    private static final File TMP_DIR = new File(AllTests.TESTDATA, "tmpDeclarationIndex");
+
+    private static final File INDEX_FILE = new File(TMP_DIR, "index.txt");
+
+    private static final File HEADER = new File(TMP_DIR, "header.h");
+
+    private static final String SETTINGS = "settings1";
+
+    /**
+     * Creates the temporary directory with a header file.
+     *
+     * @throws IOException If creating the header fails.
+     */
+    @Before
+    public void setUp() throws IOException {
+        TMP_DIR.mkdirs();
+        writeHeader("void f();\n");
+    }
+
+    /**
+     * Deletes the temporary directory.
+     *
+     * @throws IOException If deleting fails.
+     */
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteFolder(TMP_DIR);
+    }
+
+    /**
+     * Overwrites the header file.
+     *
+     * @param content The new content of the header.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void writeHeader(String content) throws IOException {
+        try (Writer out = new FileWriter(HEADER)) {
+            out.write(content);
+        }
+    }
+
+    /**
+     * Creates a summary of {@link #HEADER} with a single declaration of f.
+     *
+     * @param pc The presence condition of the declaration.
+     *
+     * @return The summary.
+     */
+    private static @NonNull HeaderSummary createSummary(@NonNull Formula pc) {
+        Map<@NonNull String, @NonNull List<@NonNull Formula>> declarations = new HashMap<>();
+        declarations.put("f", Arrays.asList(pc));
+        return new HeaderSummary(declarations, Arrays.asList(HEADER));
+    }
+
+    /**
+     * Returns the number of entries in {@link #INDEX_FILE}.
+     *
+     * @return The number of header entries.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    private static long countEntries() throws IOException {
+        return Files.readAllLines(INDEX_FILE.toPath()).stream().filter((line) -> line.startsWith("header\t")).count();
+    }
+
+    /**
+     * Tests that stored summaries are loaded again.
+     */
+    @Test
+    public void testSaveAndReload() {
+        Formula pc = new Conjunction(new Variable("A"), new Negation(new Variable("B")));
+        FunctionDeclarationIndex index = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        index.put(HEADER, createSummary(pc));
+
+        FunctionDeclarationIndex reloaded = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        HeaderSummary summary = reloaded.get(HEADER);
+
+        assertThat(summary, notNullValue());
+        assertThat(summary.getDeclarations().get("f"), is(Arrays.asList(pc)));
+        assertThat(summary.getFiles().contains(HEADER), is(true));
+    }
+
+    /**
+     * Tests that stored summaries of changed headers are not used, and that the file is compacted afterwards.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testStaleSummary() throws IOException {
+        FunctionDeclarationIndex index = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        index.put(HEADER, createSummary(new Variable("A")));
+
+        writeHeader("void f();\nvoid g();\n");
+
+        FunctionDeclarationIndex reloaded = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        assertThat(reloaded.get(HEADER), nullValue());
+        reloaded.put(HEADER, createSummary(new Variable("B")));
+        assertThat(countEntries(), is(2L));
+
+        // the outdated entry is dropped when loading
+        FunctionDeclarationIndex compacted = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        assertThat(countEntries(), is(1L));
+        HeaderSummary summary = compacted.get(HEADER);
+        assertThat(summary, notNullValue());
+        assertThat(summary.getDeclarations().get("f"), is(Arrays.asList(new Variable("B"))));
+    }
+
+    /**
+     * Tests that stored summaries are discarded if the settings changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSettingsChanged() throws IOException {
+        FunctionDeclarationIndex index = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        index.put(HEADER, createSummary(new Variable("A")));
+
+        FunctionDeclarationIndex reloaded = new FunctionDeclarationIndex(INDEX_FILE, "settings2", new VariableCache());
+        assertThat(reloaded.get(HEADER), nullValue());
+        assertThat(countEntries(), is(0L));
+    }
+
+    /**
+     * Tests that a malformed line drops the summary it belongs to, and that the file is compacted afterwards.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMalformedLine() throws IOException {
+        try (Writer out = new FileWriter(INDEX_FILE)) {
+            out.write("settings\t" + SETTINGS + "\n");
+            out.write("header\t" + HEADER.getPath() + "\n");
+            out.write("file\t" + HEADER.getPath() + "\tnot a number\t10\n");
+            out.write("decl\tf\tA\n");
+        }
+
+        FunctionDeclarationIndex index = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+        assertThat(index.get(HEADER), nullValue());
+        assertThat(countEntries(), is(0L));
+    }
+
+    /**
+     * Tests that concurrent threads all get the same summary.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testConcurrentGetSummary() throws Exception {
+        FunctionDeclarationIndex index = new FunctionDeclarationIndex(INDEX_FILE, SETTINGS, new VariableCache());
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<HeaderSummary>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Callable<HeaderSummary> task = () -> index.getSummary(HEADER, () -> createSummary(new Variable("A")));
+                results.add(threads.submit(task));
+            }
+
+            HeaderSummary first = results.get(0).get();
+            for (Future<HeaderSummary> result : results) {
+                assertThat(result.get(), sameInstance(first));
+            }
+            assertThat(index.get(HEADER), sameInstance(first));
+
+        } finally {
+            threads.shutdown();
+        }
+
+        // only the summary that was stored is persisted
+        assertThat(countEntries(), is(1L));
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.File;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.cpp_utils.InvalidConditionHandling;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link FunctionFingerprints}.
+ *
+ * @author Adam
+ */
+public class FunctionFingerprintsTest {
+
+    /**
+     * Parses the given XML and returns the first {@code <function>} in it.
+     *
+     * @param xml The XML to parse.
+     *
+     * @return The function node.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    private Node parseFunction(String xml) throws SAXException, IOException {
+        Node unit = XmlParser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        Node result = unit.getFirstChild();
+        while (!result.getNodeName().equals("function")) {
+            result = result.getNextSibling();
+        }
+        return result;
+    }
+
+    /**
+     * Tests that a function that only moved has the same fingerprint.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testMovedFunction() throws SAXException, IOException {
+        String function = "<function><name>f</name>\n<block>{ }</block></function>";
+        String first = FunctionFingerprints.compute(parseFunction("<unit>" + function + "</unit>"),
+                True.INSTANCE, True.INSTANCE);
+        String second = FunctionFingerprints.compute(parseFunction("<unit>\n\n<other/>\n" + function + "</unit>"),
+                True.INSTANCE, True.INSTANCE);
+
+        assertThat(first, notNullValue());
+        assertThat(second, is(first));
+    }
+
+    /**
+     * Tests that changed functions or conditions change the fingerprint.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testChangedFunction() throws SAXException, IOException {
+        String original = FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>f</name><block>{ }</block></function></unit>"),
+                True.INSTANCE, True.INSTANCE);
+        String changedCode = FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>g</name><block>{ }</block></function></unit>"),
+                True.INSTANCE, True.INSTANCE);
+        String changedLines = FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>f</name>\n<block>{ }</block></function></unit>"),
+                True.INSTANCE, True.INSTANCE);
+        String changedCondition = FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>f</name><block>{ }</block></function></unit>"),
+                new Variable("A"), new Variable("A"));
+
+        assertThat(changedCode, not(original));
+        assertThat(changedLines, not(original));
+        assertThat(changedCondition, not(original));
+    }
+
+    /**
+     * Tests that functions with references or #include directives are not fingerprinted.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testNotReusable() throws SAXException, IOException {
+        assertThat(FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>f</name><block>{ <kh:reference/> }</block></function></unit>"),
+                True.INSTANCE, True.INSTANCE), nullValue());
+        assertThat(FunctionFingerprints.compute(
+                parseFunction("<unit><function><name>f</name><block>{ <cpp:include/> }</block></function></unit>"),
+                True.INSTANCE, True.INSTANCE), nullValue());
+    }
+
+    /**
+     * Tests that re-used functions are shifted to their new location.
+     */
+    @Test
+    public void testReuse() {
+        Code header = new Code(True.INSTANCE, "void f()");
+        header.setLineStart(10);
+        header.setLineEnd(10);
+        Function previous = new Function(True.INSTANCE, "f", header);
+        previous.setLineStart(10);
+        previous.setLineEnd(12);
+
+        Map<String, Function> previousFunctions = new HashMap<>();
+        previousFunctions.put("abc", previous);
+        FunctionFingerprints fingerprints = new FunctionFingerprints(previousFunctions);
+
+        assertThat(fingerprints.reuse("def", 15), nullValue());
+        Function reused = fingerprints.reuse("abc", 15);
+        assertThat(reused, sameInstance(previous));
+        assertThat(reused.getLineStart(), is(15));
+        assertThat(reused.getLineEnd(), is(17));
+        assertThat(fingerprints.getCurrent().get(reused), is("abc"));
+        assertThat(fingerprints.getNumReused(), is(1));
+
+        // each function is only re-used once
+        assertThat(fingerprints.reuse("abc", 15), nullValue());
+    }
+
+    /**
+     * Converts the given srcML XML with the given fingerprints and returns the (first) converted function.
+     *
+     * @param xml The srcML XML of a file.
+     * @param fingerprints The fingerprints to use for the conversion.
+     *
+     * @return The converted function.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    private Function convertFunction(String xml, FunctionFingerprints fingerprints) throws SAXException, IOException {
+        Document doc = XmlParser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        Node root = doc.getDocumentElement();
+        new XmlPrepreocessor(new java.io.File("test.c"), doc).preprocess(root);
+
+        XmlToAstConverter converter = new XmlToAstConverter(new java.io.File("test.c"), false,
+                ExpressionHandling.BOOLEAN, InvalidConditionHandling.EXCEPTION, new SharedVariableCache(), null);
+        converter.setFunctionFingerprints(fingerprints);
+        File file = converter.convertFile(root);
+
+        Function result = null;
+        for (ISyntaxElement element : file) {
+            if (element instanceof Function) {
+                result = (Function) element;
+            }
+        }
+        assertThat(result, notNullValue());
+        return result;
+    }
+
+    /**
+     * Tests that the converter puts a re-used function into the AST, shifted to its new location.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testReuseInConverter() throws SAXException, IOException {
+        String function = "<function><type><name>void</name></type> <name>f</name><parameter_list>()</parameter_list>"
+                + "\n<block>{\n}</block></function>";
+
+        FunctionFingerprints first = new FunctionFingerprints(new HashMap<>());
+        Function previous = convertFunction("<unit language=\"C\">\n" + function + "\n</unit>", first);
+        int previousStart = previous.getLineStart();
+        int previousEnd = previous.getLineEnd();
+        assertThat(first.getCurrent().get(previous), notNullValue());
+
+        Map<String, Function> previousFunctions = new HashMap<>();
+        previousFunctions.put(first.getCurrent().get(previous), previous);
+        FunctionFingerprints second = new FunctionFingerprints(previousFunctions);
+        // two lines were added above the function
+        Function reused = convertFunction("<unit language=\"C\">\n\n\n" + function + "\n</unit>", second);
+
+        assertThat(second.getNumReused(), is(1));
+        assertThat(reused, sameInstance(previous));
+        assertThat(reused.getLineStart(), is(previousStart + 2));
+        assertThat(reused.getLineEnd(), is(previousEnd + 2));
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A fake srcML process for the tests. It does nothing; its output stream and {@link #waitFor()} block until the
+ * process is destroyed.
+ *
+ * @author Adam
+ */
+class HangingProcess extends Process {
+
+    /**
+     * Counted down when the process is destroyed.
+     */
+    final CountDownLatch destroyed = new CountDownLatch(1);
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new ByteArrayOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    destroyed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        };
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        destroyed.await();
+        return exitValue();
+    }
+
+    @Override
+    public int exitValue() {
+        return 137;
+    }
+
+    @Override
+    public void destroy() {
+        destroyed.countDown();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link IncludeGraph}.
+ *
+ * @author Adam
+ */
+public class IncludeGraphTest {
+
+    private static final File HEADERS = new File(AllTests.TESTDATA, "headers");
+    
+    /**
+     * Tests that headers are reported as unused once all files that include them are released.
+     */
+    @Test
+    public void testRelease() {
+        IncludeGraph graph = new IncludeGraph(
+                new IncludePathResolver(Collections.emptyList(), Collections.emptyList()));
+        File simpleC = new File(HEADERS, "simple.c");
+        File nestedC = new File(HEADERS, "deeply_nested.c");
+        File functionC = new File(HEADERS, "function.c");
+        File simpleH = new File(HEADERS, "simple.h");
+        File functionH = new File(HEADERS, "function.h");
+        
+        graph.addTranslationUnit(simpleC);
+        graph.addTranslationUnit(nestedC);
+        graph.addTranslationUnit(functionC);
+        
+        assertThat(graph.getPendingIncluders(simpleH), is(2));
+        assertThat(graph.getPendingIncluders(functionH), is(1));
+        
+        List<File> unused = new ArrayList<>();
+        graph.release(simpleC, unused::add);
+        assertThat(unused, is(Collections.emptyList()));
+        assertThat(graph.getPendingIncluders(simpleH), is(1));
+        
+        graph.release(functionC, unused::add);
+        assertThat(unused, is(Arrays.asList(functionH)));
+        
+        graph.release(nestedC, unused::add);
+        assertThat(unused, is(Arrays.asList(functionH, simpleH)));
+    }
+    
+    /**
+     * Tests that missing headers are ignored.
+     */
+    @Test
+    public void testMissingHeaders() {
+        IncludeGraph graph = new IncludeGraph(
+                new IncludePathResolver(Collections.emptyList(), Collections.emptyList()));
+        File missingC = new File(HEADERS, "missing_header.c");
+        
+        graph.addTranslationUnit(missingC);
+        assertThat(graph.getPendingIncluders(new File(HEADERS, "missing_header.h")), is(0));
+        
+        List<File> unused = new ArrayList<>();
+        graph.release(missingC, unused::add);
+        assertThat(unused, is(Collections.emptyList()));
+    }
+    
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link IncludePathResolver}.
+ *
+ * @author Adam
+ */
+public class IncludePathResolverTest {
+
+    private static final File HEADERS = new File(AllTests.TESTDATA, "headers");
+    
+    /**
+     * Tests quote includes relative to the including file.
+     */
+    @Test
+    public void testQuoteInclude() {
+        IncludePathResolver resolver = new IncludePathResolver(Collections.emptyList(), Collections.emptyList());
+        
+        assertThat(resolver.findQuoteFile(HEADERS, "simple.h"), is(new File(HEADERS, "simple.h")));
+        assertThat(resolver.findQuoteFile(HEADERS, "../headers/simple.h"), is(new File(HEADERS, "simple.h")));
+        assertThat(resolver.findQuoteFile(HEADERS, "./simple.h"), is(new File(HEADERS, "simple.h")));
+        assertThat(resolver.findQuoteFile(HEADERS, "doesnt_exist.h"), nullValue());
+        assertThat(resolver.findQuoteFile(AllTests.TESTDATA, "simple.h"), nullValue());
+    }
+    
+    /**
+     * Tests that directories are not found as files.
+     */
+    @Test
+    public void testDirectoryIsNoFile() {
+        IncludePathResolver resolver = new IncludePathResolver(Collections.emptyList(), Collections.emptyList());
+        
+        assertThat(resolver.exists(AllTests.TESTDATA, "headers"), is(false));
+        assertThat(resolver.exists(AllTests.TESTDATA, "headers/simple.h"), is(true));
+    }
+    
+    /**
+     * Tests that names with a different case and platform-specific separators resolve the same way as with
+     * {@link File#isFile()}, i.e. only on case-insensitive file systems and platforms that use <code>\</code>.
+     */
+    @Test
+    public void testLikeFileSystem() {
+        IncludePathResolver resolver = new IncludePathResolver(Collections.emptyList(), Collections.emptyList());
+        
+        assertThat(resolver.exists(HEADERS, "SIMPLE.h"), is(new File(HEADERS, "SIMPLE.h").isFile()));
+        assertThat(resolver.exists(AllTests.TESTDATA, "Headers/simple.h"),
+                is(new File(AllTests.TESTDATA, "Headers/simple.h").isFile()));
+        assertThat(resolver.exists(AllTests.TESTDATA, "headers\\simple.h"),
+                is(new File(AllTests.TESTDATA, "headers\\simple.h").isFile()));
+    }
+    
+    /**
+     * Tests system includes in the include directories, including the fallback of quote includes.
+     */
+    @Test
+    public void testSystemInclude() {
+        IncludePathResolver resolver = new IncludePathResolver(Arrays.asList(new File(AllTests.TESTDATA, "c")),
+                Arrays.asList(AllTests.TESTDATA));
+        
+        assertThat(resolver.findSystemFile("headers/simple.h"), is(new File(AllTests.TESTDATA, "headers/simple.h")));
+        // cached result
+        assertThat(resolver.findSystemFile("headers/simple.h"), is(new File(AllTests.TESTDATA, "headers/simple.h")));
+        assertThat(resolver.findSystemFile("simple.h"), nullValue());
+        assertThat(resolver.findSystemFile("simple.h"), nullValue());
+        
+        assertThat(resolver.findQuoteFile(new File(AllTests.TESTDATA, "cpp"), "headers/function.h"),
+                is(new File(AllTests.TESTDATA, "headers/function.h")));
+        assertThat(resolver.findSystemFile("../testdata/headers/simple.h"),
+                is(new File(AllTests.TESTDATA, "headers/simple.h")));
+    }
+    
+    /**
+     * Tests that the include directories are searched in order.
+     */
+    @Test
+    public void testSearchOrder() {
+        File c = new File(AllTests.TESTDATA, "c");
+        File cpp = new File(AllTests.TESTDATA, "cpp");
+        
+        assertThat(new IncludePathResolver(Arrays.asList(c), Arrays.asList(cpp)).findSystemFile("Readme.txt"),
+                is(new File(c, "Readme.txt")));
+        assertThat(new IncludePathResolver(Arrays.asList(cpp), Arrays.asList(c)).findSystemFile("Readme.txt"),
+                is(new File(cpp, "Readme.txt")));
+        assertThat(new IncludePathResolver(Collections.emptyList(), Arrays.asList(cpp, c))
+                .findSystemFile("Readme.txt"), is(new File(cpp, "Readme.txt")));
+    }
+    
+}
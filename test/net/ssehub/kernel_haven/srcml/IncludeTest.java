@@ -20,6 +20,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import java.util.List;
+import java.util.Properties;
 
 import org.junit.Test;
 
@@ -35,6 +36,7 @@ import net.ssehub.kernel_haven.code_model.ast.File;
 import net.ssehub.kernel_haven.code_model.ast.Function;
 import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
 import net.ssehub.kernel_haven.code_model.ast.LoopStatement;
+import net.ssehub.kernel_haven.code_model.ast.ReferenceElement;
 import net.ssehub.kernel_haven.code_model.ast.SingleStatement;
 import net.ssehub.kernel_haven.code_model.ast.SwitchStatement;
 import net.ssehub.kernel_haven.cpp_utils.InvalidConditionHandling;
@@ -92,6 +94,31 @@ public class IncludeTest extends AbstractSrcMLExtractorTest {
         assertThat(stmt2.getLineStart(), is(3));
     }
     
+    /**
+     * Tests that a header is referenced by a {@link ReferenceElement} if header ASTs are shared.
+     */
+    @Test
+    public void testSharedHeaderInclusion() {
+        Properties props = new Properties();
+        props.setProperty("code.extractor.share_header_asts", "true");
+        SourceFile<ISyntaxElement> ast = super.loadFile("headers/simple.c", HeaderHandling.INCLUDE,
+                InvalidConditionHandling.EXCEPTION, props);
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        ReferenceElement reference = assertElement(ReferenceElement.class, "1", "1", elements.get(0));
+        SingleStatement stmt2 = assertElement(SingleStatement.class, "1", "1", elements.get(1));
+        assertThat(elements.size(), is(2));
+        assertThat(reference.getSourceFile(), is(new java.io.File("headers/simple.c")));
+        assertThat(reference.getLineStart(), is(1));
+        
+        File file = assertElement(File.class, "1", "1", reference.getReferenced());
+        SingleStatement stmt1 = assertElement(SingleStatement.class, "1", "1", file.getNestedElement(0));
+        assertThat(file.getNestedElementCount(), is(1));
+        
+        assertCode("int a ;", stmt1.getCode());
+        assertCode("int b ;", stmt2.getCode());
+    }
+    
     /**
      * Tests the expansion of function presence conditions.
      */
@@ -115,6 +142,44 @@ public class IncludeTest extends AbstractSrcMLExtractorTest {
         assertElement(SingleStatement.class, "C", "C && (A || B)", body.getNestedElement(0));
     }
     
+    /**
+     * Tests the expansion of function presence conditions if header ASTs are shared.
+     */
+    @Test
+    public void testConditionExpansionWithSharedHeaders() {
+        Properties props = new Properties();
+        props.setProperty("code.extractor.share_header_asts", "true");
+        SourceFile<ISyntaxElement> ast = super.loadFile("headers/function.c", HeaderHandling.EXPAND_FUNCTION_CONDITION,
+                InvalidConditionHandling.EXCEPTION, props);
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        assertElement(ReferenceElement.class, "1", "1", elements.get(0));
+        CppBlock ifdef = assertIf("C", "C", new Variable("C"), 1, CppBlock.Type.IFDEF, elements.get(1));
+        
+        Function func = assertElement(Function.class, "C && (A || B)", "C && (A || B)", ifdef.getNestedElement(0));
+        assertThat(func.getName(), is("func1"));
+    }
+    
+    /**
+     * Tests the expansion of function presence conditions with header summaries, i.e. without including the header.
+     */
+    @Test
+    public void testConditionExpansionFromSummary() {
+        SourceFile<ISyntaxElement> ast = loadFile("function.c", HeaderHandling.EXPAND_FUNCTION_CONDITION_FROM_SUMMARY);
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        CppStatement include = assertElement(CppStatement.class, "1", "1", elements.get(0));
+        assertThat(include.getType(), is(Type.INCLUDE));
+        CppBlock ifdef = assertIf("C", "C", new Variable("C"), 1, CppBlock.Type.IFDEF, elements.get(1));
+        assertThat(elements.size(), is(2));
+        
+        Function func = assertElement(Function.class, "C && (A || B)", "C && (A || B)", ifdef.getNestedElement(0));
+        assertThat(func.getName(), is("func1"));
+        
+        CompoundStatement body = assertElement(CompoundStatement.class, "C", "C && (A || B)", func.getNestedElement(0));
+        assertElement(SingleStatement.class, "C", "C && (A || B)", body.getNestedElement(0));
+    }
+    
     /**
      * Tests the case where a header file doesn't exist.
      */
@@ -151,6 +216,63 @@ public class IncludeTest extends AbstractSrcMLExtractorTest {
         assertThat(error.getNestedElementCount(), is(0));
     }
     
+    /**
+     * Tests that cyclic includes are replaced by an {@link ErrorElement} where the cycle closes.
+     */
+    @Test(timeout = 60000)
+    public void testCyclicHeaders() {
+        SourceFile<ISyntaxElement> ast = loadFile("cyclic.c", HeaderHandling.INCLUDE);
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        File headerA = assertElement(File.class, "1", "1", elements.get(0));
+        SingleStatement stmtC = assertElement(SingleStatement.class, "1", "1", elements.get(1));
+        assertThat(elements.size(), is(2));
+        assertCode("int c ;", stmtC.getCode());
+        
+        assertCyclicHeaderA(headerA);
+    }
+    
+    /**
+     * Tests that cyclic includes don't block if header ASTs are shared.
+     */
+    @Test(timeout = 60000)
+    public void testCyclicSharedHeaders() {
+        Properties props = new Properties();
+        props.setProperty("code.extractor.share_header_asts", "true");
+        SourceFile<ISyntaxElement> ast = super.loadFile("headers/cyclic.c", HeaderHandling.INCLUDE,
+                InvalidConditionHandling.EXCEPTION, props);
+        List<ISyntaxElement> elements = getElements(ast);
+        
+        ReferenceElement reference = assertElement(ReferenceElement.class, "1", "1", elements.get(0));
+        assertElement(SingleStatement.class, "1", "1", elements.get(1));
+        assertThat(elements.size(), is(2));
+        
+        assertCyclicHeaderA(assertElement(File.class, "1", "1", reference.getReferenced()));
+    }
+    
+    /**
+     * Checks the AST of cyclic_a.h, where the #include of cyclic_b.h is expanded, and the #include of cyclic_a.h in
+     * cyclic_b.h is replaced by an {@link ErrorElement}.
+     * 
+     * @param headerA The AST of cyclic_a.h.
+     */
+    private void assertCyclicHeaderA(File headerA) {
+        assertThat(headerA.getNestedElementCount(), is(2));
+        assertCode("int a ;", assertElement(SingleStatement.class, "1", "1", headerA.getNestedElement(1)).getCode());
+        
+        ISyntaxElement includeB = headerA.getNestedElement(0);
+        if (includeB instanceof ReferenceElement) {
+            includeB = ((ReferenceElement) includeB).getReferenced();
+        }
+        File headerB = assertElement(File.class, "1", "1", includeB);
+        assertThat(headerB.getNestedElementCount(), is(2));
+        ErrorElement error = assertElement(ErrorElement.class, "1", "1", headerB.getNestedElement(0));
+        assertCode("int b ;", assertElement(SingleStatement.class, "1", "1", headerB.getNestedElement(1)).getCode());
+        
+        assertThat(error.getErrorText().replace('\\', '/'), is("Can't parse header testdata/headers/cyclic_a.h:"
+                + " Cyclic #include of testdata/headers/cyclic_a.h"));
+    }
+    
     /**
      * Tests that an include directive that is very deeply nested in other elements. This basically tests all the
      * visit*() methods in {@link IncludeExpander}.
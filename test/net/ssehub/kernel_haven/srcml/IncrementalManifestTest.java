@@ -0,0 +1,329 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.code_model.ast.Code;
+import net.ssehub.kernel_haven.code_model.ast.Function;
+import net.ssehub.kernel_haven.code_model.ast.ISyntaxElement;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.logic.True;
+
+/**
+ * Tests the {@link IncrementalManifest}.
+ *
+ * @author Adam
+ */
+public class IncrementalManifestTest {
+
+    private static final File TMP_DIR = new File(AllTests.TESTDATA, "tmpIncremental");
+
+    private static final File STORAGE = new File(TMP_DIR, "storage");
+
+    private static final File SOURCE_TREE = new File(TMP_DIR, "source");
+
+    /**
+     * Creates the temporary directories.
+     */
+    @Before
+    public void setUp() {
+        SOURCE_TREE.mkdirs();
+    }
+
+    /**
+     * Deletes the temporary directories.
+     *
+     * @throws IOException If deleting fails.
+     */
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteFolder(TMP_DIR);
+    }
+
+    /**
+     * Writes the given content to the given file in the temporary source tree.
+     *
+     * @param relativePath The path of the file, relative to the source tree.
+     * @param content The content to write.
+     *
+     * @return The absolute file.
+     *
+     * @throws IOException If writing fails.
+     */
+    private File writeSource(String relativePath, String content) throws IOException {
+        File file = new File(SOURCE_TREE, relativePath);
+        try (Writer out = new FileWriter(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    /**
+     * Creates a minimal AST for the given file.
+     *
+     * @param relativePath The path of the file, relative to the source tree.
+     *
+     * @return The AST.
+     */
+    private SourceFile<ISyntaxElement> createAst(File relativePath) {
+        SourceFile<ISyntaxElement> result = new SourceFile<>(relativePath);
+        result.addElement(new net.ssehub.kernel_haven.code_model.ast.File(True.INSTANCE, relativePath));
+        return result;
+    }
+
+    /**
+     * Tests that the stored AST of an unchanged file is returned by a following run.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUnchangedFile() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "int main() {}\n");
+        SourceFile<ISyntaxElement> ast = createAst(relative);
+
+        IncrementalManifest manifest = new IncrementalManifest(STORAGE, "settings", null);
+        assertThat(manifest.getUnchanged(absolute, relative), nullValue());
+        manifest.store(absolute, relative, ast, null);
+
+        // following run
+        manifest = new IncrementalManifest(STORAGE, "settings", null);
+        SourceFile<ISyntaxElement> stored = manifest.getUnchanged(absolute, relative);
+        assertThat(stored, notNullValue());
+        assertThat(stored, is(ast));
+    }
+
+    /**
+     * Tests that stored ASTs are not re-used if the file changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedFile() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "int main() {}\n");
+
+        new IncrementalManifest(STORAGE, "settings", null).store(absolute, relative, createAst(relative), null);
+        writeSource("test.c", "int main() { return 0; }\n");
+
+        assertThat(new IncrementalManifest(STORAGE, "settings", null).getUnchanged(absolute, relative), nullValue());
+    }
+
+    /**
+     * Tests that stored ASTs are re-used if only the modification time changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTouchedFile() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "int main() {}\n");
+
+        new IncrementalManifest(STORAGE, "settings", null).store(absolute, relative, createAst(relative), null);
+        absolute.setLastModified(absolute.lastModified() - 10000);
+
+        assertThat(new IncrementalManifest(STORAGE, "settings", null).getUnchanged(absolute, relative),
+                notNullValue());
+    }
+
+    /**
+     * Tests that stored ASTs are not re-used if the settings changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedSettings() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "int main() {}\n");
+
+        new IncrementalManifest(STORAGE, "settings", null).store(absolute, relative, createAst(relative), null);
+
+        assertThat(new IncrementalManifest(STORAGE, "other", null).getUnchanged(absolute, relative), nullValue());
+    }
+
+    /**
+     * Tests that stored ASTs are not re-used if an included header changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedHeader() throws IOException {
+        File relative = new File("test.c");
+        writeSource("test.h", "void func(void);\n");
+        File absolute = writeSource("test.c", "#include \"test.h\"\n");
+        IncludeGraph graph = new IncludeGraph(new IncludePathResolver(Collections.emptyList(),
+                Collections.emptyList()));
+
+        new IncrementalManifest(STORAGE, "settings", graph).store(absolute, relative, createAst(relative), null);
+        assertThat(new IncrementalManifest(STORAGE, "settings", graph).getUnchanged(absolute, relative),
+                notNullValue());
+
+        writeSource("test.h", "void func(int a);\n");
+        assertThat(new IncrementalManifest(STORAGE, "settings", graph).getUnchanged(absolute, relative),
+                nullValue());
+    }
+
+    /**
+     * Tests that stored ASTs are not re-used if an #include resolves to another header, even though no recorded file
+     * changed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testShadowedHeader() throws IOException {
+        File relative = new File("test.c");
+        File first = new File(SOURCE_TREE, "first");
+        File second = new File(SOURCE_TREE, "second");
+        first.mkdir();
+        second.mkdir();
+        writeSource("second/test.h", "void func(void);\n");
+        File absolute = writeSource("test.c", "#include <test.h>\n");
+
+        // each run has its own include graph
+        new IncrementalManifest(STORAGE, "settings", new IncludeGraph(new IncludePathResolver(
+                Arrays.asList(first, second), Collections.emptyList())))
+                .store(absolute, relative, createAst(relative), null);
+        IncrementalManifest manifest = new IncrementalManifest(STORAGE, "settings", new IncludeGraph(
+                new IncludePathResolver(Arrays.asList(first, second), Collections.emptyList())));
+        assertThat(manifest.getUnchanged(absolute, relative), notNullValue());
+
+        // a new header earlier in the search path
+        writeSource("first/test.h", "void func(int a);\n");
+        manifest = new IncrementalManifest(STORAGE, "settings", new IncludeGraph(
+                new IncludePathResolver(Arrays.asList(first, second), Collections.emptyList())));
+        assertThat(manifest.getUnchanged(absolute, relative), nullValue());
+    }
+
+    /**
+     * Tests that the result of {@link IncrementalManifest#isUnchanged(File, File)} is re-used by the following
+     * {@link IncrementalManifest#getUnchanged(File, File)}, instead of checking the file again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUnchangedCheckedOnce() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "int main() {}\n");
+
+        new IncrementalManifest(STORAGE, "settings", null).store(absolute, relative, createAst(relative), null);
+
+        IncrementalManifest manifest = new IncrementalManifest(STORAGE, "settings", null);
+        assertThat(manifest.isUnchanged(absolute, relative), is(true));
+        writeSource("test.c", "int main() { return 0; }\n");
+        assertThat(manifest.getUnchanged(absolute, relative), notNullValue());
+    }
+
+    /**
+     * Tests that the state of a header shared by several source files is only read once per run.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSharedHeaderCheckedOnce() throws IOException {
+        File relativeA = new File("a.c");
+        File relativeB = new File("b.c");
+        writeSource("test.h", "void func(void);\n");
+        File absoluteA = writeSource("a.c", "#include \"test.h\"\n");
+        File absoluteB = writeSource("b.c", "#include \"test.h\"\n");
+        IncludeGraph graph = new IncludeGraph(new IncludePathResolver(Collections.emptyList(),
+                Collections.emptyList()));
+
+        IncrementalManifest manifest = new IncrementalManifest(STORAGE, "settings", graph);
+        manifest.store(absoluteA, relativeA, createAst(relativeA), null);
+        manifest.store(absoluteB, relativeB, createAst(relativeB), null);
+
+        manifest = new IncrementalManifest(STORAGE, "settings", graph);
+        assertThat(manifest.isUnchanged(absoluteA, relativeA), is(true));
+        writeSource("test.h", "void func(int a);\n");
+        assertThat(manifest.isUnchanged(absoluteB, relativeB), is(true));
+
+        // a following run sees the change
+        manifest = new IncrementalManifest(STORAGE, "settings", graph);
+        assertThat(manifest.isUnchanged(absoluteB, relativeB), is(false));
+    }
+
+    /**
+     * Creates a function with the given name at the given line.
+     *
+     * @param relativePath The path of the file, relative to the source tree.
+     * @param name The name of the function.
+     * @param line The start and end line of the function.
+     *
+     * @return The function.
+     */
+    private Function createFunction(File relativePath, String name, int line) {
+        Code header = new Code(True.INSTANCE, "void " + name + "()");
+        header.setSourceFile(relativePath);
+        Function result = new Function(True.INSTANCE, name, header);
+        result.setSourceFile(relativePath);
+        result.setLineStart(line);
+        result.setLineEnd(line);
+        return result;
+    }
+
+    /**
+     * Tests that the previous functions are found by their fingerprint, even if several functions have the same name
+     * and start line (e.g. in different #ifdef branches).
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testPreviousFunctionsWithSameLineAndName() throws IOException {
+        File relative = new File("test.c");
+        File absolute = writeSource("test.c", "#ifdef A\nvoid f() {}\n#else\nvoid f() {}\n#endif\n");
+
+        SourceFile<ISyntaxElement> ast = new SourceFile<>(relative);
+        net.ssehub.kernel_haven.code_model.ast.File file = new net.ssehub.kernel_haven.code_model.ast.File(
+                True.INSTANCE, relative);
+        Function first = createFunction(relative, "f", 2);
+        Function second = createFunction(relative, "f", 2);
+        file.addNestedElement(first);
+        file.addNestedElement(second);
+        ast.addElement(file);
+
+        FunctionFingerprints fingerprints = new FunctionFingerprints(new HashMap<>());
+        fingerprints.add(first, "first");
+        fingerprints.add(second, "second");
+        new IncrementalManifest(STORAGE, "settings", null).store(absolute, relative, ast, fingerprints);
+
+        Map<String, Function> previous = new IncrementalManifest(STORAGE, "settings", null)
+                .getPreviousFunctions(relative);
+        assertThat(previous.size(), is(2));
+        assertThat(previous.get("first"), not(sameInstance(previous.get("second"))));
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.test_utils.TestConfiguration;
+import net.ssehub.kernel_haven.util.CodeExtractorException;
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Tests the {@link MemoryGovernor}.
+ *
+ * @author Adam
+ */
+public class MemoryGovernorTest {
+
+    /**
+     * A source file of 22 bytes.
+     */
+    private static final File FILE = new File(AllTests.TESTDATA, "dedup/a/Same.c");
+
+    /**
+     * Tests that the estimate is proportional to the file size.
+     */
+    @Test
+    public void testEstimate() {
+        MemoryGovernor governor = new MemoryGovernor(1000000, null);
+
+        assertThat(governor.estimate(FILE, HeaderHandling.INCLUDE), is(22 * MemoryGovernor.BYTES_PER_SOURCE_BYTE));
+    }
+
+    /**
+     * Tests that the header handling is downgraded for a file that exceeds the budget on its own.
+     *
+     * @throws CodeExtractorException unwanted.
+     */
+    @Test
+    public void testDowngrade() throws CodeExtractorException {
+        MemoryGovernor governor = new MemoryGovernor(10, null);
+        AtomicReference<HeaderHandling> used = new AtomicReference<>();
+
+        governor.run(FILE, HeaderHandling.INCLUDE, (fileHeaderHandling) -> {
+            used.set(fileHeaderHandling);
+            return new SourceFile<>(FILE);
+        });
+        assertThat(used.get(), is(HeaderHandling.IGNORE));
+
+        governor.run(FILE, HeaderHandling.EXPAND_FUNCTION_CONDITION, (fileHeaderHandling) -> {
+            used.set(fileHeaderHandling);
+            return new SourceFile<>(FILE);
+        });
+        assertThat(used.get(), is(HeaderHandling.EXPAND_FUNCTION_CONDITION_FROM_SUMMARY));
+
+        governor.run(FILE, HeaderHandling.IGNORE, (fileHeaderHandling) -> {
+            used.set(fileHeaderHandling);
+            return new SourceFile<>(FILE);
+        });
+        assertThat(used.get(), is(HeaderHandling.IGNORE));
+
+        assertThat(governor.getNumDowngraded(), is(2));
+        // a file is always admitted if no other file is parsed
+        assertThat(governor.getNumDelayed(), is(0));
+    }
+
+    /**
+     * Tests that a file waits until the budget is available again.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 10000)
+    public void testDelayed() throws Exception {
+        // fits one file, but not two
+        MemoryGovernor governor = new MemoryGovernor(3000, null);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch firstMayFinish = new CountDownLatch(1);
+        AtomicBoolean secondParsed = new AtomicBoolean();
+
+        Thread first = new Thread(() -> {
+            try {
+                governor.run(FILE, HeaderHandling.IGNORE, (fileHeaderHandling) -> {
+                    firstStarted.countDown();
+                    try {
+                        firstMayFinish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new SourceFile<>(FILE);
+                });
+            } catch (CodeExtractorException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        firstStarted.await();
+
+        Thread second = new Thread(() -> {
+            try {
+                governor.run(FILE, HeaderHandling.IGNORE, (fileHeaderHandling) -> {
+                    secondParsed.set(true);
+                    return new SourceFile<>(FILE);
+                });
+            } catch (CodeExtractorException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        second.start();
+
+        while (governor.getNumDelayed() == 0) {
+            Thread.sleep(10);
+        }
+        assertThat(secondParsed.get(), is(false));
+
+        firstMayFinish.countDown();
+        first.join();
+        second.join();
+        assertThat(secondParsed.get(), is(true));
+    }
+
+    /**
+     * Tests that a file that would fit into the budget does not overtake a file that waits for the budget.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 10000)
+    public void testAdmittedInArrivalOrder() throws Exception {
+        // fits one file, but not two
+        MemoryGovernor governor = new MemoryGovernor(3000, null);
+        // a file that does not exist has an estimate of 0, so it always fits into the budget
+        File small = new File(AllTests.TESTDATA, "doesNotExist.c");
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch firstMayFinish = new CountDownLatch(1);
+        AtomicBoolean smallParsed = new AtomicBoolean();
+
+        Thread first = new Thread(() -> {
+            try {
+                governor.run(FILE, HeaderHandling.IGNORE, (fileHeaderHandling) -> {
+                    firstStarted.countDown();
+                    try {
+                        firstMayFinish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new SourceFile<>(FILE);
+                });
+            } catch (CodeExtractorException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        firstStarted.await();
+
+        Thread large = new Thread(() -> {
+            try {
+                governor.run(FILE, HeaderHandling.IGNORE, (fileHeaderHandling) -> new SourceFile<>(FILE));
+            } catch (CodeExtractorException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        large.start();
+        while (governor.getNumDelayed() < 1) {
+            Thread.sleep(10);
+        }
+
+        Thread smallThread = new Thread(() -> {
+            try {
+                governor.run(small, HeaderHandling.IGNORE, (fileHeaderHandling) -> {
+                    smallParsed.set(true);
+                    return new SourceFile<>(small);
+                });
+            } catch (CodeExtractorException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        smallThread.start();
+        while (governor.getNumDelayed() < 2) {
+            Thread.sleep(10);
+        }
+        assertThat(smallParsed.get(), is(false));
+
+        firstMayFinish.countDown();
+        first.join();
+        large.join();
+        smallThread.join();
+        assertThat(smallParsed.get(), is(true));
+    }
+
+    /**
+     * Tests that the extractor rejects a memory budget combined with the extraction pipeline, since the pipeline
+     * holds the DOMs of files that the governor did not admit yet.
+     *
+     * @throws SetUpException wanted.
+     * @throws IOException If deleting the temporary resource directory fails.
+     */
+    @Test(expected = SetUpException.class)
+    public void testPipelineRejected() throws SetUpException, IOException {
+        File resourceDir = new File(AllTests.TESTDATA, "tmpMemoryGovernor");
+        resourceDir.mkdir();
+
+        Properties props = new Properties();
+        props.setProperty("resource_dir", resourceDir.getAbsolutePath());
+        props.setProperty("source_tree", FILE.getParentFile().getParent());
+        props.setProperty("code.extractor.files", "a/Same.c");
+        props.setProperty("code.extractor.memory_budget", "50");
+        props.setProperty("code.extractor.pipeline_process_threads", "1");
+
+        try {
+            new SrcMLExtractor().init(new TestConfiguration(props));
+        } finally {
+            Util.deleteFolder(resourceDir);
+        }
+    }
+
+}
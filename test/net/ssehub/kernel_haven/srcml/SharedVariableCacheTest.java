@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link SharedVariableCache}.
+ *
+ * @author Adam
+ */
+public class SharedVariableCacheTest {
+
+    /**
+     * Tests that a formula whose variables are already cached is returned as it is.
+     */
+    @Test
+    public void testCanonicalFormulaNotRebuilt() {
+        SharedVariableCache cache = new SharedVariableCache();
+        Formula formula = new Conjunction(new Variable("A"), new Negation(new Disjunction(new Variable("B"),
+                new Variable("C"))));
+
+        // the first call makes the variables of the formula the cached instances
+        assertThat(cache.intern(formula), sameInstance(formula));
+        assertThat(cache.intern(formula), sameInstance(formula));
+        assertThat(cache.size(), is(3));
+    }
+
+    /**
+     * Tests that variables with the name of a cached variable are replaced by the cached instance.
+     */
+    @Test
+    public void testVariablesReplaced() {
+        SharedVariableCache cache = new SharedVariableCache();
+        Variable a = cache.getVariable("A");
+
+        Formula formula = new Conjunction(new Variable("A"), new Variable("B"));
+        Formula interned = cache.intern(formula);
+
+        assertThat(interned, not(sameInstance(formula)));
+        assertThat(interned, is(formula));
+        assertThat(((Conjunction) interned).getLeft(), sameInstance(a));
+        assertThat(((Conjunction) interned).getRight(), sameInstance(((Conjunction) formula).getRight()));
+    }
+
+    /**
+     * Tests that concurrent threads get the same instance for each variable.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        SharedVariableCache cache = new SharedVariableCache();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Variable>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                boolean viaIntern = t % 2 == 0;
+                Callable<List<Variable>> task = () -> {
+                    List<Variable> variables = new ArrayList<>();
+                    for (int i = 0; i < 1000; i++) {
+                        if (viaIntern) {
+                            variables.add((Variable) cache.intern(new Variable("VAR_" + i)));
+                        } else {
+                            variables.add(cache.getVariable("VAR_" + i));
+                        }
+                    }
+                    return variables;
+                };
+                results.add(threads.submit(task));
+            }
+
+            List<Variable> first = results.get(0).get();
+            for (Future<List<Variable>> result : results) {
+                List<Variable> variables = result.get();
+                for (int i = 0; i < 1000; i++) {
+                    assertThat(variables.get(i), sameInstance(first.get(i)));
+                }
+            }
+            assertThat(cache.size(), is(1000));
+
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link SrcMlHedging}.
+ *
+ * @author Adam
+ */
+public class SrcMlHedgingTest {
+
+    /**
+     * Tests that runs are not hedged before enough durations are recorded.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testNoHedgingWithoutSamples() throws IOException {
+        SrcMlHedging hedging = new SrcMlHedging(90);
+        AtomicInteger runs = new AtomicInteger();
+
+        byte[] result = hedging.run(100, (onStart) -> {
+            runs.incrementAndGet();
+            return "<unit/>".getBytes(StandardCharsets.UTF_8);
+        });
+
+        assertThat(new String(result, StandardCharsets.UTF_8), is("<unit/>"));
+        assertThat(runs.get(), is(1));
+        assertThat(hedging.getThreshold(100), is(-1L));
+        assertThat(hedging.getNumHedged(), is(0));
+        hedging.close();
+    }
+
+    /**
+     * Tests that runs are not hedged anymore after the hedging is closed, instead of failing.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testClosed() throws IOException {
+        SrcMlHedging hedging = new SrcMlHedging(90);
+        for (int i = 0; i < 50; i++) {
+            hedging.record(0, 100);
+        }
+        hedging.close();
+
+        byte[] result = hedging.run(100, (onStart) -> {
+            try {
+                // longer than the threshold
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "<unit/>".getBytes(StandardCharsets.UTF_8);
+        });
+
+        assertThat(new String(result, StandardCharsets.UTF_8), is("<unit/>"));
+        assertThat(hedging.getNumHedged(), is(0));
+    }
+
+    /**
+     * Tests that a straggler is hedged, the hedge run wins, and the straggler is killed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testStragglerHedged() throws IOException {
+        SrcMlHedging hedging = new SrcMlHedging(90);
+        for (int i = 0; i < 50; i++) {
+            hedging.run(100, (onStart) -> new byte[0]);
+        }
+
+        HangingProcess straggler = new HangingProcess();
+        AtomicInteger runs = new AtomicInteger();
+        byte[] result = hedging.run(100, (onStart) -> {
+            String output;
+            if (runs.incrementAndGet() == 1) {
+                onStart.accept(straggler);
+                try {
+                    straggler.destroyed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                output = "straggler";
+            } else {
+                output = "hedge";
+            }
+            return output.getBytes(StandardCharsets.UTF_8);
+        });
+
+        assertThat(new String(result, StandardCharsets.UTF_8), is("hedge"));
+        assertThat(runs.get(), is(2));
+        assertThat(hedging.getNumHedged(), is(1));
+        assertThat(straggler.destroyed.getCount(), is(0L));
+        hedging.close();
+    }
+
+    /**
+     * Tests that the threshold is scaled to the size of the input file, so that large files are not hedged only
+     * because of their size.
+     */
+    @Test
+    public void testThresholdScaledBySize() {
+        SrcMlHedging hedging = new SrcMlHedging(90);
+        for (int i = 0; i < 50; i++) {
+            hedging.record(100, 1000);
+        }
+
+        assertThat(hedging.getThreshold(1000), is(100L));
+        assertThat(hedging.getThreshold(10000), is(1000L));
+        // never below the time it takes to start another process
+        assertThat(hedging.getThreshold(10), is(10L));
+        hedging.close();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link SrcMlOutputCache}.
+ *
+ * @author Adam
+ */
+public class SrcMlOutputCacheTest {
+
+    private static final File DEDUP = new File(AllTests.TESTDATA, "dedup");
+
+    /**
+     * Tests that srcML runs only once for files with identical content.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIdenticalFiles() throws IOException {
+        SrcMlOutputCache cache = new SrcMlOutputCache(Arrays.asList(new File(DEDUP, "a/Same.c"),
+                new File(DEDUP, "b/Same.c")));
+        AtomicInteger runs = new AtomicInteger();
+
+        byte[] first = cache.getOutput(new File(DEDUP, "a/Same.c"), () -> {
+            runs.incrementAndGet();
+            return "<unit/>".getBytes(StandardCharsets.UTF_8);
+        });
+        byte[] second = cache.getOutput(new File(DEDUP, "b/Same.c"), () -> {
+            runs.incrementAndGet();
+            return "<other/>".getBytes(StandardCharsets.UTF_8);
+        });
+
+        assertThat(runs.get(), is(1));
+        assertThat(new String(second, StandardCharsets.UTF_8), is(new String(first, StandardCharsets.UTF_8)));
+        assertThat(cache.getNumDuplicates(), is(1));
+    }
+
+    /**
+     * Tests that srcML runs for each file with different content.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testDifferentFiles() throws IOException {
+        SrcMlOutputCache cache = new SrcMlOutputCache(Arrays.asList(new File(DEDUP, "a/Same.c"),
+                new File(DEDUP, "b/Other.c")));
+        AtomicInteger runs = new AtomicInteger();
+
+        cache.getOutput(new File(DEDUP, "a/Same.c"), () -> {
+            runs.incrementAndGet();
+            return new byte[0];
+        });
+        cache.getOutput(new File(DEDUP, "b/Other.c"), () -> {
+            runs.incrementAndGet();
+            return new byte[0];
+        });
+
+        assertThat(runs.get(), is(2));
+        assertThat(cache.getNumDuplicates(), is(0));
+    }
+
+    /**
+     * Tests that failures are not cached.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFailureNotCached() throws IOException {
+        SrcMlOutputCache cache = new SrcMlOutputCache(Arrays.asList(new File(DEDUP, "a/Same.c"),
+                new File(DEDUP, "b/Same.c")));
+
+        try {
+            cache.getOutput(new File(DEDUP, "a/Same.c"), () -> {
+                throw new IOException("srcML failed");
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("srcML failed"));
+        }
+
+        byte[] output = cache.getOutput(new File(DEDUP, "b/Same.c"), () -> "<unit/>".getBytes(StandardCharsets.UTF_8));
+        assertThat(new String(output, StandardCharsets.UTF_8), is("<unit/>"));
+    }
+
+    /**
+     * Tests that with a known file list, the output is only kept until the last file with the same content got it.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testReleasedAfterLastDuplicate() throws IOException {
+        File same1 = new File(DEDUP, "a/Same.c");
+        File same2 = new File(DEDUP, "b/Same.c");
+        File other = new File(DEDUP, "b/Other.c");
+        SrcMlOutputCache cache = new SrcMlOutputCache(Arrays.asList(same1, same2, other));
+        AtomicInteger runs = new AtomicInteger();
+
+        cache.getOutput(same1, () -> {
+            runs.incrementAndGet();
+            return "<unit/>".getBytes(StandardCharsets.UTF_8);
+        });
+        assertThat(cache.getNumCachedOutputs(), is(1));
+
+        byte[] second = cache.getOutput(same2, () -> {
+            runs.incrementAndGet();
+            return "<other/>".getBytes(StandardCharsets.UTF_8);
+        });
+        assertThat(new String(second, StandardCharsets.UTF_8), is("<unit/>"));
+        assertThat(cache.getNumCachedOutputs(), is(0));
+
+        assertThat(runs.get(), is(1));
+        assertThat(cache.getNumDuplicates(), is(1));
+    }
+
+    /**
+     * Tests that with a known file list, the output of files with a unique content is not cached.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUniqueFileNotCached() throws IOException {
+        File other = new File(DEDUP, "b/Other.c");
+        SrcMlOutputCache cache = new SrcMlOutputCache(Arrays.asList(new File(DEDUP, "a/Same.c"),
+                new File(DEDUP, "b/Same.c"), other));
+        AtomicInteger runs = new AtomicInteger();
+
+        cache.getOutput(other, () -> {
+            runs.incrementAndGet();
+            return new byte[0];
+        });
+
+        assertThat(runs.get(), is(1));
+        assertThat(cache.getNumCachedOutputs(), is(0));
+        assertThat(cache.getNumDuplicates(), is(0));
+    }
+
+}
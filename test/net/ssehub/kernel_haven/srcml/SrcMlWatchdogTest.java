@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.srcml.SrcMlWatchdog.WatchedStream;
+
+/**
+ * Tests the {@link SrcMlWatchdog}.
+ *
+ * @author Adam
+ */
+public class SrcMlWatchdogTest {
+
+    /**
+     * Tests that a process that produces no output is killed.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 10000)
+    public void testStalledProcessKilled() throws IOException {
+        SrcMlWatchdog watchdog = new SrcMlWatchdog(100);
+        HangingProcess process = new HangingProcess();
+
+        try (WatchedStream stdout = watchdog.watch(process, process.getInputStream())) {
+            assertThat(stdout.read(), is(-1));
+            assertThat(stdout.isStalled(), is(true));
+        }
+        assertThat(watchdog.getNumStalls(), is(1));
+        watchdog.close();
+    }
+
+    /**
+     * Tests that a process whose output is read completely is not killed.
+     *
+     * @throws IOException unwanted.
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testFinishedProcessNotKilled() throws IOException, InterruptedException {
+        SrcMlWatchdog watchdog = new SrcMlWatchdog(50);
+        HangingProcess process = new HangingProcess();
+
+        try (WatchedStream stdout = watchdog.watch(process, new ByteArrayInputStream(new byte[] {1, 2, 3}))) {
+            assertThat(stdout.read(new byte[8], 0, 8), is(3));
+            assertThat(stdout.read(new byte[8], 0, 8), is(-1));
+
+            Thread.sleep(300);
+            assertThat(stdout.isStalled(), is(false));
+        }
+        assertThat(watchdog.getNumStalls(), is(0));
+        watchdog.close();
+    }
+
+    /**
+     * Tests that a closed watchdog doesn't kill processes anymore.
+     *
+     * @throws IOException unwanted.
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testClosed() throws IOException, InterruptedException {
+        SrcMlWatchdog watchdog = new SrcMlWatchdog(50);
+        HangingProcess process = new HangingProcess();
+
+        try (WatchedStream stdout = watchdog.watch(process, process.getInputStream())) {
+            watchdog.close();
+            Thread.sleep(300);
+            assertThat(stdout.isStalled(), is(false));
+            assertThat(process.destroyed.getCount(), is(1L));
+        } finally {
+            process.destroy();
+        }
+        assertThat(watchdog.getNumStalls(), is(0));
+    }
+
+}
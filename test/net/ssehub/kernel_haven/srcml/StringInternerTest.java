@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link StringInterner}.
+ *
+ * @author Adam
+ */
+public class StringInternerTest {
+
+    /**
+     * Tests that equal strings are replaced by the first instance.
+     */
+    @Test
+    public void testEqualStringsShared() {
+        StringInterner interner = new StringInterner();
+        String first = new String("someFunction");
+        String second = new String("someFunction");
+        assertThat(second, not(sameInstance(first)));
+
+        assertThat(interner.intern(first), sameInstance(first));
+        assertThat(interner.intern(second), sameInstance(first));
+        assertThat(interner.intern("other"), is("other"));
+
+        assertThat(interner.getNumLookups(), is(3L));
+        assertThat(interner.getNumHits(), is(1L));
+    }
+
+    /**
+     * Tests that strings longer than {@link StringInterner#MAX_LENGTH} are neither interned nor counted.
+     */
+    @Test
+    public void testLongStringsIgnored() {
+        StringInterner interner = new StringInterner();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i <= StringInterner.MAX_LENGTH; i++) {
+            builder.append('a');
+        }
+        String first = builder.toString();
+        String second = builder.toString();
+
+        assertThat(interner.intern(first), sameInstance(first));
+        assertThat(interner.intern(second), sameInstance(second));
+
+        assertThat(interner.getNumLookups(), is(0L));
+        assertThat(interner.getNumHits(), is(0L));
+    }
+
+    /**
+     * Tests that separate tables do not share instances.
+     */
+    @Test
+    public void testSeparateTables() {
+        StringInterner interner1 = new StringInterner();
+        StringInterner interner2 = new StringInterner();
+        String first = new String("token");
+        String second = new String("token");
+
+        assertThat(interner1.intern(first), sameInstance(first));
+        assertThat(interner2.intern(second), sameInstance(second));
+        assertThat(interner2.getNumHits(), is(0L));
+    }
+
+    /**
+     * Tests that concurrent threads get the same instance for each string.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        StringInterner interner = new StringInterner();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Callable<List<String>> task = () -> {
+                    List<String> strings = new ArrayList<>();
+                    for (int i = 0; i < 1000; i++) {
+                        strings.add(interner.intern(new String("token_" + i)));
+                    }
+                    return strings;
+                };
+                results.add(threads.submit(task));
+            }
+
+            List<String> first = results.get(0).get();
+            for (Future<List<String>> result : results) {
+                List<String> strings = result.get();
+                for (int i = 0; i < 1000; i++) {
+                    assertThat(strings.get(i), sameInstance(first.get(i)));
+                }
+            }
+            assertThat(interner.getNumLookups(), is(8000L));
+            assertThat(interner.getNumHits(), is(7000L));
+
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.not;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link TrivialConditionParser}.
+ *
+ * @author Adam
+ */
+public class TrivialConditionParserTest {
+
+    /**
+     * Tests the constants 0 and 1.
+     */
+    @Test
+    public void testConstants() {
+        TrivialConditionParser parser = new TrivialConditionParser(new SharedVariableCache());
+        
+        assertThat(parser.parse("0"), sameInstance(False.INSTANCE));
+        assertThat(parser.parse("1"), sameInstance(True.INSTANCE));
+        assertThat(parser.parse(" 1 "), sameInstance(True.INSTANCE));
+    }
+    
+    /**
+     * Tests defined() with and without brackets and negation.
+     */
+    @Test
+    public void testDefined() {
+        TrivialConditionParser parser = new TrivialConditionParser(new SharedVariableCache());
+        
+        assertThat(parser.parse("defined(CONFIG_A)"), is(new Variable("CONFIG_A")));
+        assertThat(parser.parse("defined ( CONFIG_A )"), is(new Variable("CONFIG_A")));
+        assertThat(parser.parse("defined CONFIG_A"), is(new Variable("CONFIG_A")));
+        assertThat(parser.parse("!defined(CONFIG_A)"), is(not("CONFIG_A")));
+        assertThat(parser.parse("! defined CONFIG_A"), is(not("CONFIG_A")));
+    }
+    
+    /**
+     * Tests that the same {@link Variable} instance is returned for the same name.
+     */
+    @Test
+    public void testVariablesCached() {
+        TrivialConditionParser parser = new TrivialConditionParser(new SharedVariableCache());
+        
+        Formula f1 = parser.parse("defined(CONFIG_A)");
+        Formula f2 = parser.parse("defined CONFIG_A");
+        
+        assertThat(f1, sameInstance(f2));
+        assertThat(parser.getVariable("CONFIG_A"), sameInstance(f1));
+    }
+    
+    /**
+     * Tests that non-trivial conditions are not handled.
+     */
+    @Test
+    public void testNonTrivial() {
+        TrivialConditionParser parser = new TrivialConditionParser(new SharedVariableCache());
+        
+        assertThat(parser.parse(""), nullValue());
+        assertThat(parser.parse("2"), nullValue());
+        assertThat(parser.parse("CONFIG_A"), nullValue());
+        assertThat(parser.parse("definedCONFIG_A"), nullValue());
+        assertThat(parser.parse("defined(1A)"), nullValue());
+        assertThat(parser.parse("defined(A"), nullValue());
+        assertThat(parser.parse("defined(A) && defined(B)"), nullValue());
+        assertThat(parser.parse("!!defined(A)"), nullValue());
+        assertThat(parser.parse("IS_ENABLED(CONFIG_A)"), nullValue());
+        assertThat(parser.parse("CONFIG_A > 2"), nullValue());
+    }
+    
+}
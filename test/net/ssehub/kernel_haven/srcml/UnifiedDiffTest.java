@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link UnifiedDiff}.
+ *
+ * @author Adam
+ */
+public class UnifiedDiffTest {
+
+    /**
+     * Tests a git diff with added, removed and context lines in two files.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testGitDiff() throws IOException {
+        String diff = "diff --git a/drivers/test.c b/drivers/test.c\n"
+                + "index 123..456 100644\n"
+                + "--- a/drivers/test.c\n"
+                + "+++ b/drivers/test.c\n"
+                + "@@ -10,4 +10,5 @@ static int func(void)\n"
+                + " context 10\n"
+                + "-removed\n"
+                + "+added 11\n"
+                + "+added 12\n"
+                + " context 13\n"
+                + " context 14\n"
+                + "@@ -30,3 +31,2 @@\n"
+                + " context 31\n"
+                + "-removed\n"
+                + " context 32\n"
+                + "diff --git a/other.c b/other.c\n"
+                + "--- a/other.c\n"
+                + "+++ b/other.c\n"
+                + "@@ -1 +1 @@\n"
+                + "-old\n"
+                + "+new\n"
+                + "\\ No newline at end of file\n";
+
+        UnifiedDiff parsed = UnifiedDiff.parse(new StringReader(diff));
+
+        assertThat(parsed.getNumFiles(), is(2));
+
+        BitSet expected = new BitSet();
+        expected.set(10, 13); // 10 and 11 for the removal, 11 and 12 added
+        expected.set(31, 33); // removal between 31 and 32
+        assertThat(parsed.getChangedLines(new File("drivers/test.c")), is(expected));
+
+        expected = new BitSet();
+        expected.set(1);
+        assertThat(parsed.getChangedLines(new File("other.c")), is(expected));
+
+        assertThat(parsed.getChangedLines(new File("unchanged.c")), nullValue());
+    }
+
+    /**
+     * Tests that deleted files are not contained.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testDeletedFile() throws IOException {
+        String diff = "--- a/deleted.c\n"
+                + "+++ /dev/null\n"
+                + "@@ -1,2 +0,0 @@\n"
+                + "-line 1\n"
+                + "-line 2\n";
+
+        UnifiedDiff parsed = UnifiedDiff.parse(new StringReader(diff));
+
+        assertThat(parsed.getNumFiles(), is(0));
+    }
+
+    /**
+     * Tests that the file header of the next file in concatenated diffs (without a <code>diff</code> line in between)
+     * is not counted as a removed line of the previous file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testConcatenatedDiffs() throws IOException {
+        String diff = "--- a/first.c\n"
+                + "+++ b/first.c\n"
+                + "@@ -5,2 +5,2 @@\n"
+                + " context 5\n"
+                + "-removed\n"
+                + "+added 6\n"
+                + "--- a/second.c\n"
+                + "+++ b/second.c\n"
+                + "@@ -1 +1,2 @@\n"
+                + " context 1\n"
+                + "+added 2\n";
+
+        UnifiedDiff parsed = UnifiedDiff.parse(new StringReader(diff));
+
+        assertThat(parsed.getNumFiles(), is(2));
+
+        BitSet expected = new BitSet();
+        expected.set(5, 7); // 5 and 6 for the removal, 6 added
+        assertThat(parsed.getChangedLines(new File("first.c")), is(expected));
+
+        expected = new BitSet();
+        expected.set(2);
+        assertThat(parsed.getChangedLines(new File("second.c")), is(expected));
+    }
+
+    /**
+     * Tests that a removal without context lines (as created by <code>git diff -U0</code>) marks the lines before and
+     * after the removal.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRemovalWithoutContext() throws IOException {
+        String diff = "--- a/test.c\n"
+                + "+++ b/test.c\n"
+                + "@@ -5 +4,0 @@\n"
+                + "-removed\n";
+
+        UnifiedDiff parsed = UnifiedDiff.parse(new StringReader(diff));
+
+        BitSet expected = new BitSet();
+        expected.set(4, 6); // the old line 5 was between the new lines 4 and 5
+        assertThat(parsed.getChangedLines(new File("test.c")), is(expected));
+    }
+
+    /**
+     * Tests that <code>a/</code> is not stripped if the paths don't follow git's prefix convention, since it may be a
+     * real directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testNoPrefix() throws IOException {
+        String diff = "--- a/Same.c\t2019-01-01 00:00:00.000000000 +0100\n"
+                + "+++ a/Same.c\t2019-01-02 00:00:00.000000000 +0100\n"
+                + "@@ -1 +1 @@\n"
+                + "-old\n"
+                + "+new\n"
+                + "--- /dev/null\n"
+                + "+++ b/New.c\n"
+                + "@@ -0,0 +1 @@\n"
+                + "+new\n";
+
+        UnifiedDiff parsed = UnifiedDiff.parse(new StringReader(diff));
+
+        assertThat(parsed.getNumFiles(), is(2));
+
+        BitSet expected = new BitSet();
+        expected.set(1);
+        assertThat(parsed.getChangedLines(new File("a/Same.c")), is(expected));
+        // a new file created by git
+        assertThat(parsed.getChangedLines(new File("New.c")), is(expected));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.srcml;
+
+import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_END;
+import static net.ssehub.kernel_haven.srcml.XmlUserData.LINE_START;
+import static net.ssehub.kernel_haven.srcml.XmlUserData.NODE_REFERENCE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Tests the {@link XmlToAstConverter}.
+ *
+ * @author Adam
+ */
+public class XmlToAstConverterTest {
+
+    /**
+     * Adds a top-level node with the given lines to the given unit.
+     *
+     * @param unit The unit to add the node to.
+     * @param lineStart The start line of the node.
+     * @param lineEnd The end line of the node.
+     *
+     * @return The added node.
+     */
+    private Element addNode(Element unit, int lineStart, int lineEnd) {
+        Element result = unit.getOwnerDocument().createElement("function");
+        result.setUserData(LINE_START, lineStart, null);
+        result.setUserData(LINE_END, lineEnd, null);
+        unit.appendChild(result);
+        return result;
+    }
+
+    /**
+     * Tests that only the top-level nodes that overlap with the changed lines are selected, plus the top-level nodes
+     * that these refer to.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testSelectChangedNodes() throws SAXException, IOException {
+        Document doc = XmlParser.parse(new ByteArrayInputStream("<unit/>".getBytes(StandardCharsets.UTF_8)));
+        Element unit = doc.getDocumentElement();
+        Element before = addNode(unit, 1, 2);
+        Element changed = addNode(unit, 4, 5);
+        Element referred = addNode(unit, 7, 8);
+        Element after = addNode(unit, 10, 11);
+
+        // the changed node refers to a node nested in another top-level node
+        Element nested = doc.createElement("block");
+        referred.appendChild(nested);
+        Element reference = doc.createElement("kh:reference");
+        reference.setUserData(NODE_REFERENCE, nested, null);
+        changed.appendChild(reference);
+
+        BitSet changedLines = new BitSet();
+        changedLines.set(5);
+        Set<Node> selected = XmlToAstConverter.selectChangedNodes(unit, changedLines);
+
+        assertThat(selected.contains(changed), is(true));
+        assertThat(selected.contains(referred), is(true));
+        assertThat(selected.contains(before), is(false));
+        assertThat(selected.contains(after), is(false));
+        assertThat(selected.size(), is(2));
+    }
+
+    /**
+     * Tests that no top-level node is selected if the changed lines are between them.
+     *
+     * @throws IOException unwanted.
+     * @throws SAXException unwanted.
+     */
+    @Test
+    public void testSelectChangedNodesBetween() throws SAXException, IOException {
+        Document doc = XmlParser.parse(new ByteArrayInputStream("<unit/>".getBytes(StandardCharsets.UTF_8)));
+        Element unit = doc.getDocumentElement();
+        addNode(unit, 1, 2);
+        addNode(unit, 4, 5);
+
+        BitSet changedLines = new BitSet();
+        changedLines.set(3);
+        changedLines.set(6);
+
+        assertThat(XmlToAstConverter.selectChangedNodes(unit, changedLines).isEmpty(), is(true));
+    }
+
+}
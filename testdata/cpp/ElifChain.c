@@ -0,0 +1,11 @@
+#if defined(A)
+    ;
+#elif defined(B)
+    ;
+#elif defined(C)
+    ;
+#elif defined(D)
+    ;
+#else
+    ;
+#endif
@@ -0,0 +1,3 @@
+#include "cyclic_a.h"
+
+int c;
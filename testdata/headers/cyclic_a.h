@@ -0,0 +1,3 @@
+#include "cyclic_b.h"
+
+int a;